@@ -0,0 +1,135 @@
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.MatrixCursor;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.View;
+import android.widget.FrameLayout;
+
+/*
+    Checks that SettingsSnapshot follows preference changes, then times ForecastAdapter.bindView
+    over a two week list against the same binds plus the SharedPreferences lookups the old
+    bindView made per row: three reads of the units, each with its own resource lookups.  The
+    per-row times are logged under the TestSettingsSnapshot tag.
+ */
+public class TestSettingsSnapshot extends AndroidTestCase {
+    private static final String LOG_TAG = TestSettingsSnapshot.class.getSimpleName();
+
+    private static final int ROWS = 14;
+    private static final int ITERATIONS = 500;
+    // How long a change committed off the main thread may take to arrive
+    private static final long LISTENER_TIMEOUT = 2000;
+
+    private SharedPreferences mPrefs;
+    private String mUnits;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mUnits = mPrefs.getString(mContext.getString(R.string.pref_units_key), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (mUnits == null) {
+            editor.remove(mContext.getString(R.string.pref_units_key));
+        } else {
+            editor.putString(mContext.getString(R.string.pref_units_key), mUnits);
+        }
+        editor.commit();
+        super.tearDown();
+    }
+
+    private void setUnits(int unitsId) throws InterruptedException {
+        final String units = mContext.getString(unitsId);
+        mPrefs.edit().putString(mContext.getString(R.string.pref_units_key), units).commit();
+        boolean metric = units.equals(mContext.getString(R.string.pref_units_metric));
+        long deadline = System.currentTimeMillis() + LISTENER_TIMEOUT;
+        while (SettingsSnapshot.get(mContext).isMetric() != metric) {
+            assertTrue("The snapshot missed a change to " + units,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testFollowsChanges() throws InterruptedException {
+        setUnits(R.string.pref_units_imperial);
+        assertFalse(Utility.isMetric(mContext));
+        SettingsSnapshot imperial = SettingsSnapshot.get(mContext);
+        assertSame("Reads don't copy", imperial, SettingsSnapshot.get(mContext));
+
+        setUnits(R.string.pref_units_metric);
+        assertTrue(Utility.isMetric(mContext));
+        assertFalse("An old snapshot doesn't change", imperial.isMetric());
+        assertEquals(mPrefs.getString(mContext.getString(R.string.pref_location_key),
+                mContext.getString(R.string.pref_location_default)),
+                Utility.getPreferredLocation(mContext));
+    }
+
+    // What Utility.isMetric did before the snapshot
+    private static boolean readUnits(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getString(context.getString(R.string.pref_units_key),
+                context.getString(R.string.pref_units_metric))
+                .equals(context.getString(R.string.pref_units_metric));
+    }
+
+    public void testBindTime() throws InterruptedException {
+        setUnits(R.string.pref_units_metric);
+        MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "date", "desc", "max", "min",
+                "setting", "condition", "lat", "lon"});
+        long day = System.currentTimeMillis();
+        for (int i = 0; i < ROWS; i++) {
+            cursor.addRow(new Object[]{i, day + i * 24L * 60 * 60 * 1000, "Clear", 21.5, 12.25,
+                    "94043", 800, 37.4, -122.1});
+        }
+        ForecastAdapter adapter = new ForecastAdapter(mContext, cursor, 0);
+        FrameLayout parent = new FrameLayout(mContext);
+        View[] views = new View[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            cursor.moveToPosition(i);
+            views[i] = adapter.newView(mContext, cursor, parent);
+        }
+
+        // Warm up, and check what got bound
+        bindAll(adapter, cursor, views, false);
+        ForecastAdapter.ViewHolder holder = (ForecastAdapter.ViewHolder) views[1].getTag();
+        assertEquals(Utility.formatTemperature(mContext, 21.5, true),
+                holder.highTempView.getText().toString());
+
+        long snapshot = 0;
+        long lookups = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            bindAll(adapter, cursor, views, false);
+            long middle = System.nanoTime();
+            bindAll(adapter, cursor, views, true);
+            long end = System.nanoTime();
+            snapshot += middle - start;
+            lookups += end - middle;
+        }
+        long binds = (long) ITERATIONS * ROWS;
+        Log.d(LOG_TAG, "bindView: " + snapshot / binds + "ns a row with the snapshot, "
+                + lookups / binds + "ns with the old lookups");
+        cursor.close();
+    }
+
+    private void bindAll(ForecastAdapter adapter, MatrixCursor cursor, View[] views,
+                         boolean oldLookups) {
+        for (int i = 0; i < ROWS; i++) {
+            cursor.moveToPosition(i);
+            adapter.bindView(views[i], mContext, cursor);
+            if (oldLookups) {
+                // One for the unused isMetric local, one per formatTemperature
+                readUnits(mContext);
+                readUnits(mContext);
+                readUnits(mContext);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.android.sunshine.app;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/*
+    Checks SunLog's level gating and ring buffer, and counts what the old hot-path logging
+    allocated against SunLog with logcat off, with and without the ring.  The counts are
+    logged under the TestSunLog tag.
+ */
+public class TestSunLog extends AndroidTestCase {
+    private static final String LOG_TAG = TestSunLog.class.getSimpleName();
+
+    private static final int ITERATIONS = 10000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SunLog.clearRing();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SunLog.setRingLevel(SunLog.DEFAULT_LEVEL);
+        SunLog.setLogcatLevel(SunLog.DEFAULT_LEVEL);
+        SunLog.clearRing();
+        super.tearDown();
+    }
+
+    private static String dump() throws IOException {
+        StringWriter writer = new StringWriter();
+        SunLog.dump(writer);
+        return writer.toString();
+    }
+
+    public void testRingKeepsTheNewestRecords() throws IOException {
+        SunLog.setLogcatLevel(SunLog.OFF);
+        SunLog.setRingLevel(SunLog.DEBUG);
+        for (int i = 0; i < SunLog.RING_CAPACITY + 10; i++) {
+            SunLog.d(LOG_TAG, "tick", "i", i);
+        }
+        SunLog.w(LOG_TAG, "last", "setting", "94043", new IOException("boom"));
+
+        assertEquals(SunLog.RING_CAPACITY, SunLog.getRingSize());
+        String[] lines = dump().split("\n");
+        assertEquals(SunLog.RING_CAPACITY, lines.length);
+        assertTrue(lines[0], lines[0].endsWith(" D/TestSunLog: tick i=11"));
+        assertTrue(lines[lines.length - 1], lines[lines.length - 1]
+                .endsWith(" W/TestSunLog: last setting=94043 error=java.io.IOException: boom"));
+    }
+
+    public void testLevels() throws IOException {
+        SunLog.setLogcatLevel(SunLog.OFF);
+        SunLog.setRingLevel(SunLog.INFO);
+        assertFalse(SunLog.isLoggable(SunLog.DEBUG));
+        assertTrue(SunLog.isLoggable(SunLog.WARN));
+        SunLog.d(LOG_TAG, "dropped", "a", "x", "b", 2);
+        SunLog.i(LOG_TAG, "kept", "a", "x");
+        assertEquals(1, SunLog.getRingSize());
+        assertTrue(dump().contains("I/TestSunLog: kept a=x"));
+
+        SunLog.setRingLevel(SunLog.OFF);
+        assertFalse(SunLog.isLoggable(SunLog.ERROR));
+    }
+
+    /**
+     * @return objects allocated by this thread while running {@code work}.
+     */
+    @SuppressWarnings("deprecation")
+    private static int countAllocations(Runnable work) {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        work.run();
+        int count = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        return count;
+    }
+
+    public void testDisabledLoggingAllocatesNothing() {
+        final String location = "94043";
+        // What the per-day logging in getWeatherDataFromJson used to do.  The message is
+        // built whether or not anyone reads it.
+        int before = countAllocations(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; i < ITERATIONS; i++) {
+                    Log.d(LOG_TAG, "dateTime: " + (1465243200000L + i) + " for " + location);
+                }
+            }
+        });
+
+        SunLog.setLogcatLevel(SunLog.OFF);
+        SunLog.setRingLevel(SunLog.OFF);
+        int off = countAllocations(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; i < ITERATIONS; i++) {
+                    SunLog.d(LOG_TAG, "day", "location", location, "date", 1465243200000L + i);
+                }
+            }
+        });
+
+        SunLog.setRingLevel(SunLog.DEBUG);
+        int ring = countAllocations(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; i < ITERATIONS; i++) {
+                    SunLog.d(LOG_TAG, "day", "location", location, "date", 1465243200000L + i);
+                }
+            }
+        });
+
+        Log.d(LOG_TAG, ITERATIONS + " log calls allocated: string building " + before
+                + ", SunLog off " + off + ", SunLog to the ring " + ring);
+        assertTrue("The baseline didn't allocate", before >= ITERATIONS);
+        assertEquals(0, off);
+        assertEquals(0, ring);
+    }
+}
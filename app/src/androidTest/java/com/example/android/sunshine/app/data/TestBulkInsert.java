@@ -0,0 +1,143 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that WeatherBulkInserter stores rows the way SQLiteDatabase.insert did, then inserts
+    100k rows, in transactions of a thousand like a large sync, with the old per-row insert and
+    with the inserter.  Rows per second for both are logged under the TestBulkInsert tag.
+ */
+public class TestBulkInsert extends AndroidTestCase {
+    private static final String LOG_TAG = TestBulkInsert.class.getSimpleName();
+
+    private static final int LOCATIONS = 100;
+    private static final int DAYS = 1000;
+    private static final int ROWS_PER_TRANSACTION = 1000;
+    private static final long DAY_IN_MILLIS = 24L * 60 * 60 * 1000;
+
+    private WeatherDbHelper mHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mHelper = new WeatherDbHelper(mContext);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testMatchesInsert() {
+        long locationId = mDb.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        long midnight = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        ContentValues expected = TestUtilities.createWeatherValues(locationId);
+        expected.put(WeatherEntry.COLUMN_DATE, midnight);
+        ContentValues noon = new ContentValues(expected);
+        // Has to be normalized to the start of the day
+        noon.put(WeatherEntry.COLUMN_DATE, midnight + DAY_IN_MILLIS / 2);
+        ContentValues missingColumn = TestUtilities.createWeatherValues(locationId);
+        missingColumn.remove(WeatherEntry.COLUMN_SHORT_DESC);
+        missingColumn.put(WeatherEntry.COLUMN_DATE, midnight + DAY_IN_MILLIS);
+
+        WeatherBulkInserter inserter = new WeatherBulkInserter(mDb);
+        try {
+            assertEquals(WeatherContract.normalizeDate(TestUtilities.TEST_DATE + 1234),
+                    inserter.normalizeDate(TestUtilities.TEST_DATE + 1234));
+            assertEquals("A row without a required column isn't counted", 1,
+                    inserter.insert(new ContentValues[]{noon, missingColumn}));
+        } finally {
+            inserter.close();
+        }
+
+        Cursor cursor = mDb.query(WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+        TestUtilities.validateCursor("Inserted row doesn't match", cursor, expected);
+        assertEquals("fetched_at took its default", 0, DatabaseUtils.longForQuery(mDb,
+                "SELECT " + WeatherEntry.COLUMN_FETCHED_AT + " FROM " + WeatherEntry.TABLE_NAME,
+                null));
+    }
+
+    public void testThroughput() {
+        long[] locationIds = new long[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(70000 + i));
+            locationIds[i] = mDb.insert(LocationEntry.TABLE_NAME, null, location);
+        }
+
+        long before = insertAll(locationIds, false);
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        long after = insertAll(locationIds, true);
+
+        long rows = (long) LOCATIONS * DAYS;
+        Log.d(LOG_TAG, rows + " rows: " + rows * 1000000000L / before + " rows/s with "
+                + "insert, " + rows * 1000000000L / after + " rows/s with the bulk inserter");
+        assertEquals(rows, DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+    }
+
+    /**
+     * @return nanoseconds spent inserting, not counting building the values.
+     */
+    private long insertAll(long[] locationIds, boolean bulk) {
+        long elapsed = 0;
+        ContentValues[] batch = new ContentValues[ROWS_PER_TRANSACTION];
+        int filled = 0;
+        for (long locationId : locationIds) {
+            for (int day = 0; day < DAYS; day++) {
+                ContentValues values = TestUtilities.createWeatherValues(locationId);
+                values.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + day * DAY_IN_MILLIS);
+                values.put(WeatherEntry.COLUMN_FETCHED_AT, 1L);
+                batch[filled++] = values;
+                if (filled == batch.length) {
+                    long start = System.nanoTime();
+                    assertEquals(batch.length, bulk ? insertBulk(batch) : insertEach(batch));
+                    elapsed += System.nanoTime() - start;
+                    filled = 0;
+                }
+            }
+        }
+        return elapsed;
+    }
+
+    private int insertBulk(ContentValues[] values) {
+        WeatherBulkInserter inserter = new WeatherBulkInserter(mDb);
+        try {
+            return inserter.insert(values);
+        } finally {
+            inserter.close();
+        }
+    }
+
+    // What WeatherProvider.bulkInsert did before the inserter
+    private int insertEach(ContentValues[] values) {
+        int count = 0;
+        mDb.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                value.put(WeatherEntry.COLUMN_DATE,
+                        WeatherContract.normalizeDate(value.getAsLong(WeatherEntry.COLUMN_DATE)));
+                if (mDb.insert(WeatherEntry.TABLE_NAME, null, value) != -1) {
+                    count++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.HttpTransport;
+import com.example.android.sunshine.app.sync.LocationSyncEngine;
+import com.example.android.sunshine.app.sync.ReplayResponder;
+import com.example.android.sunshine.app.sync.StandInServer;
+import com.example.android.sunshine.app.sync.SyncReport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Checks that the provider keeps the LocationIdCache current, and finds a location's setting
+    through it when queried by location id, and measures sync latency for 1 and 100 locations
+    with the cache and without it, where every location written costs a lookup query.  The
+    numbers are logged under the TestLocationIdCache tag.
+ */
+public class TestLocationIdCache extends AndroidTestCase {
+    private static final String LOG_TAG = TestLocationIdCache.class.getSimpleName();
+
+    private static final int ROUNDS = 5;
+
+    private final LocationIdCache mCache = LocationIdCache.getInstance();
+    private StandInServer mServer;
+    // Replaced every round, so every location is written again.
+    private volatile ReplayResponder mReplay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        mCache.setEnabled(true);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    public void testProviderKeepsCacheCurrent() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        long id = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values));
+        LocationIdCache.Entry entry = mCache.get(TestUtilities.TEST_LOCATION);
+        assertNotNull("An inserted location wasn't cached", entry);
+        assertEquals(id, entry.id);
+
+        ContentValues followed = new ContentValues();
+        followed.put(LocationEntry.COLUMN_FOLLOWED, 1);
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, followed, null, null);
+        assertNotNull("Following doesn't change the mapping",
+                mCache.get(TestUtilities.TEST_LOCATION));
+
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, renamed, null, null);
+        assertNull(mCache.get(TestUtilities.TEST_LOCATION));
+
+        mCache.put(TestUtilities.TEST_LOCATION, entry, mCache.getGeneration());
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertNull(mCache.get(TestUtilities.TEST_LOCATION));
+    }
+
+    public void testReadBeforeInvalidationIsDropped() {
+        long generation = mCache.getGeneration();
+        mCache.invalidateAll();
+        mCache.put("94043", new LocationIdCache.Entry(1, "Mountain View", 37.4, -122.1),
+                generation);
+        assertNull(mCache.get("94043"));
+
+        mCache.put("94043", new LocationIdCache.Entry(1, "Mountain View", 37.4, -122.1),
+                mCache.getGeneration());
+        assertEquals(1, mCache.get("94043").id);
+    }
+
+    public void testQueryByIdFindsTheSettingOnce() {
+        long id = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        assertEquals(TestUtilities.TEST_LOCATION, mCache.getSetting(id));
+
+        mCache.invalidateAll();
+        assertNull(mCache.getSetting(id));
+        mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationIdWithStartDate(id, 0), null, null, null, null)
+                .close();
+        assertEquals("The query read the location's row into the cache",
+                TestUtilities.TEST_LOCATION, mCache.getSetting(id));
+        assertEquals(id, mCache.get(TestUtilities.TEST_LOCATION).id);
+
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertNull(mCache.getSetting(id));
+    }
+
+    public void testSyncLatency() throws Exception {
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return mReplay.respond(request);
+            }
+        });
+        mServer.start();
+
+        for (int count : new int[]{1, 100}) {
+            List<String> settings = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                settings.add(Integer.toString(70000 + i));
+            }
+            mCache.setEnabled(true);
+            sync(settings, 0);
+
+            long[] without = measure(settings, false);
+            long[] with = measure(settings, true);
+            Log.d(LOG_TAG, String.format(Locale.US,
+                    "%d locations: sync %dms, writes %dms without the cache; "
+                            + "sync %dms, writes %dms with it",
+                    count, without[0] / ROUNDS, without[1] / ROUNDS,
+                    with[0] / ROUNDS, with[1] / ROUNDS));
+            deleteAllRecords();
+        }
+    }
+
+    /**
+     * @return total sync and write time over ROUNDS syncs of {@code settings}.
+     */
+    private long[] measure(List<String> settings, boolean cached) {
+        mCache.setEnabled(cached);
+        long[] totals = new long[2];
+        for (int round = 1; round <= ROUNDS; round++) {
+            long hits = mCache.getHitCount();
+            SyncReport report = sync(settings, round);
+            assertEquals(settings.size(), report.getSuccessCount());
+            totals[0] += report.getElapsedMillis();
+            totals[1] += report.getWriteMillis();
+            if (cached && round > 1) {
+                assertTrue("Nothing was resolved from the cache",
+                        mCache.getHitCount() - hits >= settings.size());
+            }
+        }
+        return totals;
+    }
+
+    private SyncReport sync(List<String> settings, int round) {
+        // A shorter forecast every other round, so every location changes upstream.
+        mReplay = ReplayResponder.generated(settings, round % 2 == 0 ? 14 : 13);
+        LocationSyncEngine engine = new LocationSyncEngine(mContext, new HttpTransport(),
+                mServer.getUrl("/data/2.5/forecast/daily?"));
+        return engine.sync(settings, new SyncResult());
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.TestUtilities.TestContentObserver;
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Writes weather for several locations through the provider's table URI and checks which
+    observers wake up: those on the locations and days written, as a forecast list's and a
+    detail view's cursors register, and not those on other locations or other days.
+ */
+public class TestNotificationScope extends AndroidTestCase {
+
+    private static final String[] SETTINGS = {"94043", "10001", "60601"};
+    private static final long DAY_IN_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1419033600000L);
+    // Time for a notification that shouldn't come to arrive anyway
+    private static final long SETTLE_MILLIS = 500;
+
+    private final long[] mLocationIds = new long[SETTINGS.length];
+    private final List<TestContentObserver> mObservers = new ArrayList<TestContentObserver>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        for (int i = 0; i < SETTINGS.length; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, SETTINGS[i]);
+            mLocationIds[i] = Long.parseLong(mContext.getContentResolver()
+                    .insert(LocationEntry.CONTENT_URI, location).getLastPathSegment());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (TestContentObserver observer : mObservers) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.mHT.quit();
+        }
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private ContentValues day(int location, int day) {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationIds[location]);
+        values.put(WeatherEntry.COLUMN_DATE, FIRST_DAY + day * DAY_IN_MILLIS);
+        return values;
+    }
+
+    // Like a forecast list's cursor
+    private TestContentObserver observeLocation(int location) {
+        return observe(WeatherEntry.buildWeatherLocation(SETTINGS[location]));
+    }
+
+    // Like a detail view's cursor
+    private TestContentObserver observeDay(int location, int day) {
+        return observe(WeatherEntry.buildWeatherLocationWithDate(SETTINGS[location],
+                FIRST_DAY + day * DAY_IN_MILLIS));
+    }
+
+    // Registered the way Cursor.setNotificationUri registers
+    private TestContentObserver observe(Uri uri) {
+        TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        mObservers.add(observer);
+        return observer;
+    }
+
+    private static void assertWoken(String message, TestContentObserver observer) {
+        long deadline = SystemClock.uptimeMillis() + 5000;
+        while (!observer.mContentChanged) {
+            assertTrue(message, SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+
+    private static void assertNotWoken(String message, TestContentObserver observer) {
+        SystemClock.sleep(SETTLE_MILLIS);
+        assertFalse(message, observer.mContentChanged);
+    }
+
+    public void testBulkInsertWakesWrittenLocations() {
+        TestContentObserver first = observeLocation(0);
+        TestContentObserver second = observeLocation(1);
+        TestContentObserver third = observeLocation(2);
+        TestContentObserver secondOtherDay = observeDay(1, 3);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{day(0, 0), day(0, 1), day(0, 2), day(1, 0)});
+
+        assertWoken("Several days of the first location", first);
+        assertWoken("One day of the second location", second);
+        assertNotWoken("A location that wasn't written", third);
+        assertNotWoken("A day that wasn't written, of a location with one", secondOtherDay);
+    }
+
+    public void testInsertWakesItsDay() {
+        TestContentObserver written = observeDay(0, 0);
+        TestContentObserver otherDay = observeDay(0, 1);
+        TestContentObserver otherLocation = observeDay(1, 0);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, day(0, 0));
+
+        assertWoken("The day inserted", written);
+        assertNotWoken("Another day", otherDay);
+        assertNotWoken("The same day of another location", otherLocation);
+    }
+
+    public void testUpdateAndDeleteWakeMatchingRows() {
+        mContext.getContentResolver().bulkInsert(
+                WeatherContract.buildNoNotifyUri(WeatherEntry.CONTENT_URI),
+                new ContentValues[]{day(0, 0), day(0, 1), day(1, 0), day(1, 1)});
+
+        TestContentObserver updated = observeLocation(1);
+        TestContentObserver notUpdated = observeLocation(0);
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        assertEquals(2, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(mLocationIds[1])}));
+        assertWoken("The updated location", updated);
+        assertNotWoken("The other location", notUpdated);
+
+        TestContentObserver deleted = observeDay(0, 1);
+        TestContentObserver kept = observeDay(0, 0);
+        assertEquals(1, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(FIRST_DAY + DAY_IN_MILLIS),
+                        Long.toString(mLocationIds[0])}));
+        assertWoken("The deleted day", deleted);
+        assertNotWoken("A day that stays", kept);
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Stores five years of weather for one location and pages through it, by location setting and
+    by location id, checking that the pages add up to the whole list in date order.  The
+    benchmark compares loading the whole history in one cursor, as the forecast list did, with
+    loading its first page, which is all the list holds until it's scrolled, and with paging
+    through all of it.  It logs the bytes each allocates, the native heap the cursors hold and
+    the time to the first rows under the TestPagedQueries tag, along with the size of the heap
+    snapshot the provider's result cache used to take of the whole history.
+ */
+public class TestPagedQueries extends AndroidTestCase {
+    private static final String LOG_TAG = TestPagedQueries.class.getSimpleName();
+
+    private static final String SETTING = "94043";
+    private static final int DAYS = 5 * 365 + 1;
+    private static final int PAGE_SIZE = 30;
+    private static final long DAY_IN_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1262304000000L);
+    private static final String BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private long mLocationId;
+    private QueryResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        try {
+            mCache = ((WeatherProvider) client.getLocalContentProvider()).getResultCache();
+        } finally {
+            client.release();
+        }
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, SETTING);
+        mLocationId = Long.parseLong(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, location).getLastPathSegment());
+        ContentValues[] days = new ContentValues[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            days[day] = TestUtilities.createWeatherValues(mLocationId);
+            days[day].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + day * DAY_IN_MILLIS);
+        }
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(
+                WeatherContract.buildNoNotifyUri(WeatherEntry.CONTENT_URI), days));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private Cursor query(Uri uri, String sortOrder) {
+        return mContext.getContentResolver().query(uri, null, null, null, sortOrder);
+    }
+
+    /**
+     * @return the dates of {@code cursor}'s rows, which it is closed after reading.
+     */
+    private static List<Long> readDates(Cursor cursor) {
+        List<Long> dates = new ArrayList<Long>();
+        try {
+            int date = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_DATE);
+            while (cursor.moveToNext()) {
+                dates.add(cursor.getLong(date));
+            }
+        } finally {
+            cursor.close();
+        }
+        return dates;
+    }
+
+    /**
+     * @return the dates of every page of {@code listUri}, each asked for in {@code sortOrder}.
+     */
+    private List<Long> readPages(Uri listUri, int limit, String sortOrder) {
+        List<Long> dates = new ArrayList<Long>();
+        long after = 0;
+        while (true) {
+            List<Long> page = readDates(query(WeatherEntry.buildPage(listUri, after, limit),
+                    sortOrder));
+            assertTrue("A page has no more rows than its limit", page.size() <= limit);
+            dates.addAll(page);
+            if (page.size() < limit) {
+                return dates;
+            }
+            after = page.get(page.size() - 1);
+        }
+    }
+
+    public void testPagesAddUpToTheList() {
+        long start = FIRST_DAY + 100 * DAY_IN_MILLIS;
+        Uri bySetting = WeatherEntry.buildWeatherLocationWithStartDate(SETTING, start);
+        Uri byId = WeatherEntry.buildWeatherLocationIdWithStartDate(mLocationId, start);
+        List<Long> whole = readDates(query(bySetting, BY_DATE));
+        assertEquals(DAYS - 100, whole.size());
+
+        assertEquals(whole, readPages(bySetting, 100, BY_DATE));
+        assertEquals(whole, readPages(byId, 100, BY_DATE));
+        assertEquals("Pages are in date order whatever the sort order",
+                whole, readPages(bySetting, 100, WeatherEntry.COLUMN_DATE + " DESC"));
+
+        String sql = WeatherProvider.buildQuery(
+                WeatherEntry.buildPage(bySetting, start, 100), null, null, BY_DATE);
+        assertTrue(sql, sql.contains("LIMIT 100"));
+        assertFalse("Pages are found by date, not skipped to: " + sql, sql.contains("OFFSET"));
+    }
+
+    public void testMemoryBenchmark() {
+        Uri history = WeatherEntry.buildWeatherLocationWithStartDate(SETTING, FIRST_DAY);
+        // Warm up the provider, SQLite's page cache and the JIT
+        readDates(query(history, BY_DATE));
+        readPages(history, PAGE_SIZE, BY_DATE);
+
+        Load whole = new Load();
+        Cursor cursor = query(history, BY_DATE);
+        whole.firstRows(cursor);
+        readToEnd(cursor);
+        whole.done();
+        cursor.moveToPosition(-1);
+        long snapshotBytes = QueryResultCache.Snapshot.of(cursor).bytes;
+        cursor.close();
+
+        // Pages are short enough for the result cache; make them come from SQLite too
+        mCache.invalidateAll();
+        Load firstPage = new Load();
+        cursor = query(WeatherEntry.buildPage(history, 0, PAGE_SIZE), BY_DATE);
+        firstPage.firstRows(cursor);
+        readToEnd(cursor);
+        firstPage.done();
+        cursor.close();
+
+        mCache.invalidateAll();
+        Load allPages = new Load();
+        List<Cursor> pages = new ArrayList<Cursor>();
+        long after = 0;
+        do {
+            cursor = query(WeatherEntry.buildPage(history, after, PAGE_SIZE), BY_DATE);
+            if (pages.isEmpty()) {
+                allPages.firstRows(cursor);
+            }
+            pages.add(cursor);
+            after = readToEnd(cursor);
+        } while (cursor.getCount() == PAGE_SIZE);
+        allPages.done();
+        for (Cursor page : pages) {
+            page.close();
+        }
+
+        Log.d(LOG_TAG, DAYS + " days of history: whole " + whole + ", first page " + firstPage
+                + ", " + pages.size() + " pages " + allPages + "; a heap snapshot of the whole"
+                + " history is " + snapshotBytes + " bytes");
+        assertEquals(DAYS / PAGE_SIZE + 1, pages.size());
+        assertTrue("The first page allocates less than the whole history",
+                firstPage.allocatedBytes < whole.allocatedBytes);
+    }
+
+    /**
+     * @return the date of {@code cursor}'s last row, read through all of them as a list
+     * scrolled to its end binds them.
+     */
+    private static long readToEnd(Cursor cursor) {
+        int date = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_DATE);
+        int max = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_MAX_TEMP);
+        long last = 0;
+        while (cursor.moveToNext()) {
+            last = cursor.getLong(date);
+            cursor.getDouble(max);
+        }
+        return last;
+    }
+
+    /**
+     * What one way of loading rows cost, from its construction to {@link #done}, with the
+     * cursors it loaded still open.
+     */
+    @SuppressWarnings("deprecation")
+    private static class Load {
+        final long start;
+        final long nativeBefore;
+        long firstRowsNanos;
+        long allocatedBytes;
+        long nativeBytes;
+
+        Load() {
+            Runtime.getRuntime().gc();
+            nativeBefore = Debug.getNativeHeapAllocatedSize();
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            start = System.nanoTime();
+        }
+
+        void firstRows(Cursor cursor) {
+            cursor.moveToFirst();
+            firstRowsNanos = System.nanoTime() - start;
+            cursor.moveToPosition(-1);
+        }
+
+        void done() {
+            Debug.stopAllocCounting();
+            allocatedBytes = Debug.getThreadAllocSize();
+            nativeBytes = Debug.getNativeHeapAllocatedSize() - nativeBefore;
+        }
+
+        @Override
+        public String toString() {
+            return allocatedBytes + " bytes allocated, " + nativeBytes + " native, first rows in "
+                    + firstRowsNanos / 1000 + "us";
+        }
+    }
+}
@@ -155,6 +155,13 @@ public class TestProvider extends AndroidTestCase {
         assertEquals("Error: the WeatherEntry CONTENT_URI with location and date should return WeatherEntry.CONTENT_ITEM_TYPE",
                 WeatherEntry.CONTENT_ITEM_TYPE, type);
 
+        // content://com.example.android.sunshine.app/location/10/weather?date=1419120000
+        type = mContext.getContentResolver().getType(
+                WeatherEntry.buildWeatherLocationIdWithStartDate(10L, testDate));
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/weather
+        assertEquals("Error: the WeatherEntry CONTENT_URI with location id should return WeatherEntry.CONTENT_TYPE",
+                WeatherEntry.CONTENT_TYPE, type);
+
         // content://com.example.android.sunshine.app/location/
         type = mContext.getContentResolver().getType(LocationEntry.CONTENT_URI);
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
@@ -391,6 +398,18 @@ public class TestProvider extends AndroidTestCase {
         );
         TestUtilities.validateCursor("testInsertReadProvider.  Error validating joined Weather and Location data for a specific date.",
                 weatherCursor, weatherValues);
+
+        // Get the same data by the location's row id rather than its setting
+        weatherCursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationIdWithStartDate(
+                        locationRowId, TestUtilities.TEST_DATE),
+                null,
+                null,
+                null,
+                null
+        );
+        TestUtilities.validateCursor("testInsertReadProvider.  Error validating joined Weather and Location data by location id.",
+                weatherCursor, weatherValues);
     }
 
     // Make sure we can still delete after adding/updating stuff
@@ -0,0 +1,340 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the SQL WeatherProvider builds for every UriMatcher route, with
+    the selections the app uses on it, and fails if a plan scans a whole table, even through
+    an index, or sorts in a temporary b-tree.  Reading a whole table on purpose, e.g. every
+    location, isn't listed.
+
+    The benchmark fills two databases with 1k locations by 365 days, one with the current
+    schema and one where the weather table's UNIQUE constraint has its old column order, and
+    times the provider's queries on each.  A second one times the forecast list by location
+    setting, which joins and matches the setting, against the list by location id, with and
+    without the list's location columns, at 100 and 1k locations.  The results are logged under
+    the TestQueryPlan tag.
+ */
+public class TestQueryPlan extends AndroidTestCase {
+    private static final String LOG_TAG = TestQueryPlan.class.getSimpleName();
+
+    private static final int[] ROUTES = {WeatherProvider.WEATHER,
+            WeatherProvider.WEATHER_WITH_LOCATION, WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE,
+            WeatherProvider.WEATHER_WITH_LOCATION_ID, WeatherProvider.LOCATION,
+            WeatherProvider.FETCH_STATE};
+
+    // The columns ForecastFragment's list had, the location's included, and the weather
+    // columns it has now
+    private static final String[] LIST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID, WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC, WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP, LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID, LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG};
+    private static final String[] LIST_WEATHER_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID, WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC, WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP, WeatherEntry.COLUMN_WEATHER_ID};
+    private static final int[] LIST_BENCHMARK_LOCATIONS = {100, 1000};
+
+    private static final int LOCATIONS = 1000;
+    private static final int DAYS = 365;
+    private static final int QUERIES = 50;
+    private static final long DAY_IN_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1419033600000L);
+
+    private static final String NEW_UNIQUE =
+            "UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ")";
+    private static final String OLD_UNIQUE =
+            "UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_LOC_KEY + ")";
+
+    private final List<File> mFiles = new ArrayList<File>();
+    private SQLiteDatabase mDb;
+
+    /**
+     * A query as the app makes it.
+     */
+    private static class RouteQuery {
+        final String name;
+        final Uri uri;
+        final String selection;
+        final String[] selectionArgs;
+        final String sortOrder;
+
+        RouteQuery(String name, Uri uri, String selection, String[] selectionArgs,
+                   String sortOrder) {
+            this.name = name;
+            this.uri = uri;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+            this.sortOrder = sortOrder;
+        }
+
+        String sql() {
+            return WeatherProvider.buildQuery(uri, null, selection, sortOrder);
+        }
+
+        String[] args() {
+            return WeatherProvider.buildSelectionArgs(uri, selectionArgs);
+        }
+    }
+
+    private static List<RouteQuery> routeQueries(String setting, long locationId, long date) {
+        String byDate = WeatherEntry.COLUMN_DATE + " ASC";
+        String day = Long.toString(date);
+        List<RouteQuery> queries = new ArrayList<RouteQuery>();
+        queries.add(new RouteQuery("forecast list",
+                WeatherEntry.buildWeatherLocationWithStartDate(setting, date), null, null,
+                byDate));
+        queries.add(new RouteQuery("forecast list by location id",
+                WeatherEntry.buildWeatherLocationIdWithStartDate(locationId, date), null, null,
+                byDate));
+        queries.add(new RouteQuery("forecast page",
+                WeatherEntry.buildPage(WeatherEntry.buildWeatherLocationWithStartDate(setting,
+                        date), date + 6 * DAY_IN_MILLIS, 30), null, null, byDate));
+        queries.add(new RouteQuery("forecast page by location id",
+                WeatherEntry.buildPage(WeatherEntry.buildWeatherLocationIdWithStartDate(
+                        locationId, date), date + 6 * DAY_IN_MILLIS, 30), null, null, byDate));
+        queries.add(new RouteQuery("whole location",
+                WeatherEntry.buildWeatherLocation(setting), null, null, byDate));
+        queries.add(new RouteQuery("detail",
+                WeatherEntry.buildWeatherLocationWithDate(setting, date), null, null, null));
+        queries.add(new RouteQuery("stored horizon", WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " >= ?", new String[]{day}, null));
+        queries.add(new RouteQuery("refreshed days", WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE
+                        + " BETWEEN ? AND ?",
+                new String[]{Long.toString(locationId), day,
+                        Long.toString(date + 13 * DAY_IN_MILLIS)}, null));
+        queries.add(new RouteQuery("location by setting", LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{setting}, null));
+        queries.add(new RouteQuery("fetch state by setting", FetchStateEntry.CONTENT_URI,
+                FetchStateEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{setting}, null));
+        return queries;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mDb != null) {
+            mDb.close();
+        }
+        for (File file : mFiles) {
+            SQLiteDatabase.deleteDatabase(file);
+        }
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testEveryRouteIsChecked() {
+        UriMatcher matcher = WeatherProvider.buildUriMatcher();
+        Set<Integer> checked = new HashSet<Integer>();
+        for (RouteQuery query : routeQueries("94043", 1, FIRST_DAY)) {
+            checked.add(matcher.match(query.uri));
+        }
+        for (int route : ROUTES) {
+            assertTrue("Route " + route + " has no query plan check", checked.contains(route));
+        }
+    }
+
+    public void testNoFullScans() {
+        mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+        // Some rows, so the planner doesn't treat the tables as empty.
+        fill(mDb, 20, 30);
+        for (RouteQuery query : routeQueries("70001", 2, FIRST_DAY + 5 * DAY_IN_MILLIS)) {
+            String plan = explain(mDb, query);
+            Log.d(LOG_TAG, query.name + ": " + plan);
+            for (String step : plan.split("\n")) {
+                assertFalse(query.name + " scans a table: " + plan, isFullScan(step));
+                assertFalse(query.name + " sorts its results: " + plan,
+                        step.contains("TEMP B-TREE"));
+            }
+        }
+    }
+
+    // SEARCH is a lookup; SCAN visits every row, even in index order
+    private static boolean isFullScan(String step) {
+        return step.startsWith("SCAN") && !step.contains("CONSTANT ROW");
+    }
+
+    private static String explain(SQLiteDatabase db, RouteQuery query) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query.sql(), query.args());
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(plan.length() == 0 ? "" : "\n").append(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    public void testBenchmark() {
+        SQLiteDatabase current = openCopy("current", null);
+        SQLiteDatabase old = openCopy("old", OLD_UNIQUE);
+        try {
+            fill(current, LOCATIONS, DAYS);
+            fill(old, LOCATIONS, DAYS);
+            List<RouteQuery> names = routeQueries("70000", 1, FIRST_DAY);
+            for (int q = 0; q < names.size(); q++) {
+                long currentNanos = time(current, q);
+                long oldNanos = time(old, q);
+                Log.d(LOG_TAG, names.get(q).name + ": " + currentNanos / QUERIES / 1000
+                        + "us a query, " + oldNanos / QUERIES / 1000
+                        + "us with the old unique constraint");
+            }
+        } finally {
+            current.close();
+            old.close();
+        }
+    }
+
+    public void testLocationIdBenchmark() {
+        for (int locations : LIST_BENCHMARK_LOCATIONS) {
+            SQLiteDatabase db = openCopy("location_id_" + locations, null);
+            try {
+                fill(db, locations, DAYS);
+                long bySetting = timeList(db, locations, false, LIST_COLUMNS);
+                long byId = timeList(db, locations, true, LIST_COLUMNS);
+                long byIdWeatherOnly = timeList(db, locations, true, LIST_WEATHER_COLUMNS);
+                Log.d(LOG_TAG, "Forecast list of " + locations + " locations by " + DAYS
+                        + " days: " + bySetting / QUERIES / 1000 + "us by setting, "
+                        + byId / QUERIES / 1000 + "us by location id, "
+                        + byIdWeatherOnly / QUERIES / 1000
+                        + "us by location id without location columns");
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * @return nanoseconds for QUERIES forecast lists of random locations from random days,
+     * read to the end.  The same locations and days either way.
+     */
+    private static long timeList(SQLiteDatabase db, int locations, boolean byId,
+                                 String[] projection) {
+        Random random = new Random(locations);
+        long elapsed = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            int location = random.nextInt(locations);
+            long date = FIRST_DAY + random.nextInt(DAYS - 14) * DAY_IN_MILLIS;
+            Uri uri = byId
+                    ? WeatherEntry.buildWeatherLocationIdWithStartDate(location + 1, date)
+                    : WeatherEntry.buildWeatherLocationWithStartDate(
+                            Integer.toString(70000 + location), date);
+            long start = System.nanoTime();
+            Cursor cursor = db.rawQuery(WeatherProvider.buildQuery(uri, projection, null,
+                    WeatherEntry.COLUMN_DATE + " ASC"),
+                    WeatherProvider.buildSelectionArgs(uri, null));
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(1);
+                rows++;
+            }
+            cursor.close();
+            elapsed += System.nanoTime() - start;
+            assertEquals(DAYS - (int) ((date - FIRST_DAY) / DAY_IN_MILLIS), rows);
+        }
+        return elapsed;
+    }
+
+    /**
+     * @return a database with the app's tables, with {@code unique} in place of the weather
+     * table's UNIQUE constraint unless it is null.
+     */
+    private SQLiteDatabase openCopy(String name, String unique) {
+        SQLiteDatabase schema = new WeatherDbHelper(mContext).getWritableDatabase();
+        File file = new File(mContext.getCacheDir(), "query_plan_" + name + ".db");
+        SQLiteDatabase.deleteDatabase(file);
+        mFiles.add(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        Cursor cursor = schema.rawQuery("SELECT name, sql FROM sqlite_master WHERE sql NOT NULL"
+                + " AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        try {
+            while (cursor.moveToNext()) {
+                String sql = cursor.getString(1);
+                if (unique != null && cursor.getString(0).equals(WeatherEntry.TABLE_NAME)) {
+                    assertTrue(sql, sql.contains(NEW_UNIQUE));
+                    sql = sql.replace(NEW_UNIQUE, unique);
+                }
+                db.execSQL(sql);
+            }
+        } finally {
+            cursor.close();
+            schema.close();
+        }
+        return db;
+    }
+
+    private static void fill(SQLiteDatabase db, int locations, int days) {
+        Random random = new Random(locations);
+        for (int i = 0; i < locations; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(70000 + i));
+            long locationId = db.insert(LocationEntry.TABLE_NAME, null, location);
+            ContentValues state = new ContentValues();
+            state.put(FetchStateEntry.COLUMN_LOCATION_SETTING, Integer.toString(70000 + i));
+            state.put(FetchStateEntry.COLUMN_FETCHED_AT, 1L);
+            db.insert(FetchStateEntry.TABLE_NAME, null, state);
+
+            ContentValues[] rows = new ContentValues[days];
+            for (int day = 0; day < days; day++) {
+                rows[day] = TestUtilities.createWeatherValues(locationId);
+                rows[day].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + day * DAY_IN_MILLIS);
+                rows[day].put(WeatherEntry.COLUMN_MAX_TEMP, random.nextInt(40));
+            }
+            WeatherBulkInserter inserter = new WeatherBulkInserter(db);
+            try {
+                assertEquals(days, inserter.insert(rows));
+            } finally {
+                inserter.close();
+            }
+        }
+    }
+
+    /**
+     * @return nanoseconds for QUERIES runs of query {@code index}, each for a random location
+     * and day.
+     */
+    private static long time(SQLiteDatabase db, int index) {
+        Random random = new Random(index);
+        long elapsed = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            int location = random.nextInt(LOCATIONS);
+            long date = FIRST_DAY + random.nextInt(DAYS - 14) * DAY_IN_MILLIS;
+            RouteQuery query = routeQueries(Integer.toString(70000 + location), location + 1,
+                    date).get(index);
+            long start = System.nanoTime();
+            Cursor cursor = db.rawQuery(query.sql(), query.args());
+            cursor.getCount();
+            cursor.close();
+            elapsed += System.nanoTime() - start;
+        }
+        return elapsed;
+    }
+}
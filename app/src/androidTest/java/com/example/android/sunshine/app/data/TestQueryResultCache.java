@@ -0,0 +1,170 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that WeatherProvider answers repeated forecast list and detail queries from its
+    result cache, and that a write to one day drops only the results that include it.  The
+    benchmark loads the list and a detail of ten locations over and over, the way the
+    fragments do across configuration changes, through the provider and straight from SQLite
+    as the provider did before.  Times, the hit ratio and the cache's size are logged under
+    the TestQueryResultCache tag.
+ */
+public class TestQueryResultCache extends AndroidTestCase {
+    private static final String LOG_TAG = TestQueryResultCache.class.getSimpleName();
+
+    private static final int LOCATIONS = 10;
+    private static final int DAYS = 14;
+    private static final int ITERATIONS = 200;
+    private static final long DAY_IN_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1419033600000L);
+
+    private QueryResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        try {
+            mCache = ((WeatherProvider) client.getLocalContentProvider()).getResultCache();
+        } finally {
+            client.release();
+        }
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, setting(i));
+            long locationId = Long.parseLong(mContext.getContentResolver()
+                    .insert(LocationEntry.CONTENT_URI, location).getLastPathSegment());
+            ContentValues[] days = new ContentValues[DAYS];
+            for (int day = 0; day < DAYS; day++) {
+                days[day] = TestUtilities.createWeatherValues(locationId);
+                days[day].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + day * DAY_IN_MILLIS);
+            }
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private static String setting(int location) {
+        return Integer.toString(70000 + location);
+    }
+
+    private static Uri list(int location) {
+        return WeatherEntry.buildWeatherLocationWithStartDate(setting(location), FIRST_DAY);
+    }
+
+    private static Uri detail(int location, int day) {
+        return WeatherEntry.buildWeatherLocationWithDate(setting(location),
+                FIRST_DAY + day * DAY_IN_MILLIS);
+    }
+
+    /**
+     * @return the max temperature of every row, read the way an adapter reads them.
+     */
+    private String load(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        StringBuilder temperatures = new StringBuilder();
+        try {
+            int max = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_MAX_TEMP);
+            while (cursor.moveToNext()) {
+                temperatures.append(cursor.getDouble(max)).append(' ');
+            }
+        } finally {
+            cursor.close();
+        }
+        return temperatures.toString();
+    }
+
+    public void testHitsAndTargetedInvalidation() {
+        String firstList = load(list(0));
+        long hits = mCache.getHits();
+        assertEquals(firstList, load(list(0)));
+        assertEquals("A repeated list load is a hit", hits + 1, mCache.getHits());
+        String firstDetail = load(detail(0, 2));
+        load(list(1));
+        hits = mCache.getHits();
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_DATE + " = ? AND " + WeatherEntry.COLUMN_LOC_KEY
+                        + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " = ?)",
+                new String[]{Long.toString(FIRST_DAY + 5 * DAY_IN_MILLIS), setting(0)});
+
+        String updatedList = load(list(0));
+        assertFalse("The list includes the updated day", firstList.equals(updatedList));
+        assertTrue(updatedList.contains("99.0"));
+        assertEquals(hits, mCache.getHits());
+        assertEquals(firstDetail, load(detail(0, 2)));
+        load(list(1));
+        assertEquals("Another day's detail and another location's list were kept", hits + 2,
+                mCache.getHits());
+        assertTrue(mCache.getBytes() > 0);
+        Log.d(LOG_TAG, mCache.toString());
+    }
+
+    public void testBenchmark() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        long cached = 0;
+        long direct = 0;
+        long hits = mCache.getHits();
+        long misses = mCache.getMisses();
+        try {
+            for (int i = 0; i < ITERATIONS; i++) {
+                Uri[] uris = {list(i % LOCATIONS), detail(i % LOCATIONS, i % DAYS)};
+                for (Uri uri : uris) {
+                    long start = System.nanoTime();
+                    load(uri);
+                    long middle = System.nanoTime();
+                    Cursor cursor = db.rawQuery(
+                            WeatherProvider.buildQuery(uri, null, null,
+                                    WeatherEntry.COLUMN_DATE + " ASC"),
+                            WeatherProvider.buildSelectionArgs(uri, null));
+                    int max = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_MAX_TEMP);
+                    while (cursor.moveToNext()) {
+                        cursor.getDouble(max);
+                    }
+                    cursor.close();
+                    long end = System.nanoTime();
+                    cached += middle - start;
+                    direct += end - middle;
+                }
+            }
+        } finally {
+            db.close();
+        }
+        long lookups = mCache.getHits() - hits + mCache.getMisses() - misses;
+        double ratio = (double) (mCache.getHits() - hits) / lookups;
+        Log.d(LOG_TAG, "List and detail loads: " + cached / (2 * ITERATIONS) / 1000
+                + "us through the provider with the cache, " + direct / (2 * ITERATIONS) / 1000
+                + "us from SQLite; hit ratio " + ratio + ", " + mCache.getBytes() + " bytes in "
+                + mCache.size() + " results");
+        assertTrue(ratio > 0.5);
+    }
+}
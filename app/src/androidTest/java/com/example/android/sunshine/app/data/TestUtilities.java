@@ -106,7 +106,7 @@ public class TestUtilities extends AndroidTestCase {
      */
     static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
-        boolean mContentChanged;
+        volatile boolean mContentChanged;
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -0,0 +1,201 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Checks that WeatherDbHelper runs in WAL mode and that a query doesn't wait for an open write
+    transaction, then stresses it: a writer bulk-inserts two weeks for every location over and
+    over, the way a sync does, while reader threads query one location's forecast the way the
+    loaders do, through the helper's own database and its WAL connection pool.  Reader p50 and
+    p99 latencies are logged under the TestWalConcurrency tag.
+ */
+public class TestWalConcurrency extends AndroidTestCase {
+    private static final String LOG_TAG = TestWalConcurrency.class.getSimpleName();
+
+    private static final int LOCATIONS = 20;
+    private static final int DAYS = 14;
+    private static final int READERS = 3;
+    private static final long DURATION_MILLIS = 3000;
+
+    private static final String FORECAST_QUERY = "SELECT * FROM " + WeatherEntry.TABLE_NAME
+            + " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ? ORDER BY "
+            + WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherDbHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testJournalMode() {
+        mHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)
+                .toLowerCase());
+        assertEquals(WeatherDbHelper.DEFAULT_AUTO_CHECKPOINT_PAGES,
+                DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null));
+    }
+
+    public void testQueryDoesNotWaitForWriter() throws Exception {
+        mHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        final long locationId = db.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        final SQLiteDatabase reader = mHelper.getReadableDatabase();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        db.beginTransaction();
+        try {
+            db.insert(WeatherEntry.TABLE_NAME, null,
+                    TestUtilities.createWeatherValues(locationId));
+            Future<Integer> rows = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return countForecast(reader, locationId);
+                }
+            });
+            assertEquals("The query saw an uncommitted row", 0,
+                    (int) rows.get(1, TimeUnit.SECONDS));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            executor.shutdown();
+        }
+        assertEquals(1, countForecast(reader, locationId));
+    }
+
+    public void testReaderLatencyUnderWrites() throws Exception {
+        long[] latencies = stress();
+
+        Log.d(LOG_TAG, "Reader latency under writes: " + describe(latencies));
+        assertTrue(latencies.length > 0);
+    }
+
+    private static int countForecast(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.rawQuery(FORECAST_QUERY, new String[]{Long.toString(locationId)});
+        try {
+            // Fills the window, so the whole query is timed
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the latency of every reader query, in nanoseconds, sorted.
+     */
+    private long[] stress() throws Exception {
+        mHelper = new WeatherDbHelper(mContext);
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        final long[] locationIds = new long[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, Integer.toString(70000 + i));
+            locationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, location);
+        }
+        writeForecasts(db, locationIds);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        Future<Integer> writer = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int transactions = 0;
+                while (!done.get()) {
+                    writeForecasts(db, locationIds);
+                    transactions++;
+                }
+                return transactions;
+            }
+        });
+        List<Future<List<Long>>> readers = new ArrayList<Future<List<Long>>>();
+        for (int r = 0; r < READERS; r++) {
+            final int first = r;
+            readers.add(executor.submit(new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() {
+                    List<Long> latencies = new ArrayList<Long>();
+                    for (int i = first; !done.get(); i++) {
+                        long start = System.nanoTime();
+                        countForecast(mHelper.getReadableDatabase(), locationIds[i % LOCATIONS]);
+                        latencies.add(System.nanoTime() - start);
+                    }
+                    return latencies;
+                }
+            }));
+        }
+
+        Thread.sleep(DURATION_MILLIS);
+        done.set(true);
+        executor.shutdown();
+        assertTrue(writer.get() > 0);
+        List<Long> all = new ArrayList<Long>();
+        for (Future<List<Long>> reader : readers) {
+            all.addAll(reader.get());
+        }
+        long[] latencies = new long[all.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = all.get(i);
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    // One sync's worth of rows in one transaction, like WeatherProvider.bulkInsert
+    private static void writeForecasts(SQLiteDatabase db, long[] locationIds) {
+        db.beginTransaction();
+        try {
+            for (long locationId : locationIds) {
+                for (int day = 0; day < DAYS; day++) {
+                    ContentValues values = TestUtilities.createWeatherValues(locationId);
+                    values.put(WeatherEntry.COLUMN_DATE,
+                            values.getAsLong(WeatherEntry.COLUMN_DATE) + day);
+                    db.insert(WeatherEntry.TABLE_NAME, null, values);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String describe(long[] sorted) {
+        return sorted.length + " queries, p50 " + percentile(sorted, 50) / 1000 + "us, p99 "
+                + percentile(sorted, 99) / 1000 + "us, max " + sorted[sorted.length - 1] / 1000
+                + "us";
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+
+/*
+    A Responder that wraps another one and injects faults in front of it, either from a script
+    (the next N requests fail in a given way) or at random with a fixed rate and seed, so a
+    flaky upstream can be replayed exactly.
+ */
+public class FaultInjector implements StandInServer.Responder {
+
+    public enum Fault {
+        NONE,
+        // Connection closed without a response
+        DROP,
+        // 500 Internal Server Error
+        SERVER_ERROR,
+        // 503 Service Unavailable with Retry-After: 0
+        UNAVAILABLE,
+        // 429 Too Many Requests with a Retry-After far beyond any retry budget
+        RATE_LIMITED,
+        // 200 with only half of the body
+        TRUNCATED,
+        // 200 with a body that isn't a forecast
+        GARBAGE
+    }
+
+    private static final Fault[] RANDOM_FAULTS = {
+            Fault.DROP, Fault.SERVER_ERROR, Fault.UNAVAILABLE, Fault.TRUNCATED
+    };
+
+    private final StandInServer.Responder mHealthy;
+    private final Queue<Fault> mScript = new ArrayDeque<Fault>();
+    private final Random mRandom;
+    private final double mFaultRate;
+    private int mFaultsInjected;
+
+    public FaultInjector(StandInServer.Responder healthy) {
+        this(healthy, 0, 0);
+    }
+
+    /**
+     * @param faultRate fraction of unscripted requests that get a random fault.
+     */
+    public FaultInjector(StandInServer.Responder healthy, double faultRate, long seed) {
+        mHealthy = healthy;
+        mFaultRate = faultRate;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Makes the next {@code count} requests fail with {@code fault}, after whatever is
+     * already scripted.
+     */
+    public synchronized FaultInjector then(Fault fault, int count) {
+        for (int i = 0; i < count; i++) {
+            mScript.add(fault);
+        }
+        return this;
+    }
+
+    public synchronized int getFaultsInjected() {
+        return mFaultsInjected;
+    }
+
+    @Override
+    public StandInServer.Response respond(StandInServer.Request request) {
+        Fault fault;
+        synchronized (this) {
+            fault = mScript.poll();
+            if (fault == null) {
+                fault = mRandom.nextDouble() < mFaultRate
+                        ? RANDOM_FAULTS[mRandom.nextInt(RANDOM_FAULTS.length)] : Fault.NONE;
+            }
+            if (fault != Fault.NONE) {
+                mFaultsInjected++;
+            }
+        }
+        switch (fault) {
+            case DROP:
+                return StandInServer.Response.drop();
+            case SERVER_ERROR:
+                return StandInServer.Response.status(500);
+            case UNAVAILABLE:
+                return StandInServer.Response.status(503).header("Retry-After", "0");
+            case RATE_LIMITED:
+                return StandInServer.Response.status(429).header("Retry-After", "3600");
+            case TRUNCATED: {
+                StandInServer.Response response = mHealthy.respond(request);
+                return response.truncate(response.body.length / 2);
+            }
+            case GARBAGE:
+                return StandInServer.Response.ok("{\"cod\":\"200\",\"list\":\"nope\"}");
+            default:
+                return mHealthy.respond(request);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Locale;
+import java.util.Map;
+
+/*
+    Recorded OpenWeatherMap daily forecast responses, used by the sync tests and benchmarks.
+    The long responses are generated from the shape of a real /forecast/daily reply so that
+    any number of days or cities can be produced deterministically.
+ */
+public class ForecastFixtures {
+
+    // A real 2-day reply for Mountain View, trimmed of nothing.  Note that "city" comes first.
+    static final String MOUNTAIN_VIEW_2_DAYS =
+            "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847," +
+            "\"lat\":37.386051},\"country\":\"US\",\"population\":0},\"cod\":\"200\"," +
+            "\"message\":0.0146,\"cnt\":2,\"list\":[" +
+            "{\"dt\":1465243200,\"temp\":{\"day\":24.87,\"min\":12.93,\"max\":25.16," +
+            "\"night\":12.93,\"eve\":22.13,\"morn\":14.34},\"pressure\":1003.86,\"humidity\":55," +
+            "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\"," +
+            "\"icon\":\"01d\"}],\"speed\":2.36,\"deg\":314,\"clouds\":0}," +
+            "{\"dt\":1465329600,\"temp\":{\"day\":23.27,\"min\":12.11,\"max\":23.84," +
+            "\"night\":12.11,\"eve\":20.48,\"morn\":14.02},\"pressure\":1004.62,\"humidity\":57," +
+            "\"weather\":[{\"id\":801,\"main\":\"Clouds\",\"description\":\"few clouds\"," +
+            "\"icon\":\"02d\"}],\"speed\":2.51,\"deg\":316,\"clouds\":12}]}";
+
+    // Same data with "city" after "list", which OWM is free to do.
+    static final String MOUNTAIN_VIEW_2_DAYS_CITY_LAST =
+            "{\"cod\":\"200\",\"cnt\":2,\"list\":[" +
+            "{\"dt\":1465243200,\"temp\":{\"min\":12.93,\"max\":25.16},\"pressure\":1003.86," +
+            "\"humidity\":55,\"weather\":[{\"id\":800,\"main\":\"Clear\"}],\"speed\":2.36," +
+            "\"deg\":314}," +
+            "{\"dt\":1465329600,\"temp\":{\"min\":12.11,\"max\":23.84},\"pressure\":1004.62," +
+            "\"humidity\":57,\"weather\":[{\"id\":801,\"main\":\"Clouds\"}],\"speed\":2.51," +
+            "\"deg\":316}]," +
+            "\"city\":{\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847," +
+            "\"lat\":37.386051}}}";
+
+    private static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow", "Fog"};
+    private static final int[] WEATHER_IDS = {800, 802, 500, 600, 741};
+
+    /**
+     * Builds a reply in the /forecast/daily format with {@code days} entries.  Changing
+     * {@code seed} shifts every value, which is handy for simulating an updated forecast.
+     */
+    static String dailyForecast(String cityName, int days, int seed) {
+        StringBuilder sb = new StringBuilder(512 + days * 420);
+        sb.append("{\"city\":{\"id\":").append(5375480 + seed)
+          .append(",\"name\":\"").append(cityName).append("\",\"coord\":{\"lon\":")
+          .append(String.format(Locale.US, "%.6f", -122.08 + (cityName.hashCode() % 90)))
+          .append(",\"lat\":")
+          .append(String.format(Locale.US, "%.6f", 37.38 + (cityName.hashCode() % 45)))
+          .append("},\"country\":\"US\",\"population\":0},\"cod\":\"200\",")
+          .append("\"message\":0.0146,\"cnt\":").append(days).append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            int k = (i + seed) % DESCRIPTIONS.length;
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"dt\":").append(1465243200L + i * 86400L)
+              .append(",\"temp\":{\"day\":").append(fmt(20 + (i + seed) % 7))
+              .append(",\"min\":").append(fmt(10 + (i + seed) % 5))
+              .append(",\"max\":").append(fmt(22 + (i + seed) % 9))
+              .append(",\"night\":").append(fmt(11.5)).append(",\"eve\":").append(fmt(19.25))
+              .append(",\"morn\":").append(fmt(13.75))
+              .append("},\"pressure\":").append(fmt(1000 + (i * 3 + seed) % 20))
+              .append(",\"humidity\":").append(40 + (i + seed) % 50)
+              .append(",\"weather\":[{\"id\":").append(WEATHER_IDS[k])
+              .append(",\"main\":\"").append(DESCRIPTIONS[k])
+              .append("\",\"description\":\"").append(DESCRIPTIONS[k].toLowerCase(Locale.US))
+              .append("\",\"icon\":\"01d\"}],\"speed\":").append(fmt(1.5 + (i % 4)))
+              .append(",\"deg\":").append((i * 37 + seed) % 360)
+              .append(",\"clouds\":").append((i * 11) % 100).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /**
+     * Wraps single-location replies into a group reply, tagging each with its query.  The tag
+     * goes last, so the parser only learns which location a forecast is for at its end.
+     */
+    static String group(Map<String, String> forecastsByQuery) {
+        StringBuilder sb = new StringBuilder("{\"cnt\":").append(forecastsByQuery.size())
+                .append(",\"list\":[");
+        boolean first = true;
+        for (Map.Entry<String, String> forecast : forecastsByQuery.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            String body = forecast.getValue();
+            sb.append(body, 0, body.lastIndexOf('}'))
+              .append(",\"query\":\"").append(forecast.getKey()).append("\"}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static String fmt(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/*
+    A Responder that replays recorded forecast responses by location, the way OpenWeatherMap
+    would serve them: every recording gets an ETag, conditional requests for an unchanged
+    recording are answered 304, and unknown locations get OWM's 404.  Latency (with seeded
+    jitter) and bandwidth are configurable; wrap it in a FaultInjector for an error rate.
+
+    Recordings are either loaded from a directory holding one <location setting>.json per
+    location, e.g. saved with curl from the live API, or generated with ForecastFixtures.
+
+    A request whose path contains /group is answered the way OpenWeatherMapGroupSource expects:
+    every recorded location among its q parameters, in one reply without an ETag.  Unknown
+    locations are left out.
+ */
+public class ReplayResponder implements StandInServer.Responder {
+
+    private static final String NOT_FOUND = "{\"cod\":\"404\",\"message\":\"city not found\"}";
+    private static final String FIXTURE_SUFFIX = ".json";
+    // OWM's location parameter.  Not OpenWeatherMapSource.QUERY_PARAM, so this class doesn't
+    // need Android.
+    private static final String QUERY_PARAM = "q";
+    private static final String GROUP_PATH = "/group";
+
+    private final Map<String, String> mRecordings = new HashMap<String, String>();
+    private final Random mRandom;
+    private long mLatencyMillis;
+    private long mJitterMillis;
+    private int mBytesPerSecond;
+
+    public ReplayResponder() {
+        this(0);
+    }
+
+    /**
+     * @param seed seeds the latency jitter, so a run can be repeated exactly.
+     */
+    public ReplayResponder(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Records every {@code <location setting>.json} in {@code directory}.
+     */
+    public static ReplayResponder fromDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        ReplayResponder responder = new ReplayResponder();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(FIXTURE_SUFFIX)) {
+                responder.record(name.substring(0, name.length() - FIXTURE_SUFFIX.length()),
+                        readFully(file));
+            }
+        }
+        return responder;
+    }
+
+    /**
+     * Records a generated {@code days} day forecast for each of {@code settings}.
+     */
+    public static ReplayResponder generated(Collection<String> settings, int days) {
+        ReplayResponder responder = new ReplayResponder();
+        for (String setting : settings) {
+            responder.record(setting, ForecastFixtures.dailyForecast("City " + setting, days, 0));
+        }
+        return responder;
+    }
+
+    private static String readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replays {@code body} for {@code locationSetting} from now on.  Re-recording a location
+     * changes its ETag, like an upstream forecast update.
+     */
+    public synchronized ReplayResponder record(String locationSetting, String body) {
+        mRecordings.put(locationSetting, body);
+        return this;
+    }
+
+    public synchronized int getRecordingCount() {
+        return mRecordings.size();
+    }
+
+    /**
+     * Waits {@code millis}, give or take up to {@code jitterMillis}, before answering.
+     */
+    public synchronized ReplayResponder latency(long millis, long jitterMillis) {
+        mLatencyMillis = millis;
+        mJitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Sends bodies no faster than {@code bytesPerSecond}; 0 means as fast as possible.
+     */
+    public synchronized ReplayResponder bandwidth(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    @Override
+    public StandInServer.Response respond(StandInServer.Request request) {
+        String body;
+        Map<String, String> group = null;
+        long delay;
+        int bytesPerSecond;
+        synchronized (this) {
+            body = mRecordings.get(request.queryParameter(QUERY_PARAM));
+            if (request.path.contains(GROUP_PATH)) {
+                group = new LinkedHashMap<String, String>();
+                for (String setting : request.queryParameters(QUERY_PARAM)) {
+                    if (mRecordings.containsKey(setting)) {
+                        group.put(setting, mRecordings.get(setting));
+                    }
+                }
+            }
+            delay = mLatencyMillis;
+            if (mJitterMillis > 0) {
+                delay += (long) ((mRandom.nextDouble() * 2 - 1) * mJitterMillis);
+            }
+            bytesPerSecond = mBytesPerSecond;
+        }
+
+        StandInServer.Response response;
+        if (group != null) {
+            response = StandInServer.Response.ok(ForecastFixtures.group(group));
+        } else if (body == null) {
+            response = new StandInServer.Response(404, NOT_FOUND.getBytes());
+        } else {
+            String etag = String.format(Locale.US, "\"%08x\"", body.hashCode());
+            if (etag.equals(request.header("If-None-Match"))) {
+                response = StandInServer.Response.status(304).header("ETag", etag);
+            } else {
+                response = StandInServer.Response.ok(body).header("ETag", etag);
+            }
+        }
+        return response.delay(Math.max(0, delay)).throttle(bytesPerSecond);
+    }
+}
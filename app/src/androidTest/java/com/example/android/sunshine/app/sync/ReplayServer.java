@@ -0,0 +1,83 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs the replaying stand-in server on its own, on a plain JVM, for load testing a sync
+    from outside the test runner or pointing curl, ab or wrk at it.  Only StandInServer,
+    ReplayResponder, FaultInjector and ForecastFixtures are needed, none of which use Android:
+
+        javac -d out StandInServer.java ReplayResponder.java FaultInjector.java \
+                ForecastFixtures.java ReplayServer.java
+        java -cp out com.example.android.sunshine.app.sync.ReplayServer \
+                --port 8080 --latency 150 --jitter 50 --bandwidth 20000 --error-rate 0.05
+
+    Then GET http://127.0.0.1:8080/data/2.5/forecast/daily?q=10000, or several locations at
+    once from /data/2.5/forecast/group?q=10000&q=10001.  Without --fixtures, the locations
+    10000 up to 10000 + --locations are generated.
+ */
+public class ReplayServer {
+
+    private static final String USAGE = "Usage: ReplayServer [--port N] [--fixtures DIR]"
+            + " [--locations N] [--days N] [--latency MS] [--jitter MS]"
+            + " [--bandwidth BYTES_PER_SECOND] [--error-rate FRACTION] [--seed N]";
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        File fixtures = null;
+        int locations = 100;
+        int days = 14;
+        long latency = 0;
+        long jitter = 0;
+        int bandwidth = 0;
+        double errorRate = 0;
+        long seed = 0;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 == args.length) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            String value = args[++i];
+            if (arg.equals("--port")) {
+                port = Integer.parseInt(value);
+            } else if (arg.equals("--fixtures")) {
+                fixtures = new File(value);
+            } else if (arg.equals("--locations")) {
+                locations = Integer.parseInt(value);
+            } else if (arg.equals("--days")) {
+                days = Integer.parseInt(value);
+            } else if (arg.equals("--latency")) {
+                latency = Long.parseLong(value);
+            } else if (arg.equals("--jitter")) {
+                jitter = Long.parseLong(value);
+            } else if (arg.equals("--bandwidth")) {
+                bandwidth = Integer.parseInt(value);
+            } else if (arg.equals("--error-rate")) {
+                errorRate = Double.parseDouble(value);
+            } else if (arg.equals("--seed")) {
+                seed = Long.parseLong(value);
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        }
+
+        ReplayResponder replay;
+        if (fixtures != null) {
+            replay = ReplayResponder.fromDirectory(fixtures);
+        } else {
+            List<String> settings = new ArrayList<String>(locations);
+            for (int i = 0; i < locations; i++) {
+                settings.add(Integer.toString(10000 + i));
+            }
+            replay = ReplayResponder.generated(settings, days);
+        }
+        replay.latency(latency, jitter).bandwidth(bandwidth);
+
+        StandInServer server = new StandInServer(new FaultInjector(replay, errorRate, seed));
+        server.start(port);
+    }
+}
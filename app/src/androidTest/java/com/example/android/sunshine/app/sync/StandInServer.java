@@ -0,0 +1,352 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    A tiny HTTP/1.1 server on the loopback interface that stands in for OpenWeatherMap in tests.
+    Each request is handed to a Responder; every request is recorded so tests can check which
+    headers the sync adapter sent.  Only what the sync adapter needs is implemented: GET
+    requests without a body, Content-Length framed responses and keep-alive.  A response can
+    also inject a fault: a dropped connection, a delay or a truncated body, or be throttled to
+    a given bandwidth.  Nothing here depends on Android, so it also runs on a plain JVM; see
+    ReplayServer.
+ */
+public class StandInServer {
+
+    public interface Responder {
+        Response respond(Request request);
+    }
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        // Header names are lower-cased.
+        public final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        public String queryParameter(String name) {
+            List<String> values = queryParameters(name);
+            return values.isEmpty() ? null : values.get(0);
+        }
+
+        /**
+         * @return every value of a repeated query parameter, in order.
+         */
+        public List<String> queryParameters(String name) {
+            List<String> values = new ArrayList<String>();
+            int q = path.indexOf('?');
+            if (q < 0) {
+                return values;
+            }
+            for (String pair : path.substring(q + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                if (key.equals(name)) {
+                    try {
+                        values.add(java.net.URLDecoder.decode(
+                                eq < 0 ? "" : pair.substring(eq + 1), "UTF-8"));
+                    } catch (java.io.UnsupportedEncodingException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }
+            return values;
+        }
+    }
+
+    public static class Response {
+        // Bodies are throttled in slices of this many milliseconds' worth of bytes
+        private static final int THROTTLE_SLICE_MS = 50;
+
+        public final int code;
+        public final Map<String, String> headers = new LinkedHashMap<String, String>();
+        public final byte[] body;
+        // Faults to inject; see drop(), delay() and truncate()
+        boolean drop;
+        long delayMillis;
+        int truncateAt = -1;
+        int bytesPerSecond;
+
+        public Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body == null ? new byte[0] : body;
+        }
+
+        public static Response ok(String body) {
+            try {
+                Response response = new Response(200, body.getBytes("UTF-8"));
+                response.headers.put("Content-Type", "application/json; charset=utf-8");
+                return response;
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        public static Response status(int code) {
+            return new Response(code, null);
+        }
+
+        /**
+         * Closes the connection without answering, like a reset or a dead upstream.
+         */
+        public static Response drop() {
+            Response response = new Response(0, null);
+            response.drop = true;
+            return response;
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * Waits before sending anything.
+         */
+        public Response delay(long millis) {
+            delayMillis = millis;
+            return this;
+        }
+
+        /**
+         * Announces the full Content-Length but closes the connection after {@code bytes}
+         * bytes of the body.
+         */
+        public Response truncate(int bytes) {
+            truncateAt = bytes;
+            return this;
+        }
+
+        /**
+         * Sends the body no faster than {@code bytesPerSecond}, like a slow link would.
+         */
+        public Response throttle(int bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+    }
+
+    private final Responder mResponder;
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private ServerSocket mServerSocket;
+
+    public StandInServer(Responder responder) {
+        mResponder = responder;
+    }
+
+    public void start() throws IOException {
+        start(0);
+    }
+
+    /**
+     * @param port the loopback port to listen on, or 0 for any free one.
+     */
+    public void start(int port) throws IOException {
+        mServerSocket = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the absolute URL for {@code path} on this server, e.g. getUrl("/daily?").
+     */
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequests.size();
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnectionCount.incrementAndGet();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+                mRequests.add(request);
+                Response response = mResponder.respond(request);
+                if (response.delayMillis > 0) {
+                    Thread.sleep(response.delayMillis);
+                }
+                if (response.drop) {
+                    break;
+                }
+                writeResponse(out, response);
+                if (response.truncateAt >= 0
+                        || "close".equalsIgnoreCase(request.header("Connection"))) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // Shutting down.
+        } catch (SocketException ignored) {
+            // Client went away.
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return new Request(parts[0], parts.length > 1 ? parts[1] : "/", headers);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void writeResponse(OutputStream out, Response response)
+            throws IOException, InterruptedException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(' ')
+            .append(reason(response.code)).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (response.code != 304 && response.code != 204) {
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (response.code != 304 && response.code != 204) {
+            int length = response.truncateAt >= 0
+                    ? Math.min(response.truncateAt, response.body.length) : response.body.length;
+            if (response.bytesPerSecond > 0) {
+                writeThrottled(out, response.body, length, response.bytesPerSecond);
+            } else {
+                out.write(response.body, 0, length);
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeThrottled(OutputStream out, byte[] body, int length,
+                                       int bytesPerSecond)
+            throws IOException, InterruptedException {
+        int slice = Math.max(1, bytesPerSecond * Response.THROTTLE_SLICE_MS / 1000);
+        long start = System.nanoTime();
+        for (int offset = 0; offset < length; offset += slice) {
+            int count = Math.min(slice, length - offset);
+            out.write(body, offset, count);
+            out.flush();
+            // Sleep until the bytes sent so far are due, so rounding doesn't accumulate.
+            long dueNanos = (offset + count) * 1000000000L / bytesPerSecond;
+            long aheadMillis = (dueNanos - (System.nanoTime() - start)) / 1000000L;
+            if (aheadMillis > 0) {
+                Thread.sleep(aheadMillis);
+            }
+        }
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 304: return "Not Modified";
+            case 404: return "Not Found";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Replays a usage trace against a model of the upstream forecast, once with the old fixed
+    three hour schedule and once with the SyncScheduler, and counts fetches and how stale the
+    forecast was whenever the user opened the app.
+
+    The model: upstream publishes a new forecast run at a random point in every three hour
+    window.  Some runs are identical to the previous one; the rest change a random number of
+    the 14 days.  Time runs in local time from midnight of day 0, and the framework wakes the
+    adapter on every SyncScheduler.TICK_INTERVAL.
+ */
+public class SyncSimulation {
+
+    private static final long HOUR = SyncScheduler.HOUR_IN_MILLIS;
+    private static final long DAY = SyncScheduler.DAY_IN_MILLIS;
+    private static final long TICK = SyncScheduler.TICK_INTERVAL * 1000L;
+    private static final long FIXED_INTERVAL = SyncScheduler.BASE_INTERVAL;
+    private static final int FORECAST_DAYS = 14;
+
+    /**
+     * When the user opens the app and when the device is on a metered network.
+     */
+    public static class Trace {
+        final String name;
+        final long[] opens;
+        final long[] meteredFrom;
+        final long[] meteredUntil;
+
+        public Trace(String name, long[] opens) {
+            this(name, opens, new long[0], new long[0]);
+        }
+
+        public Trace(String name, long[] opens, long[] meteredFrom, long[] meteredUntil) {
+            this.name = name;
+            this.opens = opens.clone();
+            Arrays.sort(this.opens);
+            this.meteredFrom = meteredFrom;
+            this.meteredUntil = meteredUntil;
+        }
+
+        boolean isMetered(long time) {
+            for (int i = 0; i < meteredFrom.length; i++) {
+                if (time >= meteredFrom[i] && time < meteredUntil[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static class Result {
+        public final String name;
+        public final int fetches;
+        public final long meanStaleness;
+        public final long maxStaleness;
+
+        Result(String name, int fetches, long meanStaleness, long maxStaleness) {
+            this.name = name;
+            this.fetches = fetches;
+            this.meanStaleness = meanStaleness;
+            this.maxStaleness = maxStaleness;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + fetches + " fetches, staleness at open mean "
+                    + (meanStaleness / 60000) + "min, max " + (maxStaleness / 60000) + "min";
+        }
+    }
+
+    private final int mDays;
+    // Times at which upstream content changed, and the fraction of days each change touched
+    private final List<Long> mChangeTimes = new ArrayList<Long>();
+    private final List<Double> mChangeRatios = new ArrayList<Double>();
+
+    public SyncSimulation(int days, long seed) {
+        mDays = days;
+        Random random = new Random(seed);
+        for (long window = 0; window < days * DAY; window += 3 * HOUR) {
+            long published = window + (long) (random.nextDouble() * 3 * HOUR);
+            if (random.nextDouble() < 0.4) {
+                // Same forecast as the previous run.
+                continue;
+            }
+            mChangeTimes.add(published);
+            mChangeRatios.add((1 + random.nextInt(FORECAST_DAYS)) / (double) FORECAST_DAYS);
+        }
+    }
+
+    public Result runFixed(Trace trace) {
+        return run(trace, false);
+    }
+
+    public Result runAdaptive(Trace trace) {
+        return run(trace, true);
+    }
+
+    private Result run(Trace trace, boolean adaptive) {
+        SyncScheduler scheduler = new SyncScheduler();
+        int fetchedVersion = -1;
+        int fetches = 0;
+        long nextSyncAt = 0;
+        long lastOpen = 0;
+        long totalStaleness = 0;
+        long maxStaleness = 0;
+        int openIndex = 0;
+
+        for (long now = 0; now < mDays * DAY; now += TICK) {
+            while (openIndex < trace.opens.length && trace.opens[openIndex] <= now) {
+                long open = trace.opens[openIndex++];
+                lastOpen = open;
+                long staleness = staleness(fetchedVersion, open);
+                totalStaleness += staleness;
+                maxStaleness = Math.max(maxStaleness, staleness);
+            }
+
+            boolean due;
+            SyncScheduler.Conditions conditions = new SyncScheduler.Conditions(now, lastOpen,
+                    trace.isMetered(now), (int) ((now % DAY) / HOUR));
+            if (adaptive) {
+                due = scheduler.isDue(conditions, nextSyncAt);
+            } else {
+                due = now % FIXED_INTERVAL == 0;
+            }
+            if (!due) {
+                continue;
+            }
+
+            int version = versionAt(now);
+            double changeRatio;
+            if (fetchedVersion < 0) {
+                changeRatio = 1;
+            } else {
+                changeRatio = 0;
+                for (int i = fetchedVersion; i < version; i++) {
+                    changeRatio += mChangeRatios.get(i);
+                }
+                changeRatio = Math.min(1, changeRatio);
+            }
+            fetchedVersion = version;
+            fetches++;
+            nextSyncAt = scheduler.nextSyncAt(conditions, changeRatio);
+        }
+
+        int opens = Math.max(1, openIndex);
+        return new Result(trace.name + (adaptive ? " (adaptive)" : " (fixed)"), fetches,
+                totalStaleness / opens, maxStaleness);
+    }
+
+    /**
+     * @return the number of upstream changes published up to {@code time}.
+     */
+    private int versionAt(long time) {
+        int version = 0;
+        while (version < mChangeTimes.size() && mChangeTimes.get(version) <= time) {
+            version++;
+        }
+        return version;
+    }
+
+    /**
+     * @return how long the user has been looking at an outdated forecast at {@code time}:
+     * zero if the last fetch has the latest content, otherwise the time since the first
+     * change we missed.
+     */
+    private long staleness(int fetchedVersion, long time) {
+        if (fetchedVersion < 0) {
+            return time;
+        }
+        if (fetchedVersion == versionAt(time)) {
+            return 0;
+        }
+        return time - mChangeTimes.get(fetchedVersion);
+    }
+
+    /**
+     * @return one open at each of {@code hours} (fractional hours allowed) on each of
+     * {@code days}.
+     */
+    public static long[] dailyOpens(int[] days, double[] hours) {
+        long[] opens = new long[days.length * hours.length];
+        int i = 0;
+        for (int day : days) {
+            for (double hour : hours) {
+                opens[i++] = day * DAY + (long) (hour * HOUR);
+            }
+        }
+        return opens;
+    }
+
+    public static int[] range(int from, int to) {
+        int[] days = new int[to - from];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = from + i;
+        }
+        return days;
+    }
+}
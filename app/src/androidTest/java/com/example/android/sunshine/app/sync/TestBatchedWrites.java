@@ -0,0 +1,228 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherProvider;
+import com.example.android.sunshine.app.sync.TestConditionalFetch.CountingObserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+    Counts the change notifications a forecast loader would requery for during a sync, with an
+    observer registered the way a loader's cursor registers on its location.  A first sync and
+    one where every day changed each write through a single applyBatch and should notify once;
+    the same days written the old way, a bulkInsert, a notification per changed day and a
+    purge, notify once per day.  Both counts are logged under the
+    TestBatchedWrites tag.  Also checks that a batch that fails part way leaves nothing behind,
+    and that a sync whose batch fails still finishes and reports it as a database error.
+ */
+public class TestBatchedWrites extends AndroidTestCase {
+    private static final String LOG_TAG = TestBatchedWrites.class.getSimpleName();
+
+    private static final String SETTING = "94043";
+    private static final int DAYS = 14;
+    // Time for stray notifications to arrive before they are counted
+    private static final long SETTLE_MILLIS = 500;
+
+    private StandInServer mServer;
+    private volatile int mSeed;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return StandInServer.Response.ok(ForecastFixtures.dailyForecast(
+                        "City " + request.queryParameter("q"), DAYS, mSeed));
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private int syncAndCount() {
+        CountingObserver loader = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(SETTING), true, loader);
+        try {
+            SyncReport report = new LocationSyncEngine(mContext, new HttpTransport(),
+                    mServer.getUrl("/data/2.5/forecast/daily?"))
+                    .sync(Arrays.asList(SETTING), new SyncResult());
+            assertEquals(DAYS, report.getRowsWritten());
+            SystemClock.sleep(SETTLE_MILLIS);
+            return loader.getCount();
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(loader);
+            loader.quit();
+        }
+    }
+
+    public void testOneNotificationPerSync() {
+        assertEquals("First sync", 1, syncAndCount());
+        mSeed = 1;
+        assertEquals("Every day changed", 1, syncAndCount());
+        assertEquals(DAYS, countRows(WeatherEntry.buildWeatherLocation(SETTING)));
+
+        // The same fourteen days written the way a sync wrote them before applyBatch
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(SETTING), null, null, null, null);
+        ContentValues[] rows = new ContentValues[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            rows[i] = new ContentValues();
+            for (String column : new String[]{WeatherEntry.COLUMN_LOC_KEY,
+                    WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC,
+                    WeatherEntry.COLUMN_WEATHER_ID, WeatherEntry.COLUMN_MIN_TEMP,
+                    WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_HUMIDITY,
+                    WeatherEntry.COLUMN_PRESSURE, WeatherEntry.COLUMN_WIND_SPEED,
+                    WeatherEntry.COLUMN_DEGREES}) {
+                rows[i].put(column, cursor.getString(cursor.getColumnIndex(column)));
+            }
+        }
+        cursor.close();
+        int oldCount = writeTheOldWayAndCount(rows);
+        Log.d(LOG_TAG, "Loader requeries for a sync that changes " + DAYS + " days: 1 with "
+                + "applyBatch, " + oldCount + " with separate calls");
+        assertEquals(DAYS, oldCount);
+    }
+
+    private int writeTheOldWayAndCount(ContentValues[] rows) {
+        CountingObserver loader = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(SETTING), true, loader);
+        try {
+            Uri weather = WeatherContract.buildNoNotifyUri(WeatherEntry.CONTENT_URI);
+            mContext.getContentResolver().bulkInsert(weather, rows);
+            for (ContentValues row : rows) {
+                mContext.getContentResolver().notifyChange(
+                        WeatherEntry.buildWeatherLocationWithDate(SETTING,
+                                row.getAsLong(WeatherEntry.COLUMN_DATE)), null);
+            }
+            mContext.getContentResolver().delete(weather, WeatherEntry.COLUMN_DATE + " <= ?",
+                    new String[]{"0"});
+            SystemClock.sleep(SETTLE_MILLIS);
+            return loader.getCount();
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(loader);
+            loader.quit();
+        }
+    }
+
+    public void testFailedBatchLeavesNothing() throws Exception {
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, SETTING);
+        location.put(LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        location.put(LocationEntry.COLUMN_COORD_LAT, 37.4);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -122.1);
+        ContentValues day = new ContentValues();
+        day.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(1419033600000L));
+        day.put(WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+        day.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+        day.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0);
+        day.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0);
+        day.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+        day.put(WeatherEntry.COLUMN_PRESSURE, 1015.0);
+        day.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+        day.put(WeatherEntry.COLUMN_DEGREES, 90.0);
+        ContentValues missingColumn = new ContentValues(day);
+        missingColumn.remove(WeatherEntry.COLUMN_SHORT_DESC);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(location).build());
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(SETTING,
+                day.getAsLong(WeatherEntry.COLUMN_DATE));
+        operations.add(ContentProviderOperation.newInsert(dayUri).withValues(day)
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0).build());
+        operations.add(ContentProviderOperation.newInsert(dayUri).withValues(missingColumn)
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0).build());
+
+        CountingObserver loader = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, loader);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+            fail("A row without a required column was stored");
+        } catch (SQLException expected) {
+            // What the provider threw for the failed row
+        } finally {
+            SystemClock.sleep(SETTLE_MILLIS);
+            mContext.getContentResolver().unregisterContentObserver(loader);
+            loader.quit();
+        }
+        assertEquals("Nothing stored, nothing to notify", 0, loader.getCount());
+        assertEquals(0, countRows(LocationEntry.CONTENT_URI));
+        assertEquals(0, countRows(WeatherEntry.CONTENT_URI));
+    }
+
+    public void testFailedWriteFinishesTheSync() {
+        final WeatherProvider provider = new WeatherProvider() {
+            @Override
+            public ContentProviderResult[] applyBatch(
+                    ArrayList<ContentProviderOperation> operations)
+                    throws OperationApplicationException {
+                throw new OperationApplicationException("No space left");
+            }
+        };
+        provider.attachInfo(mContext, null);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(WeatherContract.CONTENT_AUTHORITY, provider);
+        Context context = new ContextWrapper(mContext) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+
+        SyncResult syncResult = new SyncResult();
+        SyncReport report = new LocationSyncEngine(context, new HttpTransport(),
+                mServer.getUrl("/data/2.5/forecast/daily?"))
+                .sync(Arrays.asList(SETTING), syncResult);
+        assertTrue(syncResult.databaseError);
+        assertEquals(1, report.getWritesFailed());
+        assertEquals(0, report.getRowsWritten());
+        assertEquals(SyncReport.STATUS_DB_ERROR, report.getLocation(SETTING).status);
+        assertEquals(0, countRows(WeatherEntry.CONTENT_URI));
+        assertEquals("Due again on the next sync", 0, countRows(FetchStateEntry.CONTENT_URI));
+    }
+
+    private int countRows(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.android.sunshine.app.sync;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs the sync adapter against a local stand-in server to make sure the forecast is
+    revalidated with If-None-Match / If-Modified-Since, and that a 304 leaves the database alone.
+ */
+public class TestConditionalFetch extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "94043";
+    private static final String ETAG = "\"forecast-v1\"";
+    private static final String LAST_MODIFIED = "Sat, 04 Jun 2016 10:00:00 GMT";
+
+    private StandInServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ResponseCache.getInstance(mContext).clear();
+
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                if (ETAG.equals(request.header("If-None-Match"))) {
+                    return StandInServer.Response.status(304).header("ETag", ETAG);
+                }
+                return StandInServer.Response
+                        .ok(ForecastFixtures.dailyForecast("Mountain View", 14, 0))
+                        .header("ETag", ETAG)
+                        .header("Last-Modified", LAST_MODIFIED);
+            }
+        });
+        mServer.start();
+
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setWeatherSource(
+                new OpenWeatherMapSource(mServer.getUrl("/data/2.5/forecast/daily?")));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    public void testFirstFetchIsUnconditional() {
+        assertEquals(SyncReport.STATUS_UPDATED,
+                mSyncAdapter.syncLocation(TEST_LOCATION));
+
+        StandInServer.Request request = mServer.getRequests().get(0);
+        assertNull("Nothing stored yet, so nothing to revalidate",
+                request.header("If-None-Match"));
+        assertNull(request.header("If-Modified-Since"));
+        assertEquals(14, readWeatherIds().size());
+    }
+
+    public void testNotModifiedDoesNoDatabaseWork() throws InterruptedException {
+        assertEquals(SyncReport.STATUS_UPDATED,
+                mSyncAdapter.syncLocation(TEST_LOCATION));
+        List<Long> idsBefore = readWeatherIds();
+
+        CountingObserver observer = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, observer);
+        try {
+            assertEquals(SyncReport.STATUS_NOT_MODIFIED,
+                    mSyncAdapter.syncLocation(TEST_LOCATION));
+
+            // Give any stray notification time to be delivered before checking for it.
+            SystemClock.sleep(500);
+            assertEquals("A 304 must not notify weather observers", 0, observer.getCount());
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.quit();
+        }
+
+        StandInServer.Request revalidation = mServer.getRequests().get(1);
+        assertEquals(ETAG, revalidation.header("If-None-Match"));
+        assertEquals(LAST_MODIFIED, revalidation.header("If-Modified-Since"));
+
+        // ON CONFLICT REPLACE gives every rewritten row a new _id, so unchanged ids mean
+        // neither the weather inserts nor the purge ran.
+        assertEquals(idsBefore, readWeatherIds());
+    }
+
+    private List<Long> readWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry._ID + " ASC");
+        List<Long> ids = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    static class CountingObserver extends ContentObserver {
+        private final HandlerThread mThread;
+        private int mCount;
+
+        static CountingObserver create() {
+            HandlerThread thread = new HandlerThread("CountingObserver");
+            thread.start();
+            return new CountingObserver(thread);
+        }
+
+        private CountingObserver(HandlerThread thread) {
+            super(new Handler(thread.getLooper()));
+            mThread = thread;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (this) {
+                mCount++;
+            }
+        }
+
+        synchronized int getCount() {
+            return mCount;
+        }
+
+        void quit() {
+            mThread.quit();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.FaultInjector.Fault;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Runs the sync engine against a fault-injecting stand-in server: transient failures are
+    retried with backoff, permanent ones are reported through SyncResult, and a host that
+    keeps failing trips a circuit breaker that survives a process restart.
+ */
+public class TestFetchResilience extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "94043";
+    // Small delays so the tests don't sleep for real backoff periods
+    private static final RetryPolicy FAST_RETRIES = new RetryPolicy(3, 10, 50);
+
+    private FaultInjector mFaults;
+    private StandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        CircuitBreaker.resetAll(mContext);
+
+        mFaults = new FaultInjector(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return StandInServer.Response.ok(ForecastFixtures.dailyForecast(
+                        "City " + request.queryParameter("q"), 14, 0));
+            }
+        });
+        mServer = new StandInServer(mFaults);
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        CircuitBreaker.resetAll(mContext);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private SyncReport sync(SyncResult syncResult, String... locations) {
+        LocationSyncEngine engine = new LocationSyncEngine(mContext, new HttpTransport(),
+                mServer.getUrl("/data/2.5/forecast/daily?"), 1);
+        engine.setRetryPolicy(FAST_RETRIES);
+        return engine.sync(Arrays.asList(locations), syncResult);
+    }
+
+    public void testTransientFailuresAreRetried() {
+        mFaults.then(Fault.UNAVAILABLE, 1).then(Fault.DROP, 1);
+
+        SyncResult syncResult = new SyncResult();
+        SyncReport.LocationReport location = sync(syncResult, TEST_LOCATION)
+                .getLocation(TEST_LOCATION);
+
+        assertEquals(SyncReport.STATUS_UPDATED, location.status);
+        assertEquals(3, location.attempts);
+        assertEquals(3, mServer.getRequestCount());
+        assertFalse(syncResult.hasError());
+    }
+
+    public void testTruncatedBodyIsRetried() {
+        mFaults.then(Fault.TRUNCATED, 1);
+
+        SyncReport.LocationReport location = sync(new SyncResult(), TEST_LOCATION)
+                .getLocation(TEST_LOCATION);
+
+        assertEquals(SyncReport.STATUS_UPDATED, location.status);
+        assertEquals(2, location.attempts);
+        assertEquals(14, location.rows);
+    }
+
+    public void testPersistentFailureIsAnIoException() {
+        mFaults.then(Fault.SERVER_ERROR, FAST_RETRIES.maxAttempts);
+
+        SyncResult syncResult = new SyncResult();
+        SyncReport.LocationReport location = sync(syncResult, TEST_LOCATION)
+                .getLocation(TEST_LOCATION);
+
+        assertEquals(SyncReport.STATUS_IO_ERROR, location.status);
+        assertEquals(FAST_RETRIES.maxAttempts, mServer.getRequestCount());
+        assertEquals(1, syncResult.stats.numIoExceptions);
+        assertTrue(syncResult.hasSoftError());
+        assertFalse(syncResult.hasHardError());
+    }
+
+    public void testParseErrorIsNotRetried() {
+        mFaults.then(Fault.GARBAGE, 1);
+
+        SyncResult syncResult = new SyncResult();
+        SyncReport.LocationReport location = sync(syncResult, TEST_LOCATION)
+                .getLocation(TEST_LOCATION);
+
+        assertEquals(SyncReport.STATUS_PARSE_ERROR, location.status);
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, syncResult.stats.numParseExceptions);
+        assertTrue(syncResult.hasHardError());
+    }
+
+    public void testLongRetryAfterIsLeftToTheNextSync() {
+        mFaults.then(Fault.RATE_LIMITED, 1);
+
+        SyncReport.LocationReport location = sync(new SyncResult(), TEST_LOCATION)
+                .getLocation(TEST_LOCATION);
+
+        assertEquals(SyncReport.STATUS_IO_ERROR, location.status);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    public void testBreakerOpensAndSurvivesRestart() {
+        // Enough failures across a few locations to trip the breaker.
+        mFaults.then(Fault.SERVER_ERROR, CircuitBreaker.FAILURE_THRESHOLD);
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            locations.add(Integer.toString(10000 + i));
+        }
+
+        SyncResult first = new SyncResult();
+        sync(first, locations.toArray(new String[locations.size()]));
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD, mServer.getRequestCount());
+        assertTrue("The framework should be told to wait", first.delayUntil > 0);
+
+        // A new process reads the breaker back from disk and still refuses to send anything.
+        CircuitBreaker.clearCache();
+        SyncResult second = new SyncResult();
+        SyncReport report = sync(second, TEST_LOCATION);
+        assertEquals(SyncReport.STATUS_CIRCUIT_OPEN,
+                report.getLocation(TEST_LOCATION).status);
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD, mServer.getRequestCount());
+        assertEquals(1, second.stats.numIoExceptions);
+        assertEquals(first.delayUntil, second.delayUntil);
+    }
+
+    public void testBreakerHalfOpenTrial() {
+        CircuitBreaker breaker = CircuitBreaker.forHost(mContext, "example.com");
+        long now = 1000000;
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(breaker.allowRequest(now));
+            breaker.recordFailure(now);
+        }
+        assertFalse(breaker.allowRequest(now));
+
+        // After the cooldown exactly one trial goes through.
+        long later = now + CircuitBreaker.BASE_COOLDOWN;
+        assertTrue(breaker.allowRequest(later));
+        assertFalse(breaker.allowRequest(later));
+
+        // A failed trial opens the breaker for twice as long.
+        breaker.recordFailure(later);
+        assertEquals(later + 2 * CircuitBreaker.BASE_COOLDOWN, breaker.getOpenUntil());
+
+        long muchLater = breaker.getOpenUntil();
+        assertTrue(breaker.allowRequest(muchLater));
+        breaker.recordSuccess();
+        assertEquals(0, breaker.getOpenUntil());
+        assertTrue(breaker.allowRequest(muchLater));
+    }
+
+    public void testRandomFaultsNeverLoseTheForecast() throws Exception {
+        // One location at a time with a 30% fault rate; a fixed seed makes the run repeatable.
+        mServer.shutdown();
+        mFaults = new FaultInjector(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return StandInServer.Response.ok(ForecastFixtures.dailyForecast(
+                        "City " + request.queryParameter("q"), 14, 0));
+            }
+        }, 0.3, 42);
+        mServer = new StandInServer(mFaults);
+        mServer.start();
+
+        int updated = 0;
+        int failed = 0;
+        for (int i = 0; i < 20; i++) {
+            CircuitBreaker.resetAll(mContext);
+            SyncResult syncResult = new SyncResult();
+            String location = Integer.toString(20000 + i);
+            int status = sync(syncResult, location).getLocation(location).status;
+            if (status == SyncReport.STATUS_UPDATED) {
+                updated++;
+                assertFalse(syncResult.hasError());
+            } else {
+                failed++;
+                assertEquals(SyncReport.STATUS_IO_ERROR, status);
+                assertEquals(1, syncResult.stats.numIoExceptions);
+            }
+        }
+        assertTrue("Faults were injected", mFaults.getFaultsInjected() > 0);
+        // With three attempts, a location only fails if all of them hit a fault.
+        assertTrue(updated + " updated, " + failed + " failed", updated > failed);
+    }
+}
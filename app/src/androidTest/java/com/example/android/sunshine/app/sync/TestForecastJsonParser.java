@@ -0,0 +1,253 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Checks that the streaming parser agrees with the old JSONObject path, and benchmarks the two
+    against each other on the recorded fixtures.  Benchmark numbers are written to logcat under
+    the TestForecastJsonParser tag.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_DAYS = 16;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    public void testParsesRecordedResponse() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        int days = new ForecastJsonParser().parse(
+                new StringReader(ForecastFixtures.MOUNTAIN_VIEW_2_DAYS), callback);
+
+        assertEquals(2, days);
+        assertEquals("Mountain View", callback.cityName);
+        assertEquals(37.386051, callback.lat, 1e-9);
+        assertEquals(-122.083847, callback.lon, 1e-9);
+        assertEquals(2, callback.rows.size());
+
+        ContentValues first = callback.rows.get(0);
+        assertEquals(800, (int) first.getAsInteger("weather_id"));
+        assertEquals("Clear", first.getAsString("short_desc"));
+        assertEquals(25.16, first.getAsDouble("max"), 1e-9);
+        assertEquals(12.93, first.getAsDouble("min"), 1e-9);
+        assertEquals(55, (int) first.getAsInteger("humidity"));
+        assertEquals(314.0, first.getAsDouble("degrees"), 1e-9);
+    }
+
+    public void testCityAfterList() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        int days = new ForecastJsonParser().parse(
+                new StringReader(ForecastFixtures.MOUNTAIN_VIEW_2_DAYS_CITY_LAST), callback);
+
+        assertEquals(2, days);
+        assertEquals("Mountain View", callback.cityName);
+        assertEquals("Clouds", callback.rows.get(1).getAsString("short_desc"));
+    }
+
+    public void testMatchesJsonObjectPath() throws Exception {
+        String json = ForecastFixtures.dailyForecast("Mountain View", BENCHMARK_DAYS, 3);
+
+        RecordingCallback callback = new RecordingCallback();
+        new ForecastJsonParser().parse(new StringReader(json), callback);
+        ArrayList<ContentValues> domRows = parseWithJsonObject(json);
+
+        assertEquals(domRows.size(), callback.rows.size());
+        for (int i = 0; i < domRows.size(); i++) {
+            assertEquals("Row " + i + " differs between parsers",
+                    domRows.get(i), callback.rows.get(i));
+        }
+    }
+
+    public void testParsesGroup() throws Exception {
+        Map<String, String> forecasts = new LinkedHashMap<String, String>();
+        forecasts.put("94043", ForecastFixtures.MOUNTAIN_VIEW_2_DAYS);
+        forecasts.put("10001", ForecastFixtures.dailyForecast("New York", 3, 0));
+        final List<RecordingCallback> callbacks = new ArrayList<RecordingCallback>();
+        final List<String> queries = new ArrayList<String>();
+        int count = new ForecastJsonParser().parseGroup(
+                new StringReader(ForecastFixtures.group(forecasts)),
+                new ForecastJsonParser.GroupCallback() {
+                    @Override
+                    public ForecastJsonParser.Callback beginForecast(int position) {
+                        RecordingCallback callback = new RecordingCallback();
+                        callbacks.add(callback);
+                        return callback;
+                    }
+
+                    @Override
+                    public void endForecast(int position, String query) {
+                        queries.add(query);
+                    }
+                });
+
+        assertEquals(2, count);
+        assertEquals(Arrays.asList("94043", "10001"), queries);
+        assertEquals("Mountain View", callbacks.get(0).cityName);
+        assertEquals(2, callbacks.get(0).rows.size());
+        assertEquals("New York", callbacks.get(1).cityName);
+        assertEquals(3, callbacks.get(1).rows.size());
+    }
+
+    public void testMissingFieldIsParseError() throws IOException {
+        String json = ForecastFixtures.MOUNTAIN_VIEW_2_DAYS.replace("\"humidity\":55,", "");
+        try {
+            new ForecastJsonParser().parse(new StringReader(json), new RecordingCallback());
+            fail("Expected a JSONException for a day without humidity");
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testMalformedIsParseError() throws IOException {
+        try {
+            new ForecastJsonParser().parse(new StringReader("{\"city\":[}"),
+                    new RecordingCallback());
+            fail("Expected a JSONException for malformed input");
+        } catch (JSONException expected) {
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkAgainstJsonObject() throws Exception {
+        byte[] payload = ForecastFixtures.dailyForecast("Mountain View", BENCHMARK_DAYS, 1)
+                .getBytes("UTF-8");
+
+        // Warm both paths up so the JIT and class loading don't skew the first one measured.
+        for (int i = 0; i < 20; i++) {
+            runStreaming(payload);
+            runJsonObject(payload);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            runJsonObject(payload);
+        }
+        long domNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        long domAllocs = Debug.getThreadAllocCount();
+        long domBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            runStreaming(payload);
+        }
+        long streamNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        long streamAllocs = Debug.getThreadAllocCount();
+        long streamBytes = Debug.getThreadAllocSize();
+
+        Log.i(LOG_TAG, String.format(
+                "%d-day payload (%d bytes), %d iterations%n" +
+                "  JSONObject: %.3f ms/parse, %d allocs/parse, %d bytes/parse%n" +
+                "  streaming:  %.3f ms/parse, %d allocs/parse, %d bytes/parse",
+                BENCHMARK_DAYS, payload.length, BENCHMARK_ITERATIONS,
+                domNanos / 1e6 / BENCHMARK_ITERATIONS, domAllocs / BENCHMARK_ITERATIONS,
+                domBytes / BENCHMARK_ITERATIONS,
+                streamNanos / 1e6 / BENCHMARK_ITERATIONS, streamAllocs / BENCHMARK_ITERATIONS,
+                streamBytes / BENCHMARK_ITERATIONS));
+
+        assertTrue("Streaming parse should allocate less than the JSONObject path",
+                streamBytes < domBytes);
+    }
+
+    private static void runStreaming(byte[] payload) throws Exception {
+        InputStream in = new ByteArrayInputStream(payload);
+        new ForecastJsonParser().parse(new InputStreamReader(in, "UTF-8"),
+                new RecordingCallback());
+    }
+
+    // This is the read loop the sync adapter used before the streaming parser.
+    private static void runJsonObject(byte[] payload) throws Exception {
+        InputStream in = new ByteArrayInputStream(payload);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        reader.close();
+        parseWithJsonObject(buffer.toString());
+    }
+
+    private static ArrayList<ContentValues> parseWithJsonObject(String json)
+            throws JSONException {
+        JSONObject forecastJson = new JSONObject(json);
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        cityJson.getString("name");
+        JSONObject cityCoord = cityJson.getJSONObject("coord");
+        cityCoord.getDouble("lat");
+        cityCoord.getDouble("lon");
+
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>(weatherArray.length());
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+
+            ContentValues values = new ContentValues();
+            values.put("date", (long) i);
+            values.put("humidity", dayForecast.getInt("humidity"));
+            values.put("pressure", dayForecast.getDouble("pressure"));
+            values.put("wind", dayForecast.getDouble("speed"));
+            values.put("degrees", dayForecast.getDouble("deg"));
+            values.put("max", temperatureObject.getDouble("max"));
+            values.put("min", temperatureObject.getDouble("min"));
+            values.put("short_desc", weatherObject.getString("main"));
+            values.put("weather_id", weatherObject.getInt("id"));
+            rows.add(values);
+        }
+        return rows;
+    }
+
+    static class RecordingCallback implements ForecastJsonParser.Callback {
+        final ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        String cityName;
+        double lat;
+        double lon;
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(ForecastJsonParser.Day day) {
+            ContentValues values = new ContentValues();
+            values.put("date", (long) day.index);
+            values.put("humidity", day.humidity);
+            values.put("pressure", day.pressure);
+            values.put("wind", day.windSpeed);
+            values.put("degrees", day.windDirection);
+            values.put("max", day.high);
+            values.put("min", day.low);
+            values.put("short_desc", day.description);
+            values.put("weather_id", day.weatherId);
+            rows.add(values);
+        }
+    }
+}
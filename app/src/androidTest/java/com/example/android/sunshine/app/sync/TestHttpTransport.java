@@ -0,0 +1,130 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Checks that the sync transport negotiates compression, decodes every encoding the server may
+    pick, and accounts for wire and decoded bytes separately.
+ */
+public class TestHttpTransport extends AndroidTestCase {
+
+    private byte[] mPayload;
+    private volatile String mEncoding;
+    private volatile byte[] mBody;
+    private StandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPayload = ForecastFixtures.dailyForecast("Mountain View", 16, 0).getBytes("UTF-8");
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                StandInServer.Response response = new StandInServer.Response(200, mBody);
+                if (mEncoding != null) {
+                    response.header("Content-Encoding", mEncoding);
+                }
+                return response;
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testAsksForCompression() throws IOException {
+        serve(null, mPayload);
+        fetch(new HttpTransport());
+        assertEquals(HttpTransport.ACCEPTED_ENCODINGS,
+                mServer.getRequests().get(0).header("Accept-Encoding"));
+    }
+
+    public void testGzip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(mPayload);
+        gzip.close();
+        checkDecodes("gzip", out.toByteArray());
+    }
+
+    public void testZlibDeflate() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out);
+        deflate.write(mPayload);
+        deflate.close();
+        checkDecodes("deflate", out.toByteArray());
+    }
+
+    public void testRawDeflate() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out, new Deflater(6, true));
+        deflate.write(mPayload);
+        deflate.close();
+        checkDecodes("deflate", out.toByteArray());
+    }
+
+    public void testIdentity() throws IOException {
+        serve(null, mPayload);
+        HttpTransport transport = new HttpTransport();
+        assertTrue(Arrays.equals(mPayload, fetch(transport)));
+        assertEquals(mPayload.length, transport.getWireBytes());
+        assertEquals(mPayload.length, transport.getDecodedBytes());
+    }
+
+    public void testCorruptGzipIsIoError() {
+        byte[] corrupt = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4, 5};
+        serve("gzip", corrupt);
+        try {
+            fetch(new HttpTransport());
+            fail("Expected an IOException for a corrupt body");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void checkDecodes(String encoding, byte[] body) throws IOException {
+        serve(encoding, body);
+        HttpTransport transport = new HttpTransport();
+
+        // Twice, so the second response runs on recycled buffers and inflaters.
+        assertTrue(Arrays.equals(mPayload, fetch(transport)));
+        assertTrue(Arrays.equals(mPayload, fetch(transport)));
+
+        assertEquals(2L * body.length, transport.getWireBytes());
+        assertEquals(2L * mPayload.length, transport.getDecodedBytes());
+        assertTrue(transport.getWireBytes() < transport.getDecodedBytes());
+    }
+
+    private void serve(String encoding, byte[] body) {
+        mEncoding = encoding;
+        mBody = body;
+    }
+
+    private byte[] fetch(HttpTransport transport) throws IOException {
+        HttpTransport.Exchange exchange = transport.get(new URL(mServer.getUrl("/daily")), null);
+        try {
+            InputStream in = exchange.getBody();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            exchange.close();
+        }
+    }
+}
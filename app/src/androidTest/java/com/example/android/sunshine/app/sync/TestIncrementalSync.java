@@ -0,0 +1,202 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherDbHelper;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Checks which part of the horizon an incremental sync asks for, then simulates a week of
+    periodic syncs, one every three hours, in full and in incremental mode and compares the
+    bytes fetched and rows written.  The stand-in server answers every request with a new
+    forecast run, so neither mode gets to skip a write because nothing changed.
+
+    Time is simulated by ageing the stored rows instead of waiting: every step takes three
+    hours off each fetched_at, and every eighth step drops each location's furthest day, which
+    is what a new day entering the horizon looks like.  The results are logged under the
+    TestIncrementalSync tag.
+ */
+public class TestIncrementalSync extends AndroidTestCase {
+    private static final String LOG_TAG = TestIncrementalSync.class.getSimpleName();
+
+    private static final List<String> LOCATIONS = Arrays.asList("94043", "10001", "60601");
+    private static final long STEP = SyncScheduler.BASE_INTERVAL;
+    private static final int STEPS_PER_DAY = 8;
+    private static final int DAYS = 7;
+
+    private StandInServer mServer;
+    // Every request gets the forecast run of the current step.
+    private volatile int mRun;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ResponseCache.getInstance(mContext).clear();
+        CircuitBreaker.resetAll(mContext);
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return StandInServer.Response.ok(ForecastFixtures.dailyForecast(
+                        "City " + request.queryParameter("q"),
+                        Integer.parseInt(request.queryParameter("cnt")), mRun));
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    public void testHorizon() {
+        long now = 100 * SyncScheduler.DAY_IN_MILLIS;
+        long[] fetchedAt = new long[LocationSyncEngine.FORECAST_DAYS];
+        assertEquals(14, ForecastHorizon.daysToFetch(fetchedAt, now));
+
+        Arrays.fill(fetchedAt, now - SyncScheduler.HOUR_IN_MILLIS);
+        assertEquals(0, ForecastHorizon.daysToFetch(fetchedAt, now));
+
+        Arrays.fill(fetchedAt, now - STEP);
+        assertEquals("Only today and tomorrow are stale", 2,
+                ForecastHorizon.daysToFetch(fetchedAt, now));
+
+        Arrays.fill(fetchedAt, now - 2 * STEP);
+        assertEquals(5, ForecastHorizon.daysToFetch(fetchedAt, now));
+
+        fetchedAt[9] = 0;
+        assertEquals("A missing day is fetched along with everything before it", 10,
+                ForecastHorizon.daysToFetch(fetchedAt, now));
+    }
+
+    private LocationSyncEngine newEngine(boolean incremental, SyncTrace trace) {
+        LocationSyncEngine engine = new LocationSyncEngine(mContext, new HttpTransport(),
+                mServer.getUrl("/data/2.5/forecast/daily?"));
+        engine.setIncremental(incremental);
+        engine.setTrace(trace);
+        return engine;
+    }
+
+    public void testFreshLocationIsNotFetched() {
+        assertEquals(3, newEngine(true, new SyncTrace(false))
+                .sync(LOCATIONS, new SyncResult()).getSuccessCount());
+        int requests = mServer.getRequests().size();
+
+        SyncReport report = newEngine(true, new SyncTrace(false))
+                .sync(LOCATIONS, new SyncResult());
+        assertEquals(requests, mServer.getRequests().size());
+        assertEquals(3, report.getSuccessCount());
+        assertEquals(0, report.getRowsWritten());
+    }
+
+    public void testPartialFetchMergesIntoStoredDays() {
+        newEngine(true, new SyncTrace(false)).sync(LOCATIONS, new SyncResult());
+        age(STEP, false);
+        mRun = 1;
+
+        SyncReport report = newEngine(true, new SyncTrace(false))
+                .sync(LOCATIONS, new SyncResult());
+        StandInServer.Request last = mServer.getRequests().get(mServer.getRequests().size() - 1);
+        assertEquals("2", last.queryParameter("cnt"));
+        assertNull(last.header(LocationSyncEngine.HEADER_IF_NONE_MATCH));
+        assertEquals(3 * 2, report.getRowsWritten());
+        assertEquals(3 * LocationSyncEngine.FORECAST_DAYS, countRows());
+    }
+
+    public void testSimulatedWeek() {
+        Totals full = simulateWeek(false);
+        deleteAllRecords();
+        ResponseCache.getInstance(mContext).clear();
+        Totals incremental = simulateWeek(true);
+
+        Log.d(LOG_TAG, "Full: " + full);
+        Log.d(LOG_TAG, "Incremental: " + incremental);
+        Log.d(LOG_TAG, "Saved " + (full.wireBytes - incremental.wireBytes) + " bytes ("
+                + (100 - 100 * incremental.wireBytes / full.wireBytes) + "%) and "
+                + (full.rows - incremental.rows) + " rows ("
+                + (100 - 100 * incremental.rows / full.rows) + "%)");
+
+        assertEquals(full.successes, incremental.successes);
+        assertTrue(incremental.wireBytes < full.wireBytes * 6 / 10);
+        assertTrue(incremental.rows < full.rows * 6 / 10);
+        assertEquals(3 * LocationSyncEngine.FORECAST_DAYS, countRows());
+    }
+
+    private Totals simulateWeek(boolean incremental) {
+        Totals totals = new Totals();
+        for (int step = 0; step < DAYS * STEPS_PER_DAY; step++) {
+            if (step > 0) {
+                age(STEP, step % STEPS_PER_DAY == 0);
+            }
+            mRun = step;
+            SyncTrace trace = new SyncTrace(false);
+            SyncReport report = newEngine(incremental, trace).sync(LOCATIONS, new SyncResult());
+            totals.requests += trace.getRequests();
+            totals.wireBytes += trace.getWireBytes();
+            totals.rows += report.getRowsWritten();
+            totals.successes += report.getSuccessCount();
+        }
+        return totals;
+    }
+
+    /**
+     * Makes every stored day {@code millis} older and, on a new day, drops each location's
+     * furthest day.
+     */
+    private void age(long millis, boolean newDay) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            db.execSQL("UPDATE " + WeatherEntry.TABLE_NAME + " SET "
+                    + WeatherEntry.COLUMN_FETCHED_AT + " = "
+                    + WeatherEntry.COLUMN_FETCHED_AT + " - " + millis);
+            if (newDay) {
+                db.execSQL("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+                        + WeatherEntry.COLUMN_DATE + " = (SELECT MAX(w."
+                        + WeatherEntry.COLUMN_DATE + ") FROM " + WeatherEntry.TABLE_NAME
+                        + " w WHERE w." + WeatherEntry.COLUMN_LOC_KEY + " = "
+                        + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + ")");
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private int countRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private static class Totals {
+        long requests;
+        long wireBytes;
+        long rows;
+        int successes;
+
+        @Override
+        public String toString() {
+            return requests + " requests, " + wireBytes + " bytes on the wire, " + rows
+                    + " rows written";
+        }
+    }
+}
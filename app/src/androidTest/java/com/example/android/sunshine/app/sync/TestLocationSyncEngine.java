@@ -0,0 +1,257 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.TestConditionalFetch.CountingObserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Syncs many locations at once against a local stand-in server with some artificial latency,
+    checking that fetches overlap but never exceed the parallelism limit and that every
+    location's forecast ends up in the database.
+ */
+public class TestLocationSyncEngine extends AndroidTestCase {
+    private static final String LOG_TAG = TestLocationSyncEngine.class.getSimpleName();
+
+    private static final int LOCATION_COUNT = 120;
+    private static final int DAYS = 14;
+    private static final long SERVER_LATENCY_MS = 20;
+
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private StandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                int inFlight = mInFlight.incrementAndGet();
+                while (true) {
+                    int max = mMaxInFlight.get();
+                    if (inFlight <= max || mMaxInFlight.compareAndSet(max, inFlight)) {
+                        break;
+                    }
+                }
+                try {
+                    SystemClock.sleep(SERVER_LATENCY_MS);
+                    String setting = request.queryParameter("q");
+                    return StandInServer.Response
+                            .ok(ForecastFixtures.dailyForecast("City " + setting, DAYS,
+                                    setting.hashCode()))
+                            .header("ETag", "\"" + setting + "\"");
+                } finally {
+                    mInFlight.decrementAndGet();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private LocationSyncEngine newEngine() {
+        return new LocationSyncEngine(mContext, new HttpTransport(),
+                mServer.getUrl("/data/2.5/forecast/daily?"));
+    }
+
+    public void testManyLocations() {
+        List<String> settings = new ArrayList<String>(LOCATION_COUNT);
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            settings.add(Integer.toString(10000 + i));
+        }
+
+        SyncResult syncResult = new SyncResult();
+        SyncReport report = newEngine().sync(settings, syncResult);
+
+        assertEquals(LOCATION_COUNT, report.getSuccessCount());
+        for (SyncReport.LocationReport location : report.getLocations()) {
+            assertEquals(location.toString(), SyncReport.STATUS_UPDATED, location.status);
+        }
+        assertEquals(LOCATION_COUNT * DAYS, report.getRowsWritten());
+        assertEquals(LOCATION_COUNT * DAYS, countRows(WeatherEntry.CONTENT_URI));
+        assertEquals(LOCATION_COUNT, countRows(LocationEntry.CONTENT_URI));
+        assertEquals(LOCATION_COUNT, countRows(FetchStateEntry.CONTENT_URI));
+        assertEquals(LOCATION_COUNT * DAYS, syncResult.stats.numInserts);
+        assertFalse(syncResult.hasError());
+
+        assertTrue("Fetches never overlapped", mMaxInFlight.get() > 1);
+        assertTrue("More than " + LocationSyncEngine.MAX_PARALLEL_FETCHES
+                        + " fetches at once: " + mMaxInFlight.get(),
+                mMaxInFlight.get() <= LocationSyncEngine.MAX_PARALLEL_FETCHES);
+
+        long[] fetchMillis = new long[LOCATION_COUNT];
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            fetchMillis[i] = report.getLocations().get(i).fetchMillis;
+        }
+        Arrays.sort(fetchMillis);
+        Log.d(LOG_TAG, LOCATION_COUNT + " locations in " + report.getElapsedMillis()
+                + "ms (write " + report.getWriteMillis() + "ms), fetch p50 "
+                + fetchMillis[LOCATION_COUNT / 2] + "ms, p90 "
+                + fetchMillis[LOCATION_COUNT * 9 / 10] + "ms, p99 "
+                + fetchMillis[LOCATION_COUNT * 99 / 100] + "ms, max concurrency "
+                + mMaxInFlight.get());
+
+        // A serial sync would take at least LOCATION_COUNT * SERVER_LATENCY_MS.
+        assertTrue(report.getElapsedMillis() < LOCATION_COUNT * SERVER_LATENCY_MS);
+    }
+
+    public void testFollowedLocationsAreSynced() {
+        SunshineSyncAdapter.followLocation(mContext, "10001");
+        SunshineSyncAdapter.followLocation(mContext, "10002");
+        SunshineSyncAdapter.followLocation(mContext, "10003");
+        SunshineSyncAdapter.unfollowLocation(mContext, "10003");
+
+        SyncReport report = newEngine().syncFollowed("94043", new SyncResult());
+
+        assertEquals(3, report.getLocations().size());
+        assertNotNull(report.getLocation("94043"));
+        assertNotNull(report.getLocation("10001"));
+        assertNotNull(report.getLocation("10002"));
+        assertNull(report.getLocation("10003"));
+
+        // The placeholder row of a followed location gets the details OWM sent back.
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_CITY_NAME, LocationEntry.COLUMN_FOLLOWED},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{"10001"}, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("City 10001", cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+    }
+
+    public void testNotModifiedLocationsAreSkipped() throws IOException {
+        List<String> settings = Arrays.asList("10001", "10002");
+        newEngine().sync(settings, new SyncResult());
+
+        // The stand-in server doesn't revalidate, so answer the second round with 304s.
+        mServer.shutdown();
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return StandInServer.Response.status(304);
+            }
+        });
+        mServer.start();
+
+        SyncResult syncResult = new SyncResult();
+        SyncReport report = newEngine().sync(settings, syncResult);
+        assertEquals(0, report.getRowsWritten());
+        assertEquals(2, syncResult.stats.numSkippedEntries);
+        assertEquals(2 * DAYS, countRows(WeatherEntry.CONTENT_URI));
+    }
+
+    public void testUnchangedForecastWritesNothing() {
+        List<String> settings = Arrays.asList("10001", "10002");
+        newEngine().sync(settings, new SyncResult());
+        List<Long> idsBefore = readWeatherIds();
+
+        CountingObserver observer = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, observer);
+        try {
+            // The server sends the same forecast again with a full 200.
+            SyncReport report = newEngine().sync(settings, new SyncResult());
+            assertEquals(0, report.getRowsWritten());
+            assertEquals(2 * DAYS, report.getRowsUnchanged());
+
+            SystemClock.sleep(500);
+            assertEquals("An identical forecast must not notify", 0, observer.getCount());
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.quit();
+        }
+
+        // ON CONFLICT REPLACE would have given rewritten rows new ids.
+        assertEquals(idsBefore, readWeatherIds());
+    }
+
+    public void testOnlyChangedDayIsWrittenAndNotified() {
+        newEngine().sync(Arrays.asList("10001"), new SyncResult());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("10001"),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue(cursor.moveToPosition(3));
+        long changedDate = cursor.getLong(0);
+        assertTrue(cursor.moveToPosition(4));
+        long otherDate = cursor.getLong(0);
+        cursor.close();
+
+        // Make the stored copy of one day stale behind the sync's back.
+        ContentValues stale = new ContentValues();
+        stale.put(WeatherEntry.COLUMN_MAX_TEMP, -99);
+        mContext.getContentResolver().update(
+                WeatherContract.buildNoNotifyUri(WeatherEntry.CONTENT_URI), stale,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(changedDate)});
+
+        CountingObserver changed = CountingObserver.create();
+        CountingObserver other = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate("10001", changedDate), false, changed);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate("10001", otherDate), false, other);
+        try {
+            SyncReport report = newEngine().sync(Arrays.asList("10001"), new SyncResult());
+            assertEquals(1, report.getRowsWritten());
+            assertEquals(DAYS - 1, report.getRowsUnchanged());
+
+            SystemClock.sleep(500);
+            assertEquals(1, changed.getCount());
+            assertEquals(0, other.getCount());
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(changed);
+            mContext.getContentResolver().unregisterContentObserver(other);
+            changed.quit();
+            other.quit();
+        }
+    }
+
+    private List<Long> readWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry._ID + " ASC");
+        List<Long> ids = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private int countRows(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
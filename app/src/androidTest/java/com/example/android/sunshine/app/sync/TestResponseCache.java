@@ -0,0 +1,304 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Checks the response cache's keys, eviction, freshness and crash recovery, and that hits
+    don't write to disk, then wipes the database after a sync and times rebuilding it from the
+    cache against fetching it again.
+ */
+public class TestResponseCache extends AndroidTestCase {
+    private static final String LOG_TAG = TestResponseCache.class.getSimpleName();
+
+    private static final int LOCATION_COUNT = 50;
+    private static final int DAYS = 14;
+    private static final long SERVER_LATENCY_MS = 20;
+
+    private volatile String mCacheControl;
+    private StandInServer mServer;
+    private File mCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ResponseCache.getInstance(mContext).clear();
+        mCacheDir = new File(mContext.getCacheDir(), "test-responses");
+        deleteDirectory(mCacheDir);
+
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                String setting = request.queryParameter("q");
+                String etag = "\"" + setting + "\"";
+                if (etag.equals(request.header("If-None-Match"))) {
+                    return StandInServer.Response.status(304).header("ETag", etag);
+                }
+                try {
+                    Thread.sleep(SERVER_LATENCY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                StandInServer.Response response = StandInServer.Response
+                        .ok(ForecastFixtures.dailyForecast("City " + setting, DAYS, 0))
+                        .header("ETag", etag);
+                if (mCacheControl != null) {
+                    response.header("Cache-Control", mCacheControl);
+                }
+                return response;
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        ResponseCache.getInstance(mContext).clear();
+        deleteDirectory(mCacheDir);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private LocationSyncEngine newEngine() {
+        return new LocationSyncEngine(mContext, new HttpTransport(),
+                mServer.getUrl("/data/2.5/forecast/daily?"));
+    }
+
+    /**
+     * Fetches {@code q} from the stand-in server and stores the response in {@code cache},
+     * unless the response says not to.
+     */
+    private void store(ResponseCache cache, String key, String q) throws IOException {
+        HttpTransport.Exchange exchange = new HttpTransport().get(
+                new URL(mServer.getUrl("/data/2.5/forecast/daily?q=" + q)), null);
+        try {
+            ResponseCache.Editor editor = cache.edit(key, exchange);
+            if (editor == null) {
+                return;
+            }
+            InputStream body = editor.tee(exchange.getBody());
+            byte[] buffer = new byte[1024];
+            while (body.read(buffer) != -1) {
+            }
+            editor.commit();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void testKeyLeavesOutTheApiKey() {
+        assertEquals("http://h/daily?q=94043&cnt=14",
+                ResponseCache.keyFor("http://h/daily?q=94043&APPID=secret&cnt=14"));
+        assertEquals(ResponseCache.keyFor("http://h/daily?q=94043&APPID=old"),
+                ResponseCache.keyFor("http://h/daily?q=94043&APPID=new"));
+    }
+
+    public void testCacheControl() {
+        assertEquals(0, ResponseCache.parseMaxAge(null));
+        assertEquals(600000, ResponseCache.parseMaxAge("public, max-age=600"));
+        assertEquals(0, ResponseCache.parseMaxAge("max-age=600, no-cache"));
+        assertEquals(-1, ResponseCache.parseMaxAge("no-store"));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        long entrySize = ForecastFixtures.dailyForecast("City a", DAYS, 0).length();
+        ResponseCache cache = new ResponseCache(mCacheDir, entrySize * 5 / 2);
+        store(cache, "a", "a");
+        store(cache, "b", "b");
+        assertNotNull(cache.get("a"));
+        store(cache, "c", "c");
+
+        assertNull("b was the least recently used", cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(cache.size() <= entrySize * 5 / 2);
+    }
+
+    public void testFreshness() throws IOException {
+        ResponseCache cache = new ResponseCache(mCacheDir, ResponseCache.MAX_SIZE);
+        store(cache, "revalidate", "a");
+        mCacheControl = "max-age=600";
+        store(cache, "fresh", "b");
+        mCacheControl = "no-store";
+        store(cache, "never", "c");
+
+        long now = System.currentTimeMillis();
+        assertFalse(cache.get("revalidate").isFresh(now));
+        assertTrue(cache.get("fresh").isFresh(now));
+        assertFalse(cache.get("fresh").isFresh(now + 601 * 1000));
+        assertNull(cache.get("never"));
+    }
+
+    public void testRecoversFromCrash() throws IOException {
+        ResponseCache cache = new ResponseCache(mCacheDir, ResponseCache.MAX_SIZE);
+        store(cache, "a", "a");
+        store(cache, "b", "b");
+
+        // A body whose PUT never made it, a temporary file, a torn journal line and a body
+        // that went missing.
+        new FileOutputStream(new File(mCacheDir, ResponseCache.fileNameFor("c"))).close();
+        new FileOutputStream(new File(mCacheDir, ResponseCache.fileNameFor("d") + ".1.tmp"))
+                .close();
+        Writer journal = new FileWriter(new File(mCacheDir, ResponseCache.JOURNAL_FILE), true);
+        journal.write("PUT\tc\t0\t12");
+        journal.close();
+        assertTrue(new File(mCacheDir, ResponseCache.fileNameFor("b")).delete());
+
+        ResponseCache reopened = new ResponseCache(mCacheDir, ResponseCache.MAX_SIZE);
+        assertNotNull(reopened.get("a"));
+        assertEquals("\"a\"", reopened.get("a").etag);
+        assertNull(reopened.get("b"));
+        assertNull(reopened.get("c"));
+        assertEquals(reopened.get("a").size, reopened.size());
+        List<String> files = new ArrayList<String>();
+        Collections.addAll(files, mCacheDir.list());
+        Collections.sort(files);
+        assertEquals(2, files.size());
+        assertTrue(files.contains(ResponseCache.JOURNAL_FILE));
+        assertTrue(files.contains(ResponseCache.fileNameFor("a")));
+    }
+
+    public void testHitsDontWriteTheJournal() throws IOException {
+        ResponseCache cache = new ResponseCache(mCacheDir, ResponseCache.MAX_SIZE);
+        store(cache, "a", "a");
+        File journal = new File(mCacheDir, ResponseCache.JOURNAL_FILE);
+        long length = journal.length();
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(cache.get("a"));
+        }
+        assertEquals(length, journal.length());
+    }
+
+    public void testCrashBeforeReplacementPutDropsTheEntry() throws IOException {
+        ResponseCache cache = new ResponseCache(mCacheDir, ResponseCache.MAX_SIZE);
+        store(cache, "a", "a");
+        mCacheControl = "max-age=600";
+        store(cache, "a", "a");
+
+        // Lose the replacement's PUT, as if the process died right after the rename.  The
+        // new body is the same size as the old, so only the journal can tell them apart.
+        File journal = new File(mCacheDir, ResponseCache.JOURNAL_FILE);
+        String contents = readFile(journal);
+        int lastLine = contents.lastIndexOf('\n', contents.length() - 2);
+        Writer writer = new FileWriter(journal);
+        writer.write(contents.substring(0, lastLine + 1));
+        writer.close();
+
+        ResponseCache reopened = new ResponseCache(mCacheDir, ResponseCache.MAX_SIZE);
+        assertNull("The new body was served under the old entry", reopened.get("a"));
+        assertEquals(0, reopened.size());
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            StringBuilder contents = new StringBuilder();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                contents.append(new String(buffer, 0, n, "UTF-8"));
+            }
+            return contents.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testFreshResponseIsServedFromCache() {
+        mCacheControl = "max-age=600";
+        newEngine().sync(Collections.singleton("94043"), new SyncResult());
+        assertEquals(1, mServer.getRequestCount());
+
+        SyncReport report = newEngine().sync(Collections.singleton("94043"), new SyncResult());
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, report.getResponsesFromCache());
+        assertEquals(SyncReport.STATUS_UPDATED, report.getLocation("94043").status);
+    }
+
+    public void testRebuildAfterWipe() {
+        List<String> settings = new ArrayList<String>(LOCATION_COUNT);
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            settings.add(Integer.toString(30000 + i));
+        }
+        SyncReport network = newEngine().sync(settings, new SyncResult());
+        assertEquals(LOCATION_COUNT, network.getSuccessCount());
+        int rowsBefore = countRows();
+
+        // What WeatherDbHelper.onUpgrade does to the data.
+        deleteAllRecords();
+        assertEquals(0, countRows());
+
+        int requestsBefore = mServer.getRequestCount();
+        SyncReport rebuild = newEngine().rebuildFromCache(new SyncResult());
+        Log.d(LOG_TAG, "Network sync of " + LOCATION_COUNT + " locations: "
+                + network.getElapsedMillis() + "ms, rebuild from cache: "
+                + rebuild.getElapsedMillis() + "ms");
+
+        assertEquals("Rebuilding must not touch the network",
+                requestsBefore, mServer.getRequestCount());
+        assertEquals(LOCATION_COUNT, rebuild.getResponsesFromCache());
+        assertEquals(rowsBefore, countRows());
+
+        // The validators came back too, so the next sync only revalidates.
+        SyncReport next = newEngine().sync(settings, new SyncResult());
+        for (SyncReport.LocationReport location : next.getLocations()) {
+            assertEquals(SyncReport.STATUS_NOT_MODIFIED, location.status);
+        }
+    }
+
+    public void testEmptyDatabaseIsRebuiltBeforeSyncing() {
+        newEngine().sync(Collections.singleton("94043"), new SyncResult());
+        deleteAllRecords();
+
+        int requestsBefore = mServer.getRequestCount();
+        SyncReport report = newEngine().syncFollowed("94043", true, new SyncResult());
+        assertEquals("Just rebuilt, so not due", 1, report.getLocationsNotDue());
+        assertEquals(requestsBefore, mServer.getRequestCount());
+        assertEquals(DAYS, countRows());
+    }
+
+    private int countRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    End-to-end sync benchmarks against the replaying stand-in server, over a few simulated
+    links.  Each one syncs LOCATION_COUNT locations from scratch, then again with nothing
+    changed upstream, and logs throughput and per-location fetch latency under the
+    TestSyncBenchmark tag.  The assertions only check that the links were simulated and that
+    no forecast was lost; the numbers are for reading.  testBatchedRequests compares requests
+    per sync and sync time with one request per city against group requests.
+ */
+public class TestSyncBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncBenchmark.class.getSimpleName();
+
+    private static final int LOCATION_COUNT = 40;
+    private static final int DAYS = 14;
+    // Small delays so the flaky link doesn't sleep for real backoff periods
+    private static final RetryPolicy FAST_RETRIES = new RetryPolicy(3, 10, 50);
+
+    private final List<String> mSettings = new ArrayList<String>(LOCATION_COUNT);
+    private ReplayResponder mReplay;
+    private StandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ResponseCache.getInstance(mContext).clear();
+        CircuitBreaker.resetAll(mContext);
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            mSettings.add(Integer.toString(40000 + i));
+        }
+        mReplay = ReplayResponder.generated(mSettings, DAYS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        ResponseCache.getInstance(mContext).clear();
+        CircuitBreaker.resetAll(mContext);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private void startServer(double errorRate) throws Exception {
+        mServer = new StandInServer(errorRate > 0
+                ? new FaultInjector(mReplay, errorRate, 7) : mReplay);
+        mServer.start();
+    }
+
+    private SyncReport sync(String pass) {
+        // No API key; the stand-in doesn't want one.
+        return sync(pass, new OpenWeatherMapSource(
+                mServer.getUrl("/data/2.5/forecast/daily?"), null), false);
+    }
+
+    private SyncReport sync(String pass, WeatherSource source, boolean batching) {
+        LocationSyncEngine engine = new LocationSyncEngine(mContext, new HttpTransport(), source);
+        engine.setRetryPolicy(FAST_RETRIES);
+        engine.setBatching(batching);
+        SyncReport report = engine.sync(mSettings, new SyncResult());
+        log(pass, report);
+        return report;
+    }
+
+    private void log(String pass, SyncReport report) {
+        long[] fetchMillis = new long[report.getLocations().size()];
+        for (int i = 0; i < fetchMillis.length; i++) {
+            fetchMillis[i] = report.getLocations().get(i).fetchMillis;
+        }
+        Arrays.sort(fetchMillis);
+        Log.d(LOG_TAG, String.format(Locale.US,
+                "%s: %d locations in %dms, %.1f locations/s, %d ok; "
+                        + "fetch p50 %dms, p90 %dms, max %dms; write %dms",
+                pass, fetchMillis.length, report.getElapsedMillis(),
+                fetchMillis.length * 1000.0 / Math.max(1, report.getElapsedMillis()),
+                report.getSuccessCount(), fetchMillis[fetchMillis.length / 2],
+                fetchMillis[fetchMillis.length * 9 / 10], fetchMillis[fetchMillis.length - 1],
+                report.getWriteMillis()));
+    }
+
+    private static long minFetchMillis(SyncReport report) {
+        long min = Long.MAX_VALUE;
+        for (SyncReport.LocationReport location : report.getLocations()) {
+            min = Math.min(min, location.fetchMillis);
+        }
+        return min;
+    }
+
+    private void assertAllWithStatus(SyncReport report, int status) {
+        assertEquals(LOCATION_COUNT, report.getLocations().size());
+        for (SyncReport.LocationReport location : report.getLocations()) {
+            assertEquals(location.toString(), status, location.status);
+        }
+    }
+
+    public void testLoopback() throws Exception {
+        startServer(0);
+        assertAllWithStatus(sync("loopback"), SyncReport.STATUS_UPDATED);
+        assertAllWithStatus(sync("loopback, unchanged"), SyncReport.STATUS_NOT_MODIFIED);
+    }
+
+    public void testSlowMobileLink() throws Exception {
+        // Roughly a congested 3G link: long, uneven round trips and 32 KB/s per connection.
+        mReplay.latency(300, 100).bandwidth(32 * 1024);
+        startServer(0);
+
+        SyncReport full = sync("3G");
+        assertAllWithStatus(full, SyncReport.STATUS_UPDATED);
+        assertTrue("Latency wasn't simulated", minFetchMillis(full) >= 200);
+
+        // Revalidating skips the body, so only the round trips are left.
+        assertAllWithStatus(sync("3G, unchanged"), SyncReport.STATUS_NOT_MODIFIED);
+    }
+
+    public void testBatchedRequests() throws Exception {
+        mReplay.latency(300, 100).bandwidth(32 * 1024);
+        startServer(0);
+        WeatherSource source = new OpenWeatherMapGroupSource(
+                mServer.getUrl("/data/2.5/forecast/daily?"),
+                mServer.getUrl("/data/2.5/forecast/group?"), null);
+
+        SyncReport perCity = sync("3G, per city", source, false);
+        int perCityRequests = mServer.getRequests().size();
+        assertAllWithStatus(perCity, SyncReport.STATUS_UPDATED);
+
+        deleteAllRecords();
+        ResponseCache.getInstance(mContext).clear();
+        SyncReport batched = sync("3G, batched", source, true);
+        int batchedRequests = mServer.getRequests().size() - perCityRequests;
+        assertAllWithStatus(batched, SyncReport.STATUS_UPDATED);
+        assertEquals(perCity.getRowsWritten(), batched.getRowsWritten());
+
+        Log.d(LOG_TAG, String.format(Locale.US,
+                "requests per sync: %d per city, %d batched; sync time: %dms per city, "
+                        + "%dms batched",
+                perCityRequests, batchedRequests, perCity.getElapsedMillis(),
+                batched.getElapsedMillis()));
+        int expectedBatches = (LOCATION_COUNT + OpenWeatherMapGroupSource.MAX_BATCH_SIZE - 1)
+                / OpenWeatherMapGroupSource.MAX_BATCH_SIZE;
+        assertEquals(LOCATION_COUNT, perCityRequests);
+        assertEquals(expectedBatches, batchedRequests);
+    }
+
+    public void testFlakyLink() throws Exception {
+        mReplay.latency(50, 25);
+        startServer(0.1);
+
+        SyncReport report = sync("flaky");
+        int rows = 0;
+        for (SyncReport.LocationReport location : report.getLocations()) {
+            if (location.isSuccess()) {
+                assertEquals(DAYS, location.rows);
+                rows += location.rows;
+            } else {
+                assertEquals(location.toString(), SyncReport.STATUS_IO_ERROR, location.status);
+            }
+        }
+        assertEquals(rows, report.getRowsWritten());
+        // With three attempts each, nearly every location gets through.
+        assertTrue(report.getSuccessCount() + " of " + LOCATION_COUNT,
+                report.getSuccessCount() > LOCATION_COUNT / 2);
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Collections;
+
+/*
+    Checks that bursts of immediate syncs are merged, that syncs for a location the user has
+    left are dropped, and that two syncs of the same location against a slow stand-in server
+    share one request.  A fetch dropped while it was a circuit breaker's half-open trial must
+    leave the breaker free to try again.
+ */
+public class TestSyncCoalescer extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "94043";
+    private static final String OTHER_LOCATION = "10001";
+    private static final long SLOW_RESPONSE_MS = 1500;
+
+    private final SyncCoalescer mCoalescer = SyncCoalescer.getInstance();
+    private StandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ResponseCache.getInstance(mContext).clear();
+        CircuitBreaker.resetAll(mContext);
+        mCoalescer.reset();
+
+        mServer = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return StandInServer.Response.ok(ForecastFixtures.dailyForecast(
+                        "City " + request.queryParameter("q"), 14, 0))
+                        .delay(SLOW_RESPONSE_MS);
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mCoalescer.reset();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    private LocationSyncEngine newEngine() {
+        return new LocationSyncEngine(mContext, new HttpTransport(),
+                mServer.getUrl("/data/2.5/forecast/daily?"));
+    }
+
+    private void awaitRequests(int count) {
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (mServer.getRequestCount() < count) {
+            assertTrue("Request never arrived", SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+
+    public void testRepeatedRequestsAreMerged() {
+        assertTrue(mCoalescer.offer(TEST_LOCATION));
+        assertFalse(mCoalescer.offer(TEST_LOCATION));
+        assertFalse(mCoalescer.offer(TEST_LOCATION));
+        assertEquals(2, mCoalescer.getRequestsMerged());
+
+        // Once the sync starts, the next request needs a sync of its own.
+        assertTrue(mCoalescer.onSyncStarted(TEST_LOCATION));
+        assertTrue(mCoalescer.offer(TEST_LOCATION));
+    }
+
+    public void testSupersededSyncIsSkipped() {
+        assertTrue(mCoalescer.offer(TEST_LOCATION));
+        assertTrue(mCoalescer.offer(OTHER_LOCATION));
+        // Switching back isn't merged into the dropped request.
+        assertTrue(mCoalescer.offer(TEST_LOCATION));
+
+        assertFalse(mCoalescer.onSyncStarted(OTHER_LOCATION));
+        assertTrue(mCoalescer.onSyncStarted(TEST_LOCATION));
+        assertEquals(1, mCoalescer.getSyncsSuperseded());
+        assertEquals(1, mCoalescer.getRequestsAvoided());
+    }
+
+    public void testOwnershipFollowsTheTicket() throws Exception {
+        // Pooled workers board from whatever thread they run on, even twice from one.
+        SyncCoalescer.Ticket owner = mCoalescer.board(TEST_LOCATION, false);
+        SyncCoalescer.Ticket joiner = mCoalescer.board(TEST_LOCATION, false);
+        assertTrue(owner.owner);
+        assertFalse("Boarding again on the owner's thread joins", joiner.owner);
+        assertSame(owner.flight, joiner.flight);
+        try {
+            mCoalescer.land(joiner, new LocationSyncEngine.LocationResult(TEST_LOCATION));
+            fail("A caller that joined landed the flight");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        mCoalescer.land(owner, new LocationSyncEngine.LocationResult(TEST_LOCATION));
+        assertEquals(TEST_LOCATION, joiner.flight.await().setting);
+
+        // A flight left in the air is forgotten by reset.
+        mCoalescer.board(TEST_LOCATION, false);
+        mCoalescer.reset();
+        assertTrue(mCoalescer.board(TEST_LOCATION, false).owner);
+    }
+
+    public void testConcurrentSyncsShareOneFetch() throws Exception {
+        final SyncReport[] first = new SyncReport[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                first[0] = newEngine().sync(Collections.singleton(TEST_LOCATION),
+                        new SyncResult());
+            }
+        });
+        thread.start();
+        awaitRequests(1);
+
+        SyncReport second = newEngine().sync(Collections.singleton(TEST_LOCATION),
+                new SyncResult());
+        thread.join();
+
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, mCoalescer.getFetchesJoined());
+        assertEquals(SyncReport.STATUS_UPDATED, first[0].getLocation(TEST_LOCATION).status);
+        assertEquals(SyncReport.STATUS_UPDATED, second.getLocation(TEST_LOCATION).status);
+        assertEquals(14, second.getLocation(TEST_LOCATION).rows);
+        // Only the sync that made the fetch writes it.
+        assertEquals(14, first[0].getRowsWritten());
+        assertEquals(0, second.getRowsWritten());
+    }
+
+    public void testLocationChangeCancelsFetch() throws Exception {
+        final SyncReport[] report = new SyncReport[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                report[0] = newEngine().syncFollowed(TEST_LOCATION, new SyncResult());
+            }
+        });
+        long start = SystemClock.elapsedRealtime();
+        thread.start();
+        awaitRequests(1);
+
+        // The user picks another location while the old one is still loading.
+        mCoalescer.offer(OTHER_LOCATION);
+        thread.join();
+
+        assertTrue("The fetch wasn't aborted",
+                SystemClock.elapsedRealtime() - start < SLOW_RESPONSE_MS);
+        assertEquals(SyncReport.STATUS_CANCELLED, report[0].getLocation(TEST_LOCATION).status);
+        assertEquals(1, mCoalescer.getFetchesCancelled());
+        assertEquals(0, report[0].getRowsWritten());
+    }
+
+    public void testCancelledTrialReleasesTheBreaker() throws Exception {
+        // Open the breaker long enough ago that the next request is its half-open trial.
+        CircuitBreaker breaker = CircuitBreaker.forHost(mContext,
+                Uri.parse(mServer.getUrl("/")).getEncodedAuthority());
+        long openedAt = System.currentTimeMillis() - CircuitBreaker.BASE_COOLDOWN - 1000;
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.recordFailure(openedAt);
+        }
+        assertFalse(breaker.allowRequest(openedAt));
+
+        final SyncReport[] report = new SyncReport[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                report[0] = newEngine().syncFollowed(TEST_LOCATION, new SyncResult());
+            }
+        });
+        thread.start();
+        awaitRequests(1);
+        mCoalescer.offer(OTHER_LOCATION);
+        thread.join();
+        assertEquals(SyncReport.STATUS_CANCELLED, report[0].getLocation(TEST_LOCATION).status);
+
+        // The aborted trial told nothing about the host; the next request is a trial again.
+        assertTrue("The cancelled trial kept the breaker shut",
+                breaker.allowRequest(System.currentTimeMillis()));
+        breaker.releaseTrial();
+        SyncReport next = newEngine().sync(Collections.singleton(TEST_LOCATION),
+                new SyncResult());
+        assertEquals(SyncReport.STATUS_UPDATED, next.getLocation(TEST_LOCATION).status);
+        assertEquals(0, breaker.getOpenUntil());
+    }
+}
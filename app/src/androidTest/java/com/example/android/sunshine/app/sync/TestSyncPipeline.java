@@ -0,0 +1,125 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Drives the sync pipeline with synthetic fetch and write stages to check that every result
+    is written once, that a task that throws only loses its own result, that writes overlap
+    with fetches, and that a slow writer holds the fetchers back instead of letting results
+    pile up.
+ */
+public class TestSyncPipeline extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncPipeline.class.getSimpleName();
+
+    private static List<Callable<Integer>> tasks(int count, final long millis,
+                                                 final AtomicLong lastFinish) {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(count);
+        for (int i = 0; i < count; i++) {
+            final int value = i;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    SystemClock.sleep(millis);
+                    long now = SystemClock.elapsedRealtime();
+                    while (true) {
+                        long last = lastFinish.get();
+                        if (now <= last || lastFinish.compareAndSet(last, now)) {
+                            break;
+                        }
+                    }
+                    return value;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    public void testEveryResultIsWrittenOnce() throws InterruptedException {
+        final List<Integer> written = new ArrayList<Integer>();
+        final int[] largestBatch = new int[1];
+        SyncPipeline<Integer> pipeline = new SyncPipeline<Integer>(4, 8, 5);
+        pipeline.run(tasks(100, 1, new AtomicLong()), new SyncPipeline.Sink<Integer>() {
+            @Override
+            public void accept(List<Integer> batch) {
+                written.addAll(batch);
+                largestBatch[0] = Math.max(largestBatch[0], batch.size());
+            }
+        });
+
+        Collections.sort(written);
+        assertEquals(100, written.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) written.get(i));
+        }
+        assertTrue(largestBatch[0] <= 5);
+        assertEquals(100, pipeline.getStats().consumed);
+    }
+
+    public void testFailedTaskOnlyLosesItsOwnResult() throws InterruptedException {
+        List<Callable<Integer>> tasks = tasks(10, 1, new AtomicLong());
+        tasks.set(3, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                throw new IllegalStateException("Thrown by the test");
+            }
+        });
+        final List<Integer> written = new ArrayList<Integer>();
+        SyncPipeline<Integer> pipeline = new SyncPipeline<Integer>(4, 8, 5);
+        pipeline.run(tasks, new SyncPipeline.Sink<Integer>() {
+            @Override
+            public void accept(List<Integer> batch) {
+                assertFalse(batch.isEmpty());
+                written.addAll(batch);
+            }
+        });
+
+        assertEquals(9, written.size());
+        assertFalse(written.contains(3));
+        assertEquals(1, pipeline.getStats().failed);
+        assertEquals(9, pipeline.getStats().consumed);
+    }
+
+    public void testWritesOverlapFetches() throws InterruptedException {
+        final AtomicLong lastFetchFinished = new AtomicLong();
+        final long[] firstWriteStarted = new long[1];
+        SyncPipeline<Integer> pipeline = new SyncPipeline<Integer>(4, 8, 4);
+        pipeline.run(tasks(40, 20, lastFetchFinished), new SyncPipeline.Sink<Integer>() {
+            @Override
+            public void accept(List<Integer> batch) {
+                if (firstWriteStarted[0] == 0) {
+                    firstWriteStarted[0] = SystemClock.elapsedRealtime();
+                }
+                SystemClock.sleep(10);
+            }
+        });
+        Log.d(LOG_TAG, pipeline.getStats().toString());
+
+        assertTrue("The first write waited for the last fetch",
+                firstWriteStarted[0] < lastFetchFinished.get());
+        assertTrue(pipeline.getStats().batches > 1);
+    }
+
+    public void testSlowWriterHoldsFetchersBack() throws InterruptedException {
+        SyncPipeline<Integer> pipeline = new SyncPipeline<Integer>(4, 2, 1);
+        pipeline.run(tasks(20, 0, new AtomicLong()), new SyncPipeline.Sink<Integer>() {
+            @Override
+            public void accept(List<Integer> batch) {
+                SystemClock.sleep(20);
+            }
+        });
+        SyncPipeline.Stats stats = pipeline.getStats();
+        Log.d(LOG_TAG, stats.toString());
+
+        assertTrue(stats.getMaxQueueDepth() <= 2);
+        assertTrue("Fetchers never waited", stats.producerBlockedMillis.get() > 0);
+        assertEquals(20, stats.batches);
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/*
+    Checks the scheduler's individual rules, that the sync engine honours due times, and
+    replays a few usage traces through SyncSimulation to compare the adaptive schedule with the
+    old fixed three hour period.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncScheduler.class.getSimpleName();
+
+    private static final long HOUR = SyncScheduler.HOUR_IN_MILLIS;
+    private static final long DAY = SyncScheduler.DAY_IN_MILLIS;
+    private static final long NOON = 12 * HOUR;
+
+    private final SyncScheduler mScheduler = new SyncScheduler();
+
+    private static SyncScheduler.Conditions at(long now, long lastAppOpen, boolean metered) {
+        return new SyncScheduler.Conditions(now, lastAppOpen, metered, (int) ((now % DAY) / HOUR));
+    }
+
+    public void testBaseInterval() {
+        // Some change, app just opened, unmetered, midday: the old fixed period.
+        assertEquals(SyncScheduler.BASE_INTERVAL,
+                mScheduler.interval(at(NOON, NOON, false), 0.25));
+    }
+
+    public void testChangingForecastIsCheckedSooner() {
+        SyncScheduler.Conditions conditions = at(NOON, NOON, false);
+        assertTrue(mScheduler.interval(conditions, 0.9)
+                < mScheduler.interval(conditions, 0.25));
+    }
+
+    public void testUnchangedForecastWaitsLongerWhenNobodyLooks() {
+        // Looked at a moment ago: keep the base interval even though nothing changed.
+        assertEquals(SyncScheduler.BASE_INTERVAL,
+                mScheduler.interval(at(NOON, NOON, false), 0));
+        // Not looked at for a while: back off.
+        assertTrue(mScheduler.interval(at(NOON, NOON - 8 * HOUR, false), 0)
+                > SyncScheduler.BASE_INTERVAL);
+    }
+
+    public void testDormantUserBacksOff() {
+        long now = 30 * DAY + NOON;
+        long lastWeek = mScheduler.interval(at(now, now - 3 * DAY, false), 0.25);
+        long lastMonth = mScheduler.interval(at(now, now - 20 * DAY, false), 0.25);
+        assertTrue(lastWeek > SyncScheduler.BASE_INTERVAL);
+        assertTrue(lastMonth > lastWeek);
+        assertTrue(lastMonth <= SyncScheduler.MAX_INTERVAL);
+    }
+
+    public void testMeteredBacksOff() {
+        assertTrue(mScheduler.interval(at(NOON, NOON, true), 0.25)
+                > mScheduler.interval(at(NOON, NOON, false), 0.25));
+    }
+
+    public void testNightStretchEndsInTheMorning() {
+        long oneAm = DAY + HOUR;
+        long interval = mScheduler.interval(at(oneAm, oneAm, false), 0.25);
+        assertTrue(interval > SyncScheduler.BASE_INTERVAL);
+        assertTrue("Night stretch ran past the morning",
+                oneAm + interval <= DAY + SyncScheduler.NIGHT_END * HOUR);
+    }
+
+    public void testIntervalIsClamped() {
+        assertTrue(mScheduler.interval(at(NOON, NOON, false), 1) >= SyncScheduler.MIN_INTERVAL);
+        long worst = mScheduler.interval(at(30 * DAY + HOUR, 0, true), 0);
+        assertEquals(SyncScheduler.MAX_INTERVAL, worst);
+    }
+
+    public void testEngineSkipsLocationsThatAreNotDue() throws Exception {
+        deleteAllRecords();
+        StandInServer server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return StandInServer.Response.ok(ForecastFixtures.dailyForecast(
+                        "City " + request.queryParameter("q"), 14, 0));
+            }
+        });
+        server.start();
+        try {
+            long now = System.currentTimeMillis();
+            SyncScheduler.Conditions conditions = new SyncScheduler.Conditions(
+                    now, now, false, 12);
+
+            LocationSyncEngine engine = new LocationSyncEngine(mContext, new HttpTransport(),
+                    server.getUrl("/data/2.5/forecast/daily?"));
+            engine.setConditions(conditions);
+            engine.sync(Arrays.asList("10001"), new SyncResult());
+            assertEquals(1, server.getRequestCount());
+
+            // Just fetched, so a periodic tick leaves it alone...
+            SyncReport report = engine.syncFollowed("10001", true, new SyncResult());
+            assertEquals(1, server.getRequestCount());
+            assertEquals(1, report.getLocationsNotDue());
+
+            // ...but a manual sync doesn't.
+            engine.syncFollowed("10001", false, new SyncResult());
+            assertEquals(2, server.getRequestCount());
+
+            // And once the interval has passed it is due again.
+            engine.setConditions(new SyncScheduler.Conditions(
+                    now + SyncScheduler.MAX_INTERVAL, now, false, 12));
+            engine.syncFollowed("10001", true, new SyncResult());
+            assertEquals(3, server.getRequestCount());
+        } finally {
+            server.shutdown();
+            deleteAllRecords();
+        }
+    }
+
+    public void testSimulation() {
+        final int days = 14;
+        SyncSimulation.Trace commuter = new SyncSimulation.Trace("commuter",
+                SyncSimulation.dailyOpens(SyncSimulation.range(0, days), new double[]{7.5, 18}),
+                // On mobile data during the commute
+                SyncSimulation.dailyOpens(SyncSimulation.range(0, days), new double[]{7, 17.5}),
+                SyncSimulation.dailyOpens(SyncSimulation.range(0, days), new double[]{8.5, 19}));
+        SyncSimulation.Trace heavy = new SyncSimulation.Trace("heavy",
+                SyncSimulation.dailyOpens(SyncSimulation.range(0, days),
+                        new double[]{8.3, 10.3, 12.3, 14.3, 16.3, 18.3, 20.3, 22.3}));
+        SyncSimulation.Trace weekend = new SyncSimulation.Trace("weekend",
+                SyncSimulation.dailyOpens(new int[]{5, 6, 12, 13}, new double[]{10}));
+        SyncSimulation.Trace dormant = new SyncSimulation.Trace("dormant",
+                SyncSimulation.dailyOpens(new int[]{0}, new double[]{10}));
+
+        for (long seed = 1; seed <= 3; seed++) {
+            SyncSimulation simulation = new SyncSimulation(days, seed);
+            for (SyncSimulation.Trace trace : new SyncSimulation.Trace[]{
+                    commuter, heavy, weekend, dormant}) {
+                SyncSimulation.Result fixed = simulation.runFixed(trace);
+                SyncSimulation.Result adaptive = simulation.runAdaptive(trace);
+                Log.d(LOG_TAG, "seed " + seed + ": " + fixed);
+                Log.d(LOG_TAG, "seed " + seed + ": " + adaptive);
+
+                if (trace == dormant || trace == weekend) {
+                    // Users who rarely look should cost far fewer fetches.
+                    assertTrue(adaptive.toString(), adaptive.fetches < fixed.fetches * 0.75);
+                } else {
+                    // Users who look often should see a forecast about as fresh as before.
+                    assertTrue(adaptive + " vs " + fixed,
+                            adaptive.meanStaleness <= fixed.meanStaleness + 2 * HOUR);
+                }
+            }
+        }
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+}
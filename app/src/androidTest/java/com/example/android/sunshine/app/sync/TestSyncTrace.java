@@ -0,0 +1,151 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Checks the histogram buckets and percentiles, that the trace store keeps only the newest
+    records across a reopen, and that a sync against the stand-in server fills in every phase
+    of its trace.
+ */
+public class TestSyncTrace extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncTrace.class.getSimpleName();
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ResponseCache.getInstance(mContext).clear();
+        CircuitBreaker.resetAll(mContext);
+        mFile = new File(mContext.getCacheDir(), "test-" + SyncTraceStore.FILE_NAME);
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(FetchStateEntry.CONTENT_URI, null, null);
+    }
+
+    public void testHistogram() {
+        assertEquals(0, SyncHistogram.bucketFor(0));
+        assertEquals(1, SyncHistogram.bucketFor(1));
+        assertEquals(2, SyncHistogram.bucketFor(3));
+        assertEquals(11, SyncHistogram.bucketFor(1024));
+
+        SyncHistogram histogram = new SyncHistogram("us");
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(505.0, histogram.getMean(), 0.001);
+        // The true median is 500, which falls in [256, 512).
+        assertEquals(511, histogram.getPercentile(0.5));
+        assertEquals(1000, histogram.getPercentile(0.99));
+    }
+
+    public void testStoreKeepsTheNewestRecords() throws Exception {
+        SyncTraceStore store = new SyncTraceStore(mFile);
+        for (int i = 0; i < SyncTraceStore.MAX_RECORDS + 5; i++) {
+            SyncTrace trace = new SyncTrace(i, i % 2 == 0);
+            trace.locations = i;
+            trace.setCounts(i, 1000 + i, 3000 + i);
+            trace.setPhase(SyncTrace.PHASE_PARSE, 7, 2);
+            store.append(trace);
+        }
+
+        List<SyncTrace> records = new SyncTraceStore(mFile).getRecords();
+        assertEquals(SyncTraceStore.MAX_RECORDS, records.size());
+        SyncTrace oldest = records.get(0);
+        assertEquals(5, oldest.startedAt);
+        assertEquals(5, oldest.locations);
+        assertEquals(1005, oldest.getWireBytes());
+        assertEquals(7, oldest.getPhaseMillis(SyncTrace.PHASE_PARSE));
+        assertEquals(2, oldest.getPhaseCount(SyncTrace.PHASE_PARSE));
+        assertFalse(oldest.manual);
+
+        StringWriter csv = new StringWriter();
+        store.exportRecords(csv);
+        String[] lines = csv.toString().split("\n");
+        assertEquals(SyncTraceStore.MAX_RECORDS + 1, lines.length);
+        assertTrue(lines[0].startsWith("started_at,"));
+    }
+
+    public void testStoreDropsAnotherVersionsFile() throws Exception {
+        Writer writer = new FileWriter(mFile);
+        writer.write("started_at,elapsed\n1,2\n");
+        writer.close();
+
+        SyncTraceStore store = new SyncTraceStore(mFile);
+        assertTrue(store.getRecords().isEmpty());
+        store.append(new SyncTrace(false));
+        assertEquals(1, store.getRecords().size());
+    }
+
+    public void testSyncFillsInEveryPhase() throws Exception {
+        StandInServer server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public StandInServer.Response respond(StandInServer.Request request) {
+                return StandInServer.Response.ok(ForecastFixtures.dailyForecast(
+                        "City " + request.queryParameter("q"), 14, 0)).delay(20);
+            }
+        });
+        server.start();
+        SyncTrace.resetHistograms();
+        SyncTrace trace = new SyncTrace(true);
+        try {
+            LocationSyncEngine engine = new LocationSyncEngine(mContext, new HttpTransport(),
+                    server.getUrl("/data/2.5/forecast/daily?"));
+            engine.setTrace(trace);
+            SyncReport report = engine.sync(Arrays.asList("94043", "10001", "60601"),
+                    new SyncResult());
+            trace.finish(report);
+            assertSame(trace, report.getTrace());
+        } finally {
+            server.shutdown();
+        }
+        Log.d(LOG_TAG, trace.toString());
+        Log.d(LOG_TAG, "first byte: " + SyncTrace.getPhaseHistogram(SyncTrace.PHASE_FIRST_BYTE));
+
+        assertEquals(3, trace.locations);
+        assertEquals(3, trace.successes);
+        assertEquals(3, trace.getRequests());
+        assertTrue(trace.getWireBytes() > 0);
+        assertTrue(trace.getDecodedBytes() >= trace.getWireBytes());
+        for (int phase : new int[]{SyncTrace.PHASE_DNS, SyncTrace.PHASE_CONNECT,
+                SyncTrace.PHASE_FIRST_BYTE, SyncTrace.PHASE_DOWNLOAD, SyncTrace.PHASE_PARSE}) {
+            assertEquals(SyncTrace.phaseName(phase), 3, trace.getPhaseCount(phase));
+        }
+        assertTrue(trace.getPhaseCount(SyncTrace.PHASE_DB_WRITE) > 0);
+        // Content changes are notified by the provider within the write; the engine doesn't
+        // post the user notification.
+        assertEquals(0, trace.getPhaseCount(SyncTrace.PHASE_NOTIFY));
+        assertEquals(1, trace.getPhaseCount(SyncTrace.PHASE_SYNC));
+        // The server waits 20ms before answering.
+        assertTrue(trace.getPhaseMillis(SyncTrace.PHASE_FIRST_BYTE) >= 3 * 20);
+        assertEquals(3, SyncTrace.getPhaseHistogram(SyncTrace.PHASE_FIRST_BYTE).getCount());
+    }
+}
@@ -30,12 +30,16 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link ListView} layout.
  */
@@ -45,17 +49,44 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     private ListView mListView;
     private int mPosition = ListView.INVALID_POSITION;
+    // Whether mPosition came from saved state and the list hasn't been scrolled to it yet
+    private boolean mRestorePosition;
     private boolean mUseTodayLayout;
+    // The location setting the pages are loaded for, null until the location loader has
+    // finished once, and its row id, or NO_LOCATION_ID until a sync has stored it
+    private String mForecastSetting;
+    private long mLocationId = NO_LOCATION_ID;
+    // Where the location is, for the map
+    private String mLocationLat;
+    private String mLocationLong;
 
     private static final String SELECTED_KEY = "selected_position";
-
-    private static final int FORECAST_LOADER = 0;
+    private static final String FORECAST_SETTING_KEY = "forecast_setting";
+    private static final String LOCATION_ID_KEY = "location_id";
+    private static final String PAGE_AFTER_KEY = "page_after";
+
+    private static final long NO_LOCATION_ID = -1;
+
+    // Looks up the preferred location's row once per location, and again when it changes
+    private static final int LOCATION_LOADER = 0;
+    // Page n of the forecast list loads with loader FORECAST_LOADER + n
+    private static final int FORECAST_LOADER = 1;
+    private static final int PAGE_SIZE = 30;
+    // The next page loads when the list is scrolled to within this many rows of its end
+    private static final int PAGE_PREFETCH = 10;
+    private static final String AFTER_KEY = "after";
+
+    // The pages of the list in order, null until loaded, and the date each one starts after
+    private final List<Cursor> mPages = new ArrayList<Cursor>();
+    private final List<Long> mPageAfter = new ArrayList<Long>();
     // For the forecast view we're showing only a small subset of the stored data.
     // Specify the columns we need.
+    // The location's columns come from the location loader, once per location, so a query
+    // by location id reads the weather table alone.
     private static final String[] FORECAST_COLUMNS = {
             // In this case the id needs to be fully qualified with a table name, since
             // the content provider joins the location & weather tables in the background
-            // (both have an _id column)
+            // (both have an _id column) when the list is queried by location setting.
             // On the one hand, that's annoying.  On the other, you can search the weather table
             // using the location set by the user, which is only in the Location table.
             // So the convenience is worth it.
@@ -64,10 +95,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
             WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
             WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
-            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
     };
 
     // These indices are tied to FORECAST_COLUMNS.  If FORECAST_COLUMNS changes, these
@@ -77,10 +105,18 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     static final int COL_WEATHER_DESC = 2;
     static final int COL_WEATHER_MAX_TEMP = 3;
     static final int COL_WEATHER_MIN_TEMP = 4;
-    static final int COL_LOCATION_SETTING = 5;
-    static final int COL_WEATHER_CONDITION_ID = 6;
-    static final int COL_COORD_LAT = 7;
-    static final int COL_COORD_LONG = 8;
+    static final int COL_WEATHER_CONDITION_ID = 5;
+
+    private static final String[] LOCATION_COLUMNS = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // These indices are tied to LOCATION_COLUMNS.
+    private static final int COL_LOCATION_ID = 0;
+    private static final int COL_COORD_LAT = 1;
+    private static final int COL_COORD_LONG = 2;
 
     /**
      * A callback interface that all activities containing this fragment must
@@ -158,6 +194,20 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                 mPosition = position;
             }
         });
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH) {
+                    loadNextPage();
+                }
+            }
+        });
 
         // If there's instance state, mine it for useful information.
         // The end-goal here is that the user never knows that turning their device sideways
@@ -168,6 +218,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
             // The listview probably hasn't even been populated yet.  Actually perform the
             // swapout in onLoadFinished.
             mPosition = savedInstanceState.getInt(SELECTED_KEY);
+            mRestorePosition = true;
         }
 
         mForecastAdapter.setUseTodayLayout(mUseTodayLayout);
@@ -177,14 +228,98 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
-        getLoaderManager().initLoader(FORECAST_LOADER, null, this);
+        mPages.clear();
+        mPageAfter.clear();
+        mPages.add(null);
+        mPageAfter.add(0L);
+        if (savedInstanceState != null && savedInstanceState.containsKey(FORECAST_SETTING_KEY)) {
+            // Takes the pages' loaders back, so a position past the first page can be restored,
+            // or makes them again if they weren't kept.  The location loader restarts them if
+            // the location changed meanwhile.
+            mForecastSetting = savedInstanceState.getString(FORECAST_SETTING_KEY);
+            mLocationId = savedInstanceState.getLong(LOCATION_ID_KEY);
+            long[] pageAfter = savedInstanceState.getLongArray(PAGE_AFTER_KEY);
+            for (int page = 0; page < pageAfter.length; page++) {
+                if (page > 0) {
+                    mPages.add(null);
+                    mPageAfter.add(pageAfter[page]);
+                }
+                Bundle args = new Bundle();
+                args.putLong(AFTER_KEY, pageAfter[page]);
+                getLoaderManager().initLoader(FORECAST_LOADER + page, args, this);
+            }
+        }
+        getLoaderManager().initLoader(LOCATION_LOADER, null, this);
         super.onActivityCreated(savedInstanceState);
     }
 
     // since we read the location when we create the loader, all we need to do is restart things
     void onLocationChanged( ) {
         updateWeather();
-        getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
+        // The pages restart once the new location's row is looked up
+        getLoaderManager().restartLoader(LOCATION_LOADER, null, this);
+    }
+
+    /**
+     * Starts loading the page after the last one, unless that one is still loading or is the
+     * end of the list.
+     */
+    private void loadNextPage() {
+        int next = mPages.size();
+        Cursor last = mPages.get(next - 1);
+        if (last == null || last.getCount() < PAGE_SIZE) {
+            return;
+        }
+        long after = getLastDate(last);
+        mPages.add(null);
+        mPageAfter.add(after);
+        Bundle args = new Bundle();
+        args.putLong(AFTER_KEY, after);
+        // Restarted rather than initialized, so a loader that started after another day is
+        // never reused
+        getLoaderManager().restartLoader(FORECAST_LOADER + next, args, this);
+    }
+
+    private static long getLastDate(Cursor page) {
+        page.moveToLast();
+        return page.getLong(COL_WEATHER_DATE);
+    }
+
+    /**
+     * Forgets the pages after {@code page} and stops their loaders.  They load again as the
+     * list is scrolled to them.
+     */
+    private void dropPagesAfter(int page) {
+        int count = mPages.size();
+        while (mPages.size() > page + 1) {
+            mPages.remove(mPages.size() - 1);
+            mPageAfter.remove(mPageAfter.size() - 1);
+        }
+        // Off the list before their loaders close them
+        swapPages();
+        for (int dropped = page + 1; dropped < count; dropped++) {
+            getLoaderManager().destroyLoader(FORECAST_LOADER + dropped);
+        }
+    }
+
+    /**
+     * Shows the pages loaded so far, up to the first one that isn't.
+     */
+    private void swapPages() {
+        List<Cursor> loaded = new ArrayList<Cursor>();
+        for (Cursor page : mPages) {
+            if (page == null) {
+                break;
+            }
+            loaded.add(page);
+        }
+        Cursor previous = mForecastAdapter.swapCursor(loaded.size() > 1
+                ? new PagedCursor(loaded.toArray(new Cursor[loaded.size()]))
+                : loaded.isEmpty() ? null : loaded.get(0));
+        // The loaders own the pages; only the cursor that joined them is ours to close
+        if (previous instanceof PagedCursor) {
+            previous.close();
+        }
     }
 
     private void updateWeather() {
@@ -195,24 +330,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // Using the URI scheme for showing a location found on a map.  This super-handy
         // intent can is detailed in the "Common Intents" page of Android's developer site:
         // http://developer.android.com/guide/components/intents-common.html#Maps
-        if ( null != mForecastAdapter ) {
-            Cursor c = mForecastAdapter.getCursor();
-            if ( null != c ) {
-                c.moveToPosition(0);
-                String posLat = c.getString(COL_COORD_LAT);
-                String posLong = c.getString(COL_COORD_LONG);
-                Uri geoLocation = Uri.parse("geo:" + posLat + "," + posLong);
-
-                Intent intent = new Intent(Intent.ACTION_VIEW);
-                intent.setData(geoLocation);
-
-                if (intent.resolveActivity(getActivity().getPackageManager()) != null) {
-                    startActivity(intent);
-                } else {
-                    Log.d(LOG_TAG, "Couldn't call " + geoLocation.toString() + ", no receiving apps installed!");
-                }
-            }
+        if ( null != mLocationLat ) {
+            Uri geoLocation = Uri.parse("geo:" + mLocationLat + "," + mLocationLong);
+
+            Intent intent = new Intent(Intent.ACTION_VIEW);
+            intent.setData(geoLocation);
 
+            if (intent.resolveActivity(getActivity().getPackageManager()) != null) {
+                startActivity(intent);
+            } else {
+                Log.d(LOG_TAG, "Couldn't call " + geoLocation.toString() + ", no receiving apps installed!");
+            }
         }
     }
 
@@ -224,13 +352,32 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         if (mPosition != ListView.INVALID_POSITION) {
             outState.putInt(SELECTED_KEY, mPosition);
         }
+        if (mForecastSetting != null) {
+            outState.putString(FORECAST_SETTING_KEY, mForecastSetting);
+            outState.putLong(LOCATION_ID_KEY, mLocationId);
+            long[] pageAfter = new long[mPageAfter.size()];
+            for (int page = 0; page < pageAfter.length; page++) {
+                pageAfter[page] = mPageAfter.get(page);
+            }
+            outState.putLongArray(PAGE_AFTER_KEY, pageAfter);
+        }
         super.onSaveInstanceState(outState);
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // This is called when a new Loader needs to be created.  This
-        // fragment only uses one loader, so we don't care about checking the id.
+        if (i == LOCATION_LOADER) {
+            return new CursorLoader(getActivity(),
+                    WeatherContract.LocationEntry.CONTENT_URI,
+                    LOCATION_COLUMNS,
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{Utility.getPreferredLocation(getActivity())},
+                    null);
+        }
+
+        // This is called when a new Loader needs to be created.  Each page of the list has a
+        // loader of its own; all but the first start after the last day of the one before.
+        long after = bundle != null ? bundle.getLong(AFTER_KEY) : 0;
 
         // To only show current and future dates, filter the query to return weather only for
         // dates after or including today.
@@ -238,31 +385,93 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // Sort order:  Ascending, by date.
         String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
 
-        String locationSetting = Utility.getPreferredLocation(getActivity());
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                locationSetting, System.currentTimeMillis());
+        // Once the location's row id is known, query by it, which finds the rows through the
+        // weather table's index rather than matching the setting on every row of a join.
+        Uri weatherForLocationUri = mLocationId != NO_LOCATION_ID
+                ? WeatherContract.WeatherEntry.buildWeatherLocationIdWithStartDate(
+                        mLocationId, System.currentTimeMillis())
+                : WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        mForecastSetting, System.currentTimeMillis());
 
         return new CursorLoader(getActivity(),
-                weatherForLocationUri,
+                WeatherContract.WeatherEntry.buildPage(weatherForLocationUri, after, PAGE_SIZE),
                 FORECAST_COLUMNS,
                 null,
                 null,
                 sortOrder);
     }
 
+    /**
+     * Takes the row id of the location the loader looked up for the pages, which query by it,
+     * and restarts them when it isn't what they were loaded with: the setting changed, or its
+     * row was deleted or recreated with another id.  Until a sync has stored the location,
+     * they query by setting.
+     */
+    private void onLocationLoaded(Loader<Cursor> loader, Cursor data) {
+        String setting = ((CursorLoader) loader).getSelectionArgs()[0];
+        long locationId = NO_LOCATION_ID;
+        mLocationLat = null;
+        mLocationLong = null;
+        if (data.moveToFirst()) {
+            locationId = data.getLong(COL_LOCATION_ID);
+            mLocationLat = data.getString(COL_COORD_LAT);
+            mLocationLong = data.getString(COL_COORD_LONG);
+        }
+        if (mForecastSetting == null) {
+            mForecastSetting = setting;
+            mLocationId = locationId;
+            getLoaderManager().initLoader(FORECAST_LOADER, null, this);
+        } else if (!setting.equals(mForecastSetting) || locationId != mLocationId) {
+            if (!setting.equals(mForecastSetting)) {
+                // Another location's list; the saved position doesn't belong to it.
+                mRestorePosition = false;
+            }
+            mForecastSetting = setting;
+            mLocationId = locationId;
+            dropPagesAfter(0);
+            getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
+        }
+    }
+
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mForecastAdapter.swapCursor(data);
-        if (mPosition != ListView.INVALID_POSITION) {
-            // If we don't need to restart the loader, and there's a desired position to restore
-            // to, do so now.
+        if (loader.getId() == LOCATION_LOADER) {
+            onLocationLoaded(loader, data);
+            return;
+        }
+        int page = loader.getId() - FORECAST_LOADER;
+        if (page >= mPages.size()) {
+            return;
+        }
+        mPages.set(page, data);
+        // A page that reloaded with other days than before would leave a gap or an overlap
+        // before the next one
+        if (page + 1 < mPages.size() && (data.getCount() < PAGE_SIZE
+                || getLastDate(data) != mPageAfter.get(page + 1))) {
+            dropPagesAfter(page);
+        } else {
+            swapPages();
+        }
+        if (mRestorePosition && mPosition != ListView.INVALID_POSITION
+                && mPosition < mForecastAdapter.getCount()) {
+            // Once the pages reach the position saved before the restart, scroll to it, then
+            // leave the list where the user puts it as later pages load.
             mListView.smoothScrollToPosition(mPosition);
+            mRestorePosition = false;
         }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mForecastAdapter.swapCursor(null);
+        if (loader.getId() == LOCATION_LOADER) {
+            // Nothing kept of its cursor
+            return;
+        }
+        int page = loader.getId() - FORECAST_LOADER;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+        }
+        swapPages();
     }
 
     public void setUseTodayLayout(boolean useTodayLayout) {
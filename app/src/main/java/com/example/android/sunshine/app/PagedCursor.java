@@ -0,0 +1,115 @@
+package com.example.android.sunshine.app;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+
+/**
+ * The pages of a list as one read-only cursor, in order.
+ * <p/>
+ * Unlike a {@link android.database.MergeCursor}, it doesn't register on its pages, and closing
+ * it leaves them open: their loaders own them.  So one can be made every time a page loads,
+ * and the one it replaces closed, without observers piling up on the pages.
+ */
+final class PagedCursor extends AbstractCursor {
+    private final Cursor[] mPages;
+    private final int mCount;
+    // The page holding the current row, or null before the first and after the last, and the
+    // row's position in it
+    private Cursor mPage;
+    private int mPageRow;
+
+    PagedCursor(Cursor[] pages) {
+        mPages = pages;
+        int count = 0;
+        for (Cursor page : pages) {
+            count += page.getCount();
+        }
+        mCount = count;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages[0].getColumnNames();
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int first = 0;
+        for (Cursor page : mPages) {
+            int count = page.getCount();
+            if (newPosition < first + count) {
+                mPage = page;
+                mPageRow = newPosition - first;
+                return page.moveToPosition(mPageRow);
+            }
+            first += count;
+        }
+        mPage = null;
+        return false;
+    }
+
+    /**
+     * @return the page holding the current row, moved back to it if the page's owner has
+     * moved it since.
+     */
+    private Cursor page() {
+        if (mPage == null) {
+            throw new CursorIndexOutOfBoundsException(getPosition(), mCount);
+        }
+        if (mPage.getPosition() != mPageRow) {
+            mPage.moveToPosition(mPageRow);
+        }
+        return mPage;
+    }
+
+    @Override
+    public String getString(int column) {
+        return page().getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return page().getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return page().getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return page().getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return page().getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return page().getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return page().getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return page().getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return page().isNull(column);
+    }
+}
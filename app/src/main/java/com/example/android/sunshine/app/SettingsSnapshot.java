@@ -0,0 +1,109 @@
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * The settings read on hot paths, such as binding a list row or starting a sync, as one
+ * immutable object.
+ * <p/>
+ * Reading a setting from SharedPreferences means a map lookup behind a lock, plus a resource
+ * lookup for the key and another for the default.  Here the keys and defaults are resolved once,
+ * and an {@link SharedPreferences.OnSharedPreferenceChangeListener} publishes a new snapshot
+ * whenever one of the settings changes, so {@link #get(Context)} is a volatile read.
+ * <p/>
+ * SharedPreferences calls its listeners on the main thread, so a change committed from another
+ * thread shows up here once the main thread has got to it.
+ */
+public final class SettingsSnapshot {
+
+    private static volatile SettingsSnapshot sCurrent;
+    // SharedPreferences only keeps a weak reference to its listeners
+    private static Listener sListener;
+
+    private final String mLocation;
+    private final boolean mMetric;
+    private final boolean mNotificationsEnabled;
+
+    private SettingsSnapshot(String location, boolean metric, boolean notificationsEnabled) {
+        mLocation = location;
+        mMetric = metric;
+        mNotificationsEnabled = notificationsEnabled;
+    }
+
+    /**
+     * @return the current settings.  Registers the listener on first use.
+     */
+    public static SettingsSnapshot get(Context context) {
+        SettingsSnapshot current = sCurrent;
+        return current != null ? current : init(context);
+    }
+
+    private static synchronized SettingsSnapshot init(Context context) {
+        if (sCurrent == null) {
+            Context appContext = context.getApplicationContext();
+            if (appContext == null) {
+                appContext = context;
+            }
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+            sListener = new Listener(appContext);
+            // Register before reading, so a change in between isn't lost
+            prefs.registerOnSharedPreferenceChangeListener(sListener);
+            sCurrent = sListener.read(prefs);
+        }
+        return sCurrent;
+    }
+
+    public String getLocation() {
+        return mLocation;
+    }
+
+    public boolean isMetric() {
+        return mMetric;
+    }
+
+    public boolean isNotificationsEnabled() {
+        return mNotificationsEnabled;
+    }
+
+    @Override
+    public String toString() {
+        return "location=" + mLocation + " metric=" + mMetric
+                + " notifications=" + mNotificationsEnabled;
+    }
+
+    private static class Listener implements SharedPreferences.OnSharedPreferenceChangeListener {
+        private final String mLocationKey;
+        private final String mLocationDefault;
+        private final String mUnitsKey;
+        private final String mUnitsMetric;
+        private final String mNotificationsKey;
+        private final boolean mNotificationsDefault;
+
+        Listener(Context context) {
+            mLocationKey = context.getString(R.string.pref_location_key);
+            mLocationDefault = context.getString(R.string.pref_location_default);
+            mUnitsKey = context.getString(R.string.pref_units_key);
+            mUnitsMetric = context.getString(R.string.pref_units_metric);
+            mNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
+            mNotificationsDefault = Boolean.parseBoolean(
+                    context.getString(R.string.pref_enable_notifications_default));
+        }
+
+        SettingsSnapshot read(SharedPreferences prefs) {
+            return new SettingsSnapshot(prefs.getString(mLocationKey, mLocationDefault),
+                    mUnitsMetric.equals(prefs.getString(mUnitsKey, mUnitsMetric)),
+                    prefs.getBoolean(mNotificationsKey, mNotificationsDefault));
+        }
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            // A null key means the preferences were cleared
+            if (key == null || key.equals(mLocationKey) || key.equals(mUnitsKey)
+                    || key.equals(mNotificationsKey)) {
+                sCurrent = read(prefs);
+            }
+        }
+    }
+}
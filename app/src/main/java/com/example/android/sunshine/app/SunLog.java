@@ -0,0 +1,318 @@
+package com.example.android.sunshine.app;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Structured logging for hot paths such as sync and the provider.
+ * <p/>
+ * A record is an event name plus up to three key/value pairs, e.g.
+ * {@code SunLog.d(LOG_TAG, "fetch_failed", "setting", setting, "code", code)}.  The fixed
+ * arity overloads take {@code long} values as they are, so a call below the enabled levels
+ * allocates nothing: no varargs array, no boxing and no string building.  Turning
+ * {@link #ENABLED} off compiles every call down to nothing.
+ * <p/>
+ * Records go to two sinks with their own levels:
+ * <ul>
+ * <li>an in-memory ring of the last {@link #RING_CAPACITY} records.  Its slots are allocated
+ * up front and values are only formatted when the ring is dumped, so recording allocates
+ * nothing either.  {@link #dump(Writer)} writes it out, e.g. from a bug report.</li>
+ * <li>logcat, which formats every record it takes.</li>
+ * </ul>
+ * Both take INFO and up by default, DEBUG in debug builds, so DEBUG calls in a release build
+ * take the path that does nothing.
+ * <p/>
+ * Because the ring formats late, values should be immutable or at least not change in a way
+ * that matters; a SyncReport that is finished by the time it is logged is fine.  Log a
+ * snapshot of long-lived objects like caches and breakers, e.g. their counts, through the
+ * {@code long} overloads rather than the objects themselves.
+ */
+public final class SunLog {
+
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    // Above every level, to turn a sink off
+    public static final int OFF = Log.ASSERT + 1;
+
+    // Flip to false to compile out every call
+    static final boolean ENABLED = true;
+
+    public static final int RING_CAPACITY = 512;
+
+    // Marks a value passed as a long; the value itself is in the matching long slot
+    private static final Object LONG = new Object();
+
+    private static final char[] LEVEL_LETTERS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+    // The level both sinks start at
+    static final int DEFAULT_LEVEL = BuildConfig.DEBUG ? DEBUG : INFO;
+
+    private static volatile int sRingLevel = DEFAULT_LEVEL;
+    private static volatile int sLogcatLevel = DEFAULT_LEVEL;
+
+    private static final Record[] sRing = new Record[RING_CAPACITY];
+    // Total records ever written to the ring; the next goes to sRingCount % RING_CAPACITY
+    private static long sRingCount;
+
+    static {
+        for (int i = 0; i < RING_CAPACITY; i++) {
+            sRing[i] = new Record();
+        }
+    }
+
+    private SunLog() {
+    }
+
+    /**
+     * @return whether a record at {@code level} would go anywhere.  Only worth checking
+     * before work that the overloads can't avoid, like computing a value.
+     */
+    public static boolean isLoggable(int level) {
+        return ENABLED && (level >= sRingLevel || level >= sLogcatLevel);
+    }
+
+    public static void setRingLevel(int level) {
+        sRingLevel = level;
+    }
+
+    public static void setLogcatLevel(int level) {
+        sLogcatLevel = level;
+    }
+
+    public static void d(String tag, String event) {
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, tag, event, null, null, null, 0, null, null, 0, null, null, 0);
+        }
+    }
+
+    public static void d(String tag, String event, String key, Object value) {
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, tag, event, null, key, value, 0, null, null, 0, null, null, 0);
+        }
+    }
+
+    public static void d(String tag, String event, String key, long value) {
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, tag, event, null, key, LONG, value, null, null, 0, null, null, 0);
+        }
+    }
+
+    public static void d(String tag, String event, String key1, Object value1,
+                         String key2, Object value2) {
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, tag, event, null, key1, value1, 0, key2, value2, 0, null, null, 0);
+        }
+    }
+
+    public static void d(String tag, String event, String key1, Object value1,
+                         String key2, long value2) {
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, tag, event, null, key1, value1, 0, key2, LONG, value2, null, null, 0);
+        }
+    }
+
+    public static void d(String tag, String event, String key1, long value1,
+                         String key2, long value2) {
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, tag, event, null, key1, LONG, value1, key2, LONG, value2, null, null, 0);
+        }
+    }
+
+    public static void d(String tag, String event, String key1, long value1,
+                         String key2, long value2, String key3, long value3) {
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, tag, event, null, key1, LONG, value1, key2, LONG, value2,
+                    key3, LONG, value3);
+        }
+    }
+
+    public static void d(String tag, String event, String key1, Object value1,
+                         String key2, long value2, String key3, long value3) {
+        if (isLoggable(DEBUG)) {
+            write(DEBUG, tag, event, null, key1, value1, 0, key2, LONG, value2,
+                    key3, LONG, value3);
+        }
+    }
+
+    public static void i(String tag, String event, String key, Object value) {
+        if (isLoggable(INFO)) {
+            write(INFO, tag, event, null, key, value, 0, null, null, 0, null, null, 0);
+        }
+    }
+
+    public static void w(String tag, String event, String key, Object value) {
+        if (isLoggable(WARN)) {
+            write(WARN, tag, event, null, key, value, 0, null, null, 0, null, null, 0);
+        }
+    }
+
+    public static void w(String tag, String event, String key, Object value, Throwable tr) {
+        if (isLoggable(WARN)) {
+            write(WARN, tag, event, tr, key, value, 0, null, null, 0, null, null, 0);
+        }
+    }
+
+    public static void e(String tag, String event, String key, Object value) {
+        if (isLoggable(ERROR)) {
+            write(ERROR, tag, event, null, key, value, 0, null, null, 0, null, null, 0);
+        }
+    }
+
+    public static void e(String tag, String event, String key, Object value, Throwable tr) {
+        if (isLoggable(ERROR)) {
+            write(ERROR, tag, event, tr, key, value, 0, null, null, 0, null, null, 0);
+        }
+    }
+
+    public static void e(String tag, String event, String key1, Object value1,
+                         String key2, long value2) {
+        if (isLoggable(ERROR)) {
+            write(ERROR, tag, event, null, key1, value1, 0, key2, LONG, value2, null, null, 0);
+        }
+    }
+
+    private static void write(int level, String tag, String event, Throwable tr,
+                              String key1, Object value1, long long1,
+                              String key2, Object value2, long long2,
+                              String key3, Object value3, long long3) {
+        if (level >= sRingLevel) {
+            synchronized (sRing) {
+                Record record = sRing[(int) (sRingCount++ % RING_CAPACITY)];
+                record.time = System.currentTimeMillis();
+                record.level = level;
+                record.tag = tag;
+                record.event = event;
+                record.throwable = tr;
+                record.key1 = key1;
+                record.value1 = value1;
+                record.long1 = long1;
+                record.key2 = key2;
+                record.value2 = value2;
+                record.long2 = long2;
+                record.key3 = key3;
+                record.value3 = value3;
+                record.long3 = long3;
+            }
+        }
+        if (level >= sLogcatLevel) {
+            StringBuilder sb = new StringBuilder();
+            appendMessage(sb, event, key1, value1, long1, key2, value2, long2,
+                    key3, value3, long3);
+            if (tr != null) {
+                sb.append('\n').append(Log.getStackTraceString(tr));
+            }
+            Log.println(level, tag, sb.toString());
+        }
+    }
+
+    private static void appendMessage(StringBuilder sb, String event,
+                                      String key1, Object value1, long long1,
+                                      String key2, Object value2, long long2,
+                                      String key3, Object value3, long long3) {
+        sb.append(event);
+        appendField(sb, key1, value1, long1);
+        appendField(sb, key2, value2, long2);
+        appendField(sb, key3, value3, long3);
+    }
+
+    private static void appendField(StringBuilder sb, String key, Object value, long longValue) {
+        if (key == null) {
+            return;
+        }
+        sb.append(' ').append(key).append('=');
+        if (value == LONG) {
+            sb.append(longValue);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * Writes the records in the ring to {@code writer}, oldest first, one per line in
+     * logcat's threadtime-like format.
+     */
+    public static void dump(Writer writer) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        synchronized (sRing) {
+            long first = Math.max(0, sRingCount - RING_CAPACITY);
+            for (long i = first; i < sRingCount; i++) {
+                Record record = sRing[(int) (i % RING_CAPACITY)];
+                sb.setLength(0);
+                sb.append(format.format(new Date(record.time))).append(' ')
+                  .append(LEVEL_LETTERS[record.level]).append('/').append(record.tag)
+                  .append(": ");
+                appendMessage(sb, record.event, record.key1, record.value1, record.long1,
+                        record.key2, record.value2, record.long2,
+                        record.key3, record.value3, record.long3);
+                if (record.throwable != null) {
+                    sb.append(" error=").append(record.throwable);
+                }
+                sb.append('\n');
+                writer.write(sb.toString());
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return the number of records in the ring.
+     */
+    public static int getRingSize() {
+        synchronized (sRing) {
+            return (int) Math.min(sRingCount, RING_CAPACITY);
+        }
+    }
+
+    /**
+     * Empties the ring.
+     */
+    public static void clearRing() {
+        synchronized (sRing) {
+            for (Record record : sRing) {
+                record.clear();
+            }
+            sRingCount = 0;
+        }
+    }
+
+    /**
+     * One slot of the ring.  Reused, never reallocated.
+     */
+    private static class Record {
+        long time;
+        int level;
+        String tag;
+        String event;
+        Throwable throwable;
+        String key1;
+        Object value1;
+        long long1;
+        String key2;
+        Object value2;
+        long long2;
+        String key3;
+        Object value3;
+        long long3;
+
+        void clear() {
+            tag = null;
+            event = null;
+            throwable = null;
+            key1 = null;
+            value1 = null;
+            key2 = null;
+            value2 = null;
+            key3 = null;
+            value3 = null;
+        }
+    }
+}
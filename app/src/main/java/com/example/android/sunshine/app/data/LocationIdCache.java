@@ -0,0 +1,142 @@
+package com.example.android.sunshine.app.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide map from location setting to the location's row, so the sync can resolve the
+ * location of a forecast without asking the provider, and from row id back to the setting, so
+ * the provider can find which setting a query by location id watches.
+ * <p/>
+ * {@link WeatherProvider} keeps it current.  Inserted locations are added as they are written,
+ * and anything that may change or remove a mapping clears it: deleting or updating locations,
+ * and creating the database.  Each clear starts a new generation.  A row read from the
+ * database is only added if no clear happened since the read started, so a lookup that races
+ * a delete can't bring a stale id back.
+ */
+public final class LocationIdCache {
+
+    private static final LocationIdCache sInstance = new LocationIdCache();
+
+    private final ConcurrentHashMap<String, Entry> mEntries =
+            new ConcurrentHashMap<String, Entry>();
+    // Row id to setting of every entry in mEntries
+    private final ConcurrentHashMap<Long, String> mSettings =
+            new ConcurrentHashMap<Long, String>();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    // Guarded by this
+    private long mGeneration;
+    private volatile boolean mEnabled = true;
+
+    /**
+     * A location row as the sync needs it.  Immutable, so it can be handed out as is.
+     */
+    public static final class Entry {
+        public final long id;
+        public final String cityName;
+        public final double lat;
+        public final double lon;
+
+        public Entry(long id, String cityName, double lat, double lon) {
+            this.id = id;
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    private LocationIdCache() {
+    }
+
+    public static LocationIdCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the cached row of {@code locationSetting}, or null if it isn't cached.
+     */
+    public Entry get(String locationSetting) {
+        Entry entry = mEnabled ? mEntries.get(locationSetting) : null;
+        if (entry != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * @return the setting of the cached location with row id {@code id}, or null if it isn't
+     * cached.
+     */
+    public String getSetting(long id) {
+        return mEnabled ? mSettings.get(id) : null;
+    }
+
+    /**
+     * @return the generation to pass to {@link #put(String, Entry, long)} for a row read
+     * from now on.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a row read from the database, unless the cache was cleared since
+     * {@code generation}.
+     */
+    public synchronized void put(String locationSetting, Entry entry, long generation) {
+        if (mEnabled && generation == mGeneration) {
+            putEntry(locationSetting, entry);
+        }
+    }
+
+    /**
+     * Caches a row the provider has just written.
+     */
+    synchronized void put(String locationSetting, Entry entry) {
+        if (mEnabled) {
+            putEntry(locationSetting, entry);
+        }
+    }
+
+    // Called holding this
+    private void putEntry(String locationSetting, Entry entry) {
+        Entry replaced = mEntries.put(locationSetting, entry);
+        if (replaced != null && replaced.id != entry.id) {
+            mSettings.remove(replaced.id);
+        }
+        mSettings.put(entry.id, locationSetting);
+    }
+
+    /**
+     * Drops every mapping and starts a new generation.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+        mSettings.clear();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Turns the cache off, so every lookup misses, or back on.  Only used by tests, to
+     * measure what it saves.
+     */
+    synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        invalidateAll();
+    }
+}
@@ -0,0 +1,374 @@
+package com.example.android.sunshine.app.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.net.Uri;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Bounded cache of {@link WeatherProvider}'s forecast list and detail queries, so loaders that
+ * requery after a configuration change or a notification about some other location don't go
+ * back to SQLite.
+ * <p/>
+ * Results are immutable snapshots, handed out as cursors of their own, keyed by the query's
+ * SQL and arguments, which carry the route, location, date, projection and sort order.  Least
+ * recently used results are evicted once their estimated size passes the budget.
+ * <p/>
+ * The provider invalidates by the URI it notifies for a write: a day's URI drops the results
+ * of that location that include the day, a location's URI drops all of the location's, and
+ * anything broader drops everything.  Like {@link LocationIdCache}, every invalidation starts
+ * a new generation, and a result read before one is not added.
+ */
+final class QueryResultCache {
+    // Enough for the forecast lists and details of a few dozen locations
+    static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    // Rough sizes of the objects a snapshot holds, for a 32-bit VM
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int ENTRY_BYTES = 64;
+    // A year of days, more than a result's share of the default budget holds.  Longer results,
+    // like a history of several years, stay in their cursor's window instead of being read
+    // into a snapshot on the heap.
+    private static final int MAX_ROWS = 366;
+
+    private final int mMaxBytes;
+    // Guarded by this, in access order
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mGeneration;
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    private static final class Entry {
+        final String setting;
+        // The dates the result covers, inclusive
+        final long firstDate;
+        final long lastDate;
+        final Snapshot snapshot;
+        final long bytes;
+
+        Entry(String setting, long firstDate, long lastDate, Snapshot snapshot, long bytes) {
+            this.setting = setting;
+            this.firstDate = firstDate;
+            this.lastDate = lastDate;
+            this.snapshot = snapshot;
+            this.bytes = bytes;
+        }
+    }
+
+    QueryResultCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return whether results of {@code match}'s route are cached.
+     */
+    static boolean isCached(int match) {
+        return match == WeatherProvider.WEATHER_WITH_LOCATION
+                || match == WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE
+                || match == WeatherProvider.WEATHER_WITH_LOCATION_ID;
+    }
+
+    static String key(String sql, String[] args) {
+        return args == null ? sql : sql + '\u0000' + Arrays.toString(args);
+    }
+
+    /**
+     * @return a cursor over the cached result for {@code key}, or null.
+     */
+    synchronized Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return new SnapshotCursor(entry.snapshot);
+    }
+
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads all of {@code cursor} into a snapshot, which is cached under {@code key} unless
+     * the cache was invalidated since {@code generation} or the snapshot is too large to be
+     * worth it.  {@code cursor} is closed, unless it has too many rows to be read at all, in
+     * which case it's returned as is.
+     *
+     * @param locationSetting the setting of the location the result is of.
+     * @param firstDate the first date the result covers.
+     * @param lastDate the last date the result covers, inclusive.
+     * @return a cursor over the snapshot, or {@code cursor}.
+     */
+    Cursor put(String key, String locationSetting, long firstDate, long lastDate, Cursor cursor,
+               long generation) {
+        if (cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = Snapshot.of(cursor);
+        } finally {
+            cursor.close();
+        }
+        long bytes = ENTRY_BYTES + 2 * key.length() + snapshot.bytes;
+        if (bytes <= mMaxBytes / 4) {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    Entry previous = mEntries.put(key,
+                            new Entry(locationSetting, firstDate, lastDate, snapshot, bytes));
+                    if (previous != null) {
+                        mBytes -= previous.bytes;
+                    }
+                    mBytes += bytes;
+                    trim();
+                }
+            }
+        }
+        return new SnapshotCursor(snapshot);
+    }
+
+    // Guarded by this
+    private void trim() {
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && entries.hasNext()) {
+            mBytes -= entries.next().bytes;
+            entries.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Drops the results a change notified on the weather {@code uri} may have made stale.
+     */
+    synchronized void invalidate(Uri uri) {
+        mGeneration++;
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2
+                || !segments.get(0).equals(WeatherContract.PATH_WEATHER)) {
+            invalidateAll();
+            return;
+        }
+        String setting = segments.get(1);
+        long date = 0;
+        if (segments.size() > 2) {
+            try {
+                date = Long.parseLong(segments.get(2));
+            } catch (NumberFormatException e) {
+                invalidateAll();
+                return;
+            }
+        }
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.setting.equals(setting) && (segments.size() == 2
+                    || (entry.firstDate <= date && date <= entry.lastDate))) {
+                mBytes -= entry.bytes;
+                entries.remove();
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return hits over lookups, or 0 before the first lookup.
+     */
+    synchronized double getHitRatio() {
+        long lookups = mHits + mMisses;
+        return lookups == 0 ? 0 : (double) mHits / lookups;
+    }
+
+    /**
+     * @return the estimated size of the cached results, in bytes.
+     */
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueryResultCache{entries=" + mEntries.size() + ", bytes=" + mBytes + "/"
+                + mMaxBytes + ", hits=" + mHits + ", misses=" + mMisses + ", evictions="
+                + mEvictions + "}";
+    }
+
+    /**
+     * The rows of a query, each an array of Long, Double, String, byte[] or null values.
+     */
+    static final class Snapshot {
+        final String[] columnNames;
+        final Object[][] rows;
+        final long bytes;
+
+        private Snapshot(String[] columnNames, Object[][] rows, long bytes) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        static Snapshot of(Cursor cursor) {
+            String[] columnNames = cursor.getColumnNames();
+            Object[][] rows = new Object[cursor.getCount()][];
+            long bytes = OBJECT_BYTES + REFERENCE_BYTES * rows.length;
+            for (int i = 0; cursor.moveToNext(); i++) {
+                Object[] row = new Object[columnNames.length];
+                bytes += OBJECT_BYTES + REFERENCE_BYTES * row.length;
+                for (int column = 0; column < row.length; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[column] = cursor.getLong(column);
+                            bytes += OBJECT_BYTES;
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[column] = cursor.getDouble(column);
+                            bytes += OBJECT_BYTES;
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String value = cursor.getString(column);
+                            row[column] = value;
+                            bytes += 2 * OBJECT_BYTES + 2 * value.length();
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(column);
+                            row[column] = blob;
+                            bytes += OBJECT_BYTES + blob.length;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                rows[i] = row;
+            }
+            return new Snapshot(columnNames, rows, bytes);
+        }
+    }
+
+    /**
+     * A read-only cursor over a snapshot.  Snapshots are never changed, so any number of these
+     * can share one.
+     */
+    static final class SnapshotCursor extends AbstractCursor {
+        private final Snapshot mSnapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        private Object get(int column) {
+            int position = getPosition();
+            if (position < 0 || position >= mSnapshot.rows.length) {
+                throw new CursorIndexOutOfBoundsException(position, mSnapshot.rows.length);
+            }
+            if (column < 0 || column >= mSnapshot.columnNames.length) {
+                throw new IndexOutOfBoundsException("Column " + column + " of "
+                        + mSnapshot.columnNames.length);
+            }
+            return mSnapshot.rows[position][column];
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.rows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mSnapshot.columnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value == null ? 0 : Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value == null ? 0 : Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            return value instanceof byte[] ? (byte[]) value : null;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
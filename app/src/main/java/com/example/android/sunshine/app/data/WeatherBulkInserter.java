@@ -0,0 +1,187 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.SunLog;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Inserts weather rows for {@link WeatherProvider#bulkInsert} through one INSERT compiled per
+ * transaction, instead of an SQLiteDatabase.insert per row that builds and compiles its own.
+ * <p/>
+ * Values are bound straight from the ContentValues as longs, doubles and strings.  Dates are
+ * normalized like {@link WeatherContract#normalizeDate(long)}, but with one Time for the whole
+ * insert and a small cache of dates already seen: a sync writes the same fourteen days for
+ * every location.
+ * <p/>
+ * Not thread safe; make one per bulk insert or batch.
+ */
+final class WeatherBulkInserter {
+    private static final String LOG_TAG = WeatherBulkInserter.class.getSimpleName();
+
+    // The columns in the order they are bound.  Keep FETCHED_AT_INDEX and DATE_INDEX in step.
+    private static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_FETCHED_AT
+    };
+    private static final int DATE_INDEX = 1;
+    private static final int FETCHED_AT_INDEX = 10;
+
+    // Like SQLiteDatabase.insert, the table's ON CONFLICT REPLACE applies
+    private static final String INSERT_SQL = buildInsertSql();
+
+    // A power of two
+    private static final int DATE_CACHE_SIZE = 64;
+    private static final int DATE_CACHE_SHIFT = 64 - 6;
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mInsert;
+    private final Time mTime = new Time();
+    private final long[] mDates = new long[DATE_CACHE_SIZE];
+    private final long[] mNormalizedDates = new long[DATE_CACHE_SIZE];
+    private final boolean[] mDateCached = new boolean[DATE_CACHE_SIZE];
+
+    WeatherBulkInserter(SQLiteDatabase db) {
+        mDb = db;
+        mInsert = db.compileStatement(INSERT_SQL);
+    }
+
+    private static String buildInsertSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(WeatherEntry.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    /**
+     * Inserts {@code values} in one transaction.
+     *
+     * @return how many rows were inserted.  Like SQLiteDatabase.insert, a row that fails, e.g.
+     * for a missing column, is logged and skipped.
+     */
+    int insert(ContentValues[] values) {
+        return insert(values, null);
+    }
+
+    /**
+     * Inserts {@code values} in one transaction, recording each row stored in {@code changes}
+     * unless it is null.
+     *
+     * @return how many rows were inserted.
+     */
+    int insert(ContentValues[] values, WeatherChanges changes) {
+        int count = 0;
+        mDb.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                if (insert(value) != -1) {
+                    count++;
+                    if (changes != null) {
+                        changes.add(value.getAsLong(WeatherEntry.COLUMN_LOC_KEY),
+                                normalizeDate(value.getAsLong(WeatherEntry.COLUMN_DATE)));
+                    }
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * Inserts one row, in whatever transaction the caller has open.
+     *
+     * @return the row id, or -1 if it failed.
+     */
+    long insert(ContentValues value) {
+        int present = 0;
+        mInsert.clearBindings();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            Object column = value.get(COLUMNS[i]);
+            if (column != null) {
+                present++;
+                if (i == DATE_INDEX) {
+                    mInsert.bindLong(i + 1, normalizeDate(value.getAsLong(COLUMNS[i])));
+                } else {
+                    bind(i + 1, column);
+                }
+            } else if (value.containsKey(COLUMNS[i])) {
+                present++;
+                mInsert.bindNull(i + 1);
+            } else if (i == FETCHED_AT_INDEX) {
+                // The column's default
+                mInsert.bindLong(i + 1, 0);
+            }
+            // Any other missing column stays null and fails its NOT NULL constraint.
+        }
+        if (present != value.size()) {
+            // Columns the statement doesn't have; let insert() report them.
+            if (value.containsKey(WeatherEntry.COLUMN_DATE)) {
+                value.put(WeatherEntry.COLUMN_DATE,
+                        normalizeDate(value.getAsLong(WeatherEntry.COLUMN_DATE)));
+            }
+            return mDb.insert(WeatherEntry.TABLE_NAME, null, value);
+        }
+        try {
+            return mInsert.executeInsert();
+        } catch (SQLException e) {
+            SunLog.w(LOG_TAG, "insert_failed", "values", value, e);
+            return -1;
+        }
+    }
+
+    private void bind(int index, Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            mInsert.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            mInsert.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            mInsert.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            mInsert.bindBlob(index, (byte[]) value);
+        } else {
+            mInsert.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * @return {@link WeatherContract#normalizeDate(long)} of {@code date}, without allocating.
+     */
+    long normalizeDate(long date) {
+        // Fibonacci hashing: dates are multiples of a day, so their low bits are all zero
+        int slot = (int) ((date * 0x9E3779B97F4A7C15L) >>> DATE_CACHE_SHIFT);
+        if (mDateCached[slot] && mDates[slot] == date) {
+            return mNormalizedDates[slot];
+        }
+        mTime.set(date);
+        long normalized = mTime.setJulianDay(Time.getJulianDay(date, mTime.gmtoff));
+        mDates[slot] = date;
+        mNormalizedDates[slot] = normalized;
+        mDateCached[slot] = true;
+        return normalized;
+    }
+
+    void close() {
+        mInsert.close();
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The weather rows a write touched, by location id and date, for {@link WeatherProvider} to
+ * notify the narrowest URIs that cover them: a day's URI when one day of a location changed,
+ * the location's URI when several did.  Observers of other locations, and of other days of a
+ * location with a single changed day, aren't woken.
+ * <p/>
+ * Not thread safe; make one per write.
+ */
+final class WeatherChanges {
+    // Stands for several dates of one location
+    private static final long SEVERAL_DATES = Long.MIN_VALUE;
+    // Well under SQLite's default limit of 999 arguments
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    // Location id to its changed date, or SEVERAL_DATES
+    private final Map<Long, Long> mDates = new LinkedHashMap<Long, Long>();
+    private boolean mWholeTable;
+
+    /**
+     * Records a change to the row of {@code locationId} on {@code date}, which is normalized.
+     */
+    void add(long locationId, long date) {
+        Long dates = mDates.get(locationId);
+        if (dates == null) {
+            mDates.put(locationId, date);
+        } else if (dates != date) {
+            mDates.put(locationId, SEVERAL_DATES);
+        }
+    }
+
+    /**
+     * Records a change that can't be narrowed down to rows.
+     */
+    void addWholeTable() {
+        mWholeTable = true;
+    }
+
+    /**
+     * Records the rows of the weather table that match {@code selection}, as they are now.
+     */
+    void addMatching(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (mWholeTable) {
+            return;
+        }
+        Cursor cursor = db.query(true, WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                add(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    boolean isEmpty() {
+        return !mWholeTable && mDates.isEmpty();
+    }
+
+    /**
+     * @return the URIs to notify, with the location settings of the changed rows read from
+     * {@code db}.  A change whose location can't be found is notified on the whole table.
+     */
+    List<Uri> toUris(SQLiteDatabase db) {
+        List<Uri> uris = new ArrayList<Uri>();
+        if (mWholeTable) {
+            uris.add(WeatherEntry.CONTENT_URI);
+            return uris;
+        }
+        if (mDates.isEmpty()) {
+            return uris;
+        }
+        Map<Long, String> settings = readSettings(db);
+        for (Map.Entry<Long, Long> dates : mDates.entrySet()) {
+            String setting = settings.get(dates.getKey());
+            if (setting == null) {
+                uris.clear();
+                uris.add(WeatherEntry.CONTENT_URI);
+                return uris;
+            }
+            uris.add(dates.getValue() == SEVERAL_DATES
+                    ? WeatherEntry.buildWeatherLocation(setting)
+                    : WeatherEntry.buildWeatherLocationWithDate(setting, dates.getValue()));
+        }
+        return uris;
+    }
+
+    private Map<Long, String> readSettings(SQLiteDatabase db) {
+        Map<Long, String> settings = new LinkedHashMap<Long, String>();
+        List<Long> ids = new ArrayList<Long>(mDates.keySet());
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+            StringBuilder selection = new StringBuilder(LocationEntry._ID).append(" IN (");
+            String[] args = new String[chunk.size()];
+            for (int i = 0; i < args.length; i++) {
+                selection.append(i == 0 ? "?" : ", ?");
+                args[i] = Long.toString(chunk.get(i));
+            }
+            selection.append(')');
+            Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                    new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                    selection.toString(), args, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    settings.put(cursor.getLong(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return settings;
+    }
+}
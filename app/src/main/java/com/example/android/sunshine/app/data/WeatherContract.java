@@ -19,6 +19,7 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.text.format.Time;
 
 /**
@@ -43,6 +44,19 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_FETCH_STATE = "fetch_state";
+
+    // Query parameter on insert/update/delete URIs that tells the provider not to send a change
+    // notification.  Used by sync, which notifies only the location/date URIs it really changed.
+    public static final String PARAM_NO_NOTIFY = "no_notify";
+
+    public static Uri buildNoNotifyUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(PARAM_NO_NOTIFY, "1").build();
+    }
+
+    public static boolean isNoNotify(Uri uri) {
+        return uri.getQueryParameter(PARAM_NO_NOTIFY) != null;
+    }
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,11 +95,46 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Non-zero when the user asked for this location to be synced along with the
+        // preferred one.
+        public static final String COLUMN_FOLLOWED = "followed";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
     }
 
+    /*
+        Inner class that defines the table contents of the fetch_state table.  It remembers the
+        HTTP validators of the last forecast response for each location setting, so the next
+        sync can ask the server whether anything changed instead of downloading it again.
+     */
+    public static final class FetchStateEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_FETCH_STATE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_FETCH_STATE;
+
+        public static final String TABLE_NAME = "fetch_state";
+
+        // Same value as LocationEntry.COLUMN_LOCATION_SETTING; one row per setting.
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        // Value of the ETag header, sent back as If-None-Match.  May be null.
+        public static final String COLUMN_ETAG = "etag";
+
+        // Value of the Last-Modified header, sent back as If-Modified-Since.  May be null.
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // When the server last answered for this setting, in milliseconds since the epoch.
+        public static final String COLUMN_FETCHED_AT = "fetched_at";
+
+        // When the scheduler wants this setting fetched again, in milliseconds since the epoch.
+        public static final String COLUMN_NEXT_SYNC_AT = "next_sync_at";
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
@@ -126,6 +175,16 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // When the forecast for this day was fetched, in millis.  Lets a sync skip the days
+        // that are still fresh.
+        public static final String COLUMN_FETCHED_AT = "fetched_at";
+
+        // Query parameters that make a forecast list URI return one page: the rows dated
+        // after PARAM_AFTER, up to PARAM_LIMIT of them, in date order.  The next page is
+        // after the last date of this one.
+        public static final String PARAM_AFTER = "after";
+        public static final String PARAM_LIMIT = "limit";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -149,6 +208,35 @@ public class WeatherContract {
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        /**
+         * @return the weather of the location with row id {@code locationId} from
+         * {@code startDate} on.  Unlike {@link #buildWeatherLocationWithStartDate}, the
+         * provider finds these rows through the weather table's index on its location id
+         * without matching the location setting.
+         */
+        public static Uri buildWeatherLocationIdWithStartDate(long locationId, long startDate) {
+            return LocationEntry.buildLocationUri(locationId).buildUpon().appendPath(PATH_WEATHER)
+                    .appendQueryParameter(COLUMN_DATE, Long.toString(normalizeDate(startDate)))
+                    .build();
+        }
+
+        /**
+         * @return the page of {@code listUri}, a forecast list by location setting or id, with
+         * up to {@code limit} rows dated after {@code afterDate}, or from the list's start
+         * when it's 0.
+         */
+        public static Uri buildPage(Uri listUri, long afterDate, int limit) {
+            Uri.Builder builder = listUri.buildUpon();
+            if (afterDate != 0) {
+                builder.appendQueryParameter(PARAM_AFTER, Long.toString(afterDate));
+            }
+            return builder.appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        public static long getLocationIdFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
@@ -164,5 +252,22 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        /**
+         * @return the date the page {@code uri} starts after, or 0 if it starts at the list's
+         * start.
+         */
+        public static long getAfterDateFromUri(Uri uri) {
+            String after = uri.getQueryParameter(PARAM_AFTER);
+            return TextUtils.isEmpty(after) ? 0 : Long.parseLong(after);
+        }
+
+        /**
+         * @return the most rows the page {@code uri} has, or 0 if it isn't a page.
+         */
+        public static int getLimitFromUri(Uri uri) {
+            String limit = uri.getQueryParameter(PARAM_LIMIT);
+            return TextUtils.isEmpty(limit) ? 0 : Integer.parseInt(limit);
+        }
     }
 }
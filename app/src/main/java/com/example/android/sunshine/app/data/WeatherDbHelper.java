@@ -16,28 +16,88 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ * <p/>
+ * The database runs in write-ahead logging mode, so queries read the last committed state
+ * instead of waiting for a sync's write transaction to finish.  Reading while a write is open
+ * relies on the framework's WAL connection pool, which gives queries on other threads
+ * connections of their own: set up by setWriteAheadLoggingEnabled from Jelly Bean on, and by
+ * enableWriteAheadLogging before it.  The platform sizes the pool; the helper opens no other
+ * instances of the file.  SQLite checkpoints the log into the database whenever a commit
+ * leaves it longer than the auto-checkpoint threshold, and truncates it to
+ * {@link #JOURNAL_SIZE_LIMIT} afterwards.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 7;
 
     static final String DATABASE_NAME = "weather.db";
 
+    static final String WEATHER_DATE_INDEX = "weather_date";
+
+    // Pages the log may hold after a commit before that commit checkpoints it.  A full sync of
+    // a few locations stays under it, so it checkpoints once instead of part way through.
+    static final int DEFAULT_AUTO_CHECKPOINT_PAGES = 500;
+    // Bytes the log is truncated to after a checkpoint
+    static final long JOURNAL_SIZE_LIMIT = 512 * 1024;
+
+    private final int mAutoCheckpointPages;
+
     public WeatherDbHelper(Context context) {
+        this(context, DEFAULT_AUTO_CHECKPOINT_PAGES);
+    }
+
+    /**
+     * @param autoCheckpointPages log pages after which a commit checkpoints; 0 turns automatic
+     *                            checkpoints off.
+     */
+    public WeatherDbHelper(Context context, int autoCheckpointPages) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mAutoCheckpointPages = autoCheckpointPages;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        // Writes always run on the primary connection, and a transaction makes sure these do
+        // too: the checkpoint threshold is a setting of the connection that commits.
+        db.beginTransaction();
+        try {
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint = " + mAutoCheckpointPages, null);
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        // Location ids start over with the tables.
+        LocationIdCache.getInstance().invalidateAll();
+
         // Create a table to hold locations.  A location consists of the string supplied in the
         // location setting, the city name, and the latitude and longitude
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
@@ -45,7 +105,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_FOLLOWED + " INTEGER NOT NULL DEFAULT 0 " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -69,18 +130,39 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
                 WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
                 WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_FETCHED_AT + " INTEGER NOT NULL DEFAULT 0, " +
 
                 // Set up the location column as a foreign key to location table.
                 " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
                 LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
 
                 // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+                // per location, it's created a UNIQUE constraint with REPLACE strategy.
+                // Location first: its index also serves every lookup of a location's days,
+                // in date order.
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        // For the queries across locations by date: purging past days and loading the
+        // stored horizon.
+        final String SQL_CREATE_WEATHER_DATE_INDEX = "CREATE INDEX " + WEATHER_DATE_INDEX +
+                " ON " + WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_DATE + ");";
+
+        // HTTP validators of the last forecast response and the next due time, one row per
+        // location setting.
+        final String SQL_CREATE_FETCH_STATE_TABLE = "CREATE TABLE " + FetchStateEntry.TABLE_NAME + " (" +
+                FetchStateEntry._ID + " INTEGER PRIMARY KEY," +
+                FetchStateEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL ON CONFLICT REPLACE, " +
+                FetchStateEntry.COLUMN_ETAG + " TEXT, " +
+                FetchStateEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+                FetchStateEntry.COLUMN_FETCHED_AT + " INTEGER NOT NULL, " +
+                FetchStateEntry.COLUMN_NEXT_SYNC_AT + " INTEGER NOT NULL DEFAULT 0 " +
+                " );";
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_FETCH_STATE_TABLE);
     }
 
     @Override
@@ -93,6 +175,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + FetchStateEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
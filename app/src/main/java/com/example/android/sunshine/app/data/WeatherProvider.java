@@ -17,23 +17,46 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.app.SunLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private final QueryResultCache mResultCache =
+            new QueryResultCache(QueryResultCache.DEFAULT_MAX_BYTES);
+    // The batch applyBatch is running on the calling thread, if any
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_WITH_LOCATION_ID = 103;
     static final int LOCATION = 300;
+    static final int FETCH_STATE = 400;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
@@ -56,56 +79,160 @@ public class WeatherProvider extends ContentProvider {
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
-
     //location.location_setting = ? AND date = ?
     private static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
-    private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+    //weather.location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //AND date >= ?, after a forecast list's location
+    private static final String sStartDateSelection =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //AND date > ?, after a page's location and start date
+    private static final String sAfterDateSelection =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " > ? ";
+
+    // A page's sort order, which its keyset depends on
+    private static final String sPageSortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    // The location table's columns, which the location id route joins for
+    private static final Set<String> sLocationColumns = new HashSet<String>(Arrays.asList(
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_FOLLOWED));
+
+    /**
+     * @return whether {@code projection} asks for a column of the location table.  All
+     * columns do when it's null.
+     */
+    private static boolean needsLocation(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (sLocationColumns.contains(column)
+                    || column.startsWith(WeatherContract.LocationEntry.TABLE_NAME + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        String[] selectionArgs;
-        String selection;
+    /**
+     * @return the SQL {@link #query} runs for {@code uri}, with a ? for each of
+     * {@link #buildSelectionArgs}.  Tests run its query plan.
+     */
+    static String buildQuery(Uri uri, String[] projection, String selection, String sortOrder) {
+        switch (sUriMatcher.match(uri)) {
+            // "weather/*/#"
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                return sWeatherByLocationSettingQueryBuilder.buildQuery(projection,
+                        sLocationSettingAndDaySelection, null, null, sortOrder, null);
+            // "weather/*"
+            case WEATHER_WITH_LOCATION:
+                return sWeatherByLocationSettingQueryBuilder.buildQuery(projection,
+                        buildListSelection(sLocationSettingSelection, uri), null, null,
+                        buildListSortOrder(uri, sortOrder), buildListLimit(uri));
+            // "location/#/weather": the weather table alone unless the projection has
+            // location columns, which are then read by primary key for each row
+            case WEATHER_WITH_LOCATION_ID:
+                return SQLiteQueryBuilder.buildQueryString(false,
+                        needsLocation(projection)
+                                ? sWeatherByLocationSettingQueryBuilder.getTables()
+                                : WeatherContract.WeatherEntry.TABLE_NAME,
+                        projection, buildListSelection(sLocationIdSelection, uri), null, null,
+                        buildListSortOrder(uri, sortOrder), buildListLimit(uri));
+            // "weather"
+            case WEATHER:
+                return SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.WeatherEntry.TABLE_NAME, projection, selection, null,
+                        null, sortOrder, null);
+            // "location"
+            case LOCATION:
+                return SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.LocationEntry.TABLE_NAME, projection, selection, null,
+                        null, sortOrder, null);
+            // "fetch_state"
+            case FETCH_STATE:
+                return SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.FetchStateEntry.TABLE_NAME, projection, selection, null,
+                        null, sortOrder, null);
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+    }
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
-        } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
-        }
-
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+    /**
+     * @return the arguments for {@link #buildQuery}.  The weather by location routes take
+     * theirs from the URI and ignore the caller's selection.
+     */
+    static String[] buildSelectionArgs(Uri uri, String[] selectionArgs) {
+        switch (sUriMatcher.match(uri)) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                return new String[]{WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                        Long.toString(WeatherContract.WeatherEntry.getDateFromUri(uri))};
+            case WEATHER_WITH_LOCATION:
+                return buildListArgs(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri), uri);
+            case WEATHER_WITH_LOCATION_ID:
+                return buildListArgs(
+                        Long.toString(WeatherContract.WeatherEntry.getLocationIdFromUri(uri)),
+                        uri);
+            default:
+                return selectionArgs;
+        }
     }
 
-    private Cursor getWeatherByLocationSettingAndDate(
-            Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
-
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
-                sortOrder
-        );
+    /**
+     * @return the selection of a forecast list: {@code locationSelection}, then the list's
+     * start date and the date its page starts after if the URI has them.
+     */
+    private static String buildListSelection(String locationSelection, Uri uri) {
+        StringBuilder selection = new StringBuilder(locationSelection);
+        if (WeatherContract.WeatherEntry.getStartDateFromUri(uri) != 0) {
+            selection.append(sStartDateSelection);
+        }
+        if (WeatherContract.WeatherEntry.getAfterDateFromUri(uri) != 0) {
+            selection.append(sAfterDateSelection);
+        }
+        return selection.toString();
+    }
+
+    private static String[] buildListArgs(String location, Uri uri) {
+        List<String> args = new ArrayList<String>(3);
+        args.add(location);
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        if (startDate != 0) {
+            args.add(Long.toString(startDate));
+        }
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+        if (afterDate != 0) {
+            args.add(Long.toString(afterDate));
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * @return {@code sortOrder}, unless {@code uri} is a page.  Pages are in date order, which
+     * the next one's date to start after depends on.
+     */
+    private static String buildListSortOrder(Uri uri, String sortOrder) {
+        return WeatherContract.WeatherEntry.getLimitFromUri(uri) != 0
+                || WeatherContract.WeatherEntry.getAfterDateFromUri(uri) != 0
+                ? sPageSortOrder : sortOrder;
+    }
+
+    private static String buildListLimit(Uri uri) {
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+        return limit > 0 ? Integer.toString(limit) : null;
     }
 
     /*
@@ -130,6 +257,10 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER,
+                WEATHER_WITH_LOCATION_ID);
+        matcher.addURI(authority, WeatherContract.PATH_FETCH_STATE, FETCH_STATE);
         return matcher;
     }
 
@@ -159,11 +290,14 @@ public class WeatherProvider extends ContentProvider {
             case WEATHER_WITH_LOCATION_AND_DATE:
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_ID:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case FETCH_STATE:
+                return WeatherContract.FetchStateEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -172,55 +306,83 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
-        // Here's the switch statement that, given a URI, will determine what kind of request it is,
-        // and query the database accordingly.
-        Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
-            // "weather/*/*"
-            case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
-            // "weather/*"
-            case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
-                break;
-            }
-            // "weather"
-            case WEATHER: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
-                break;
-            }
-            // "location"
-            case LOCATION: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.LocationEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
-                break;
+        // buildQuery picks the table and selection for the URI's route.
+        String sql = buildQuery(uri, projection, selection, sortOrder);
+        String[] args = buildSelectionArgs(uri, selectionArgs);
+        int match = sUriMatcher.match(uri);
+        // Writes notify the location setting's URIs, so a query by location id watches those
+        String locationSetting = null;
+        Uri notificationUri = uri;
+        if (match == WEATHER_WITH_LOCATION_ID) {
+            locationSetting = readLocationSetting(
+                    WeatherContract.WeatherEntry.getLocationIdFromUri(uri));
+            notificationUri = locationSetting != null
+                    ? WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting)
+                    : WeatherContract.WeatherEntry.CONTENT_URI;
+        } else if (QueryResultCache.isCached(match)) {
+            locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        }
+        String key = QueryResultCache.isCached(match) && locationSetting != null
+                ? QueryResultCache.key(sql, args) : null;
+        Cursor retCursor = key != null ? mResultCache.get(key) : null;
+        if (retCursor == null) {
+            long generation = mResultCache.getGeneration();
+            retCursor = mOpenHelper.getReadableDatabase().rawQuery(sql, args);
+            if (key != null) {
+                long firstDate;
+                long lastDate;
+                if (match == WEATHER_WITH_LOCATION_AND_DATE) {
+                    firstDate = lastDate = WeatherContract.WeatherEntry.getDateFromUri(uri);
+                } else {
+                    firstDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+                    long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+                    if (afterDate != 0) {
+                        // A page has only the days after the one it starts after
+                        firstDate = Math.max(firstDate, afterDate + 1);
+                    }
+                    lastDate = Long.MAX_VALUE;
+                }
+                retCursor = mResultCache.put(key, locationSetting, firstDate, lastDate,
+                        retCursor, generation);
             }
-
-            default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return retCursor;
     }
 
+    /**
+     * @return the setting of the location with row id {@code locationId}, or null if there is
+     * no such location.  Only the first query for a location reads its row; the
+     * {@link LocationIdCache} answers the rest until the location changes.
+     */
+    private String readLocationSetting(long locationId) {
+        LocationIdCache locations = LocationIdCache.getInstance();
+        String setting = locations.getSetting(locationId);
+        if (setting != null) {
+            return setting;
+        }
+        long generation = locations.getGeneration();
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            setting = cursor.getString(0);
+            locations.put(setting, new LocationIdCache.Entry(locationId, cursor.getString(1),
+                    cursor.getDouble(2), cursor.getDouble(3)), generation);
+            return setting;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
      */
@@ -229,15 +391,31 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        WeatherChanges changes = null;
 
         switch (match) {
+            // A row for the day the URI names, which is what gets notified
+            case WEATHER_WITH_LOCATION_AND_DATE:
             case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                Batch batch = mBatch.get();
+                long _id;
+                if (batch != null) {
+                    _id = batch.getWeatherInserter(db).insert(values);
+                } else {
+                    normalizeDate(values);
+                    _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                if (match == WEATHER) {
+                    // Notify the row's day rather than the whole table
+                    changes = new WeatherChanges();
+                    changes.add(values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                            WeatherContract.normalizeDate(
+                                    values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+                }
                 break;
             }
             case LOCATION: {
@@ -246,12 +424,25 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                cacheLocation(_id, values);
+                if (mBatch.get() != null) {
+                    mBatch.get().insertedLocations = true;
+                }
+                break;
+            }
+            case FETCH_STATE: {
+                // The location_setting column replaces on conflict, so this is an upsert.
+                long _id = db.insert(WeatherContract.FetchStateEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri, db, changes);
         return returnUri;
     }
 
@@ -260,27 +451,112 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        WeatherChanges changes = null;
+        boolean allRows = selection == null;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
+                if (!WeatherContract.isNoNotify(uri)) {
+                    changes = new WeatherChanges();
+                    if (allRows) {
+                        changes.addWholeTable();
+                    } else {
+                        changes.addMatching(db, selection, selectionArgs);
+                    }
+                }
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    LocationIdCache.getInstance().invalidateAll();
+                }
+                break;
+            case FETCH_STATE:
+                rowsDeleted = db.delete(
+                        WeatherContract.FetchStateEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri, db, changes);
         }
         return rowsDeleted;
     }
 
+    /**
+     * Adds a just inserted location to the {@link LocationIdCache}, if it has everything the
+     * cache holds.
+     */
+    private static void cacheLocation(long id, ContentValues values) {
+        String setting = values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        String cityName = values.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME);
+        Double lat = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        Double lon = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        if (setting != null && cityName != null && lat != null && lon != null) {
+            LocationIdCache.getInstance().put(setting,
+                    new LocationIdCache.Entry(id, cityName, lat, lon));
+        }
+    }
+
+    /**
+     * @return whether an update with {@code values} may change what the
+     * {@link LocationIdCache} holds.  Following or unfollowing a location doesn't.
+     */
+    private static boolean changesCachedLocation(ContentValues values) {
+        return values.containsKey(WeatherContract.LocationEntry._ID)
+                || values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                || values.containsKey(WeatherContract.LocationEntry.COLUMN_CITY_NAME)
+                || values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LAT)
+                || values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+    }
+
+    /**
+     * Notifies the weather URIs {@code changes} covers, or {@code uri} if it is null.
+     */
+    private void notifyChange(Uri uri, SQLiteDatabase db, WeatherChanges changes) {
+        if (changes == null || WeatherContract.isNoNotify(uri)) {
+            notifyChange(uri);
+        } else {
+            for (Uri changed : changes.toUris(db)) {
+                notifyChange(changed);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached results a write to {@code uri} may have made stale and, unless it is a
+     * no-notify URI, notifies it.  Inside applyBatch both wait until the batch is done.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.written.add(uri);
+            if (!WeatherContract.isNoNotify(uri)) {
+                batch.changed(uri);
+            }
+            return;
+        }
+        invalidateResults(uri);
+        if (!WeatherContract.isNoNotify(uri)) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    // Cached results join weather with location; fetch state isn't in any of them.
+    private void invalidateResults(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()
+                || !segments.get(0).equals(WeatherContract.PATH_FETCH_STATE)) {
+            mResultCache.invalidate(uri);
+        }
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -295,22 +571,41 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        WeatherChanges changes = null;
 
         switch (match) {
             case WEATHER:
                 normalizeDate(values);
+                if (!WeatherContract.isNoNotify(uri)) {
+                    changes = new WeatherChanges();
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        // Rows move; finding where to isn't worth it.
+                        changes.addWholeTable();
+                    } else {
+                        changes.addMatching(db, selection, selectionArgs);
+                    }
+                }
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0 && changesCachedLocation(values)) {
+                    // We don't know which rows matched, so start over.
+                    LocationIdCache.getInstance().invalidateAll();
+                }
+                break;
+            case FETCH_STATE:
+                rowsUpdated = db.update(WeatherContract.FetchStateEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri, db, changes);
         }
         return rowsUpdated;
     }
@@ -321,27 +616,147 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                WeatherBulkInserter inserter = new WeatherBulkInserter(db);
+                WeatherChanges changes = WeatherContract.isNoNotify(uri)
+                        ? null : new WeatherChanges();
+                int returnCount;
+                try {
+                    returnCount = inserter.insert(values, changes);
+                } finally {
+                    inserter.close();
+                }
+                if (returnCount != 0) {
+                    notifyChange(uri, db, changes);
+                }
+                SunLog.d(LOG_TAG, "bulk_insert", "uri", uri, "rows", returnCount);
+                return returnCount;
+            case FETCH_STATE: {
                 db.beginTransaction();
-                int returnCount = 0;
+                int stateCount = 0;
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = db.insert(WeatherContract.FetchStateEntry.TABLE_NAME, null, value);
                         if (_id != -1) {
-                            returnCount++;
+                            stateCount++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                notifyChange(uri);
+                SunLog.d(LOG_TAG, "bulk_insert", "uri", uri, "rows", stateCount);
+                return stateCount;
+            }
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Applies {@code operations} in one transaction: either all of them are stored or, if one
+     * throws, none.  Nothing is notified until the transaction commits, and then each location
+     * in a table gets a single notification, for the deepest URI that covers everything the
+     * batch changed there.  A sync's batch that changes several days of a location notifies
+     * that location's URI once, instead of every day, so a loader showing it requeries once;
+     * loaders showing other locations aren't notified.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = new Batch();
+        mBatch.set(batch);
+        boolean committed = false;
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            mBatch.remove();
+            batch.close();
+            // After the commit, so a query that read the old rows can't cache them again.
+            for (Uri uri : batch.written) {
+                invalidateResults(uri);
+            }
+            if (!committed && batch.insertedLocations) {
+                // Inserted ids went into the cache but not into the database.
+                LocationIdCache.getInstance().invalidateAll();
+            }
+        }
+        for (Uri uri : batch.changed.values()) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        SunLog.d(LOG_TAG, "apply_batch", "operations", operations.size(),
+                "notified", batch.changed.size());
+        if (SunLog.isLoggable(SunLog.DEBUG)) {
+            SunLog.d(LOG_TAG, "result_cache", "hits", mResultCache.getHits(),
+                    "misses", mResultCache.getMisses(), "bytes", mResultCache.getBytes());
+        }
+        return results;
+    }
+
+    /**
+     * What the applyBatch running on a thread has done so far.
+     */
+    private static class Batch {
+        // The URI to notify for each table and location, keyed by the first two path segments
+        final Map<String, Uri> changed = new LinkedHashMap<String, Uri>();
+        // Every URI written, notified or not, for invalidating cached results
+        final Set<Uri> written = new LinkedHashSet<Uri>();
+        boolean insertedLocations;
+        private WeatherBulkInserter mWeatherInserter;
+
+        /**
+         * @return an inserter for the batch's weather rows, so the INSERT is only compiled
+         * once.
+         */
+        WeatherBulkInserter getWeatherInserter(SQLiteDatabase db) {
+            if (mWeatherInserter == null) {
+                mWeatherInserter = new WeatherBulkInserter(db);
+            }
+            return mWeatherInserter;
+        }
+
+        void changed(Uri uri) {
+            List<String> segments = uri.getPathSegments();
+            String key = TextUtils.join("/", segments.subList(0, Math.min(2, segments.size())));
+            Uri covered = changed.get(key);
+            changed.put(key, covered == null ? uri : commonAncestor(covered, uri));
+        }
+
+        void close() {
+            if (mWeatherInserter != null) {
+                mWeatherInserter.close();
+            }
+        }
+
+        private static Uri commonAncestor(Uri a, Uri b) {
+            if (a.equals(b)) {
+                return a;
+            }
+            List<String> aSegments = a.getPathSegments();
+            List<String> bSegments = b.getPathSegments();
+            Uri.Builder builder = new Uri.Builder().scheme(a.getScheme())
+                    .authority(a.getAuthority());
+            for (int i = 0; i < Math.min(aSegments.size(), bSegments.size())
+                    && aSegments.get(i).equals(bSegments.get(i)); i++) {
+                builder.appendPath(aSegments.get(i));
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Only used by tests.
+     */
+    QueryResultCache getResultCache() {
+        return mResultCache;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -0,0 +1,262 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.SunLog;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.ForecastRowCollector;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.LocationResult;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.StoredFetchState;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Fetches and decodes several locations with one request to a {@link BatchWeatherSource}, for
+ * a {@link LocationSyncEngine}.  Like {@link FetchTask}, it only touches the network, and
+ * leaves the locations another sync is already fetching to that sync.
+ * <p/>
+ * The batch succeeds or fails as a whole, except that a location missing from the answer
+ * fails on its own, as an unknown location would have with a request of its own.
+ */
+final class BatchFetchTask implements Callable<List<LocationResult>> {
+    private static final String LOG_TAG = BatchFetchTask.class.getSimpleName();
+
+    private final HttpTransport mTransport;
+    private final SyncCoalescer mCoalescer;
+    private final RetryPolicy mRetryPolicy;
+    private final SyncTrace mTrace;
+    private final BatchWeatherSource mBatchSource;
+    private final List<String> mSettings;
+    private final Map<String, StoredFetchState> mStates;
+    private final int mJulianStartDay;
+    private final int mDays;
+    private final CircuitBreaker mBreaker;
+    private long mRetryAfterMillis;
+
+    BatchFetchTask(LocationSyncEngine engine, BatchWeatherSource batchSource,
+                   List<String> settings, Map<String, StoredFetchState> states,
+                   int julianStartDay, int days, CircuitBreaker breaker) {
+        mTransport = engine.getTransport();
+        mCoalescer = engine.getCoalescer();
+        mRetryPolicy = engine.getRetryPolicy();
+        mTrace = engine.getTrace();
+        mBatchSource = batchSource;
+        mSettings = settings;
+        mStates = states;
+        mJulianStartDay = julianStartDay;
+        mDays = days;
+        mBreaker = breaker;
+    }
+
+    @Override
+    public List<LocationResult> call() {
+        long start = SystemClock.elapsedRealtime();
+        List<LocationResult> results = new ArrayList<LocationResult>(mSettings.size());
+        Map<String, SyncCoalescer.Ticket> owned =
+                new LinkedHashMap<String, SyncCoalescer.Ticket>();
+        Map<String, SyncCoalescer.Flight> joined =
+                new LinkedHashMap<String, SyncCoalescer.Flight>();
+        Map<String, LocationResult> requested = new LinkedHashMap<String, LocationResult>();
+        for (String setting : mSettings) {
+            SyncCoalescer.Ticket ticket = mCoalescer.board(setting, false);
+            if (ticket.owner) {
+                owned.put(setting, ticket);
+                requested.put(setting, new LocationResult(setting));
+            } else {
+                joined.put(setting, ticket.flight);
+            }
+        }
+
+        try {
+            if (!requested.isEmpty()) {
+                fetchWithRetries(requested);
+            }
+        } finally {
+            // Land every flight before waiting on anybody else's, so two syncs that each
+            // joined the other's locations can't wait on each other.
+            long fetchMillis = SystemClock.elapsedRealtime() - start;
+            for (LocationResult result : requested.values()) {
+                result.fetchMillis = fetchMillis;
+                mCoalescer.land(owned.get(result.setting), result);
+                results.add(result);
+            }
+        }
+
+        for (Map.Entry<String, SyncCoalescer.Flight> flight : joined.entrySet()) {
+            LocationResult result;
+            try {
+                result = new LocationResult(flight.getValue().await());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = new LocationResult(flight.getKey());
+                result.status = SyncReport.STATUS_CANCELLED;
+            }
+            result.fetchMillis = SystemClock.elapsedRealtime() - start;
+            results.add(result);
+        }
+        return results;
+    }
+
+    private void fetchWithRetries(Map<String, LocationResult> requested) {
+        for (int attempt = 1; ; attempt++) {
+            if (!mBreaker.allowRequest(System.currentTimeMillis())) {
+                SunLog.d(LOG_TAG, "breaker_open", "locations", requested.size(),
+                        "open_until", mBreaker.getOpenUntil());
+                fail(requested, SyncReport.STATUS_CIRCUIT_OPEN);
+                break;
+            }
+            boolean retryable = fetch(requested, attempt);
+            if (!retryable) {
+                mBreaker.recordSuccess();
+                break;
+            }
+            mBreaker.recordFailure(System.currentTimeMillis());
+            if (attempt >= mRetryPolicy.maxAttempts) {
+                break;
+            }
+            long delay = mRetryPolicy.delayBeforeRetry(attempt);
+            if (mRetryAfterMillis > 0) {
+                if (mRetryAfterMillis > mRetryPolicy.maxDelayMillis) {
+                    break;
+                }
+                delay = Math.max(delay, mRetryAfterMillis);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Makes one attempt at fetching and decoding the whole batch.
+     *
+     * @return true if the attempt failed in a way that is worth retrying.
+     */
+    private boolean fetch(Map<String, LocationResult> requested, int attempt) {
+        for (LocationResult result : requested.values()) {
+            result.rows.clear();
+            result.attempts = attempt;
+        }
+        mRetryAfterMillis = 0;
+        HttpTransport.Exchange exchange = null;
+        long parseNanos = -1;
+        try {
+            URL url = new URL(mBatchSource.buildBatchForecastUri(
+                    new ArrayList<String>(requested.keySet()), mDays).toString());
+            exchange = mTransport.get(url, Collections.<String, String>emptyMap());
+            int responseCode = exchange.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                SunLog.e(LOG_TAG, "batch_fetch_failed", "settings", requested.keySet(),
+                        "code", responseCode);
+                if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED
+                        || responseCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                    fail(requested, SyncReport.STATUS_AUTH_ERROR);
+                    return false;
+                }
+                fail(requested, SyncReport.STATUS_IO_ERROR);
+                mRetryAfterMillis = LocationSyncEngine.parseRetryAfter(
+                        exchange.getHeader(LocationSyncEngine.HEADER_RETRY_AFTER));
+                return RetryPolicy.isRetryableStatus(responseCode);
+            }
+
+            BatchRowCollector collector = new BatchRowCollector(requested, mJulianStartDay);
+            long parseStart = SyncTrace.now();
+            mBatchSource.parseBatchForecast(
+                    new InputStreamReader(exchange.getBody(), "UTF-8"), collector);
+            parseNanos = SyncTrace.now() - parseStart;
+
+            for (LocationResult result : requested.values()) {
+                if (!collector.answered.contains(result.setting)) {
+                    SunLog.w(LOG_TAG, "batch_missing", "setting", result.setting);
+                    result.status = SyncReport.STATUS_IO_ERROR;
+                    result.rows.clear();
+                    continue;
+                }
+                // Keep whatever validators a single request stored; a batch has none.
+                StoredFetchState state = mStates.get(result.setting);
+                result.etag = state != null ? state.etag : null;
+                result.lastModified = state != null ? state.lastModified : null;
+                result.status = SyncReport.STATUS_UPDATED;
+            }
+            return false;
+        } catch (IOException e) {
+            SunLog.e(LOG_TAG, "batch_fetch_error", "settings", requested.keySet(), e);
+            fail(requested, SyncReport.STATUS_IO_ERROR);
+            return true;
+        } catch (JSONException e) {
+            SunLog.e(LOG_TAG, "batch_parse_error", "settings", requested.keySet(), e);
+            fail(requested, SyncReport.STATUS_PARSE_ERROR);
+            return false;
+        } finally {
+            if (exchange != null) {
+                exchange.close();
+                mTrace.recordExchange(exchange);
+                if (parseNanos >= 0) {
+                    mTrace.recordNanos(SyncTrace.PHASE_PARSE,
+                            Math.max(0, parseNanos - exchange.readNanos));
+                }
+            }
+        }
+    }
+
+    private void fail(Map<String, LocationResult> requested, int status) {
+        for (LocationResult result : requested.values()) {
+            result.status = status;
+            result.rows.clear();
+        }
+    }
+
+    /**
+     * Sorts the forecasts of a batch response into the results they answer.
+     */
+    static class BatchRowCollector implements ForecastJsonParser.GroupCallback {
+        final Set<String> answered = new HashSet<String>();
+        private final Map<String, LocationResult> mResults;
+        private final int mJulianStartDay;
+        private final Time mDayTime = new Time();
+        private ForecastRowCollector mCurrent;
+
+        BatchRowCollector(Map<String, LocationResult> results, int julianStartDay) {
+            mResults = results;
+            mJulianStartDay = julianStartDay;
+        }
+
+        @Override
+        public ForecastJsonParser.Callback beginForecast(int position) {
+            mCurrent = new ForecastRowCollector(mDayTime, mJulianStartDay,
+                    new ArrayList<ContentValues>(LocationSyncEngine.FORECAST_DAYS));
+            return mCurrent;
+        }
+
+        @Override
+        public void endForecast(int position, String query) {
+            LocationResult result = query != null ? mResults.get(query) : null;
+            if (result == null || !answered.add(query)) {
+                // Nothing we asked for, or asked for once and answered twice.
+                SunLog.w(LOG_TAG, "batch_unexpected", "query", query);
+                return;
+            }
+            result.rows.addAll(mCurrent.rows);
+            result.cityName = mCurrent.cityName;
+            result.lat = mCurrent.cityLatitude;
+            result.lon = mCurrent.cityLongitude;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * A {@link WeatherSource} that can also answer for several locations in one request.
+ * <p/>
+ * {@link LocationSyncEngine} groups the followed locations of a sync into batches of up to
+ * {@link #getMaxBatchSize()}, so a sync of many locations pays for connection setup and
+ * request overhead once per batch rather than once per location.
+ */
+public interface BatchWeatherSource extends WeatherSource {
+
+    /**
+     * @return the most locations one batch request may ask for.
+     */
+    int getMaxBatchSize();
+
+    /**
+     * @param days how many days to ask for, starting today, for every location.
+     * @return the request URI for the forecasts of all of {@code locationSettings}.
+     */
+    Uri buildBatchForecastUri(List<String> locationSettings, int days);
+
+    /**
+     * Decodes a batch response, handing each location's forecast to {@code callback}.
+     *
+     * @return the number of forecasts decoded.
+     * @throws JSONException if the response isn't a batch of forecasts.
+     */
+    int parseBatchForecast(Reader reader, ForecastJsonParser.GroupCallback callback)
+            throws IOException, JSONException;
+}
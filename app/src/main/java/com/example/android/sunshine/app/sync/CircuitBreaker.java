@@ -0,0 +1,163 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops sync from hammering a forecast host that keeps failing.
+ * <p/>
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the breaker opens and every request
+ * to the host is refused until a cooldown has passed.  Then a single trial request is let
+ * through (half-open); success closes the breaker, failure opens it again with twice the
+ * cooldown, up to {@link #MAX_COOLDOWN}.
+ * <p/>
+ * The state lives in its own SharedPreferences file, so a process restart, or the next
+ * {@code syncImmediately}, doesn't get a fresh set of failures to spend.
+ */
+class CircuitBreaker {
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long BASE_COOLDOWN = 5 * SyncScheduler.MINUTE_IN_MILLIS;
+    static final long MAX_COOLDOWN = SyncScheduler.HOUR_IN_MILLIS;
+
+    private static final String PREFS_NAME = "circuit_breakers";
+    private static final String KEY_FAILURES = ".failures";
+    private static final String KEY_OPEN_UNTIL = ".open_until";
+    private static final String KEY_TRIPS = ".trips";
+
+    private static final Map<String, CircuitBreaker> sBreakers =
+            new HashMap<String, CircuitBreaker>();
+
+    private final SharedPreferences mPrefs;
+    private final String mHost;
+
+    private int mConsecutiveFailures;
+    // 0 while closed
+    private long mOpenUntil;
+    // Times the breaker opened without a success in between; sets the next cooldown
+    private int mTrips;
+    private boolean mTrialInFlight;
+
+    /**
+     * @param host host and port, e.g. "api.openweathermap.org".
+     */
+    static CircuitBreaker forHost(Context context, String host) {
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(host);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(context.getApplicationContext()
+                        .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), host);
+                sBreakers.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * Drops the in-memory breakers so the next {@link #forHost} reloads them from disk, as
+     * after a process restart.  Only used by tests.
+     */
+    static void clearCache() {
+        synchronized (sBreakers) {
+            sBreakers.clear();
+        }
+    }
+
+    /**
+     * Closes every breaker and forgets all failures.  Only used by tests.
+     */
+    static void resetAll(Context context) {
+        synchronized (sBreakers) {
+            sBreakers.clear();
+            context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                    .edit().clear().commit();
+        }
+    }
+
+    private CircuitBreaker(SharedPreferences prefs, String host) {
+        mPrefs = prefs;
+        mHost = host;
+        mConsecutiveFailures = prefs.getInt(host + KEY_FAILURES, 0);
+        mOpenUntil = prefs.getLong(host + KEY_OPEN_UNTIL, 0);
+        mTrips = prefs.getInt(host + KEY_TRIPS, 0);
+    }
+
+    /**
+     * @return false if the request must not be sent.  A true answer in the half-open state
+     * claims the single trial request, so the caller must report its outcome.
+     */
+    synchronized boolean allowRequest(long now) {
+        if (mOpenUntil == 0) {
+            return true;
+        }
+        if (now < mOpenUntil || mTrialInFlight) {
+            return false;
+        }
+        mTrialInFlight = true;
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        boolean changed = mConsecutiveFailures != 0 || mOpenUntil != 0 || mTrips != 0;
+        mConsecutiveFailures = 0;
+        mOpenUntil = 0;
+        mTrips = 0;
+        mTrialInFlight = false;
+        if (changed) {
+            persist();
+        }
+    }
+
+    synchronized void recordFailure(long now) {
+        if (isOpen(now)) {
+            // A request that was already in flight when the breaker opened.
+            return;
+        }
+        boolean trialFailed = mOpenUntil != 0 && now >= mOpenUntil;
+        mTrialInFlight = false;
+        mConsecutiveFailures++;
+        if (trialFailed || mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            long cooldown = BASE_COOLDOWN << Math.min(mTrips, 10);
+            mOpenUntil = now + Math.min(cooldown, MAX_COOLDOWN);
+            mTrips++;
+            mConsecutiveFailures = 0;
+        }
+        persist();
+    }
+
+    /**
+     * Gives back the trial request of the half-open state, if one was claimed, for a request
+     * that was aborted before the host answered.  Without this, the breaker would wait
+     * forever for the outcome of a trial that never happened.
+     */
+    synchronized void releaseTrial() {
+        mTrialInFlight = false;
+    }
+
+    synchronized boolean isOpen(long now) {
+        return mOpenUntil != 0 && now < mOpenUntil;
+    }
+
+    /**
+     * @return when the breaker lets a trial request through, or 0 if it is closed.
+     */
+    synchronized long getOpenUntil() {
+        return mOpenUntil;
+    }
+
+    @Override
+    public String toString() {
+        return "circuit breaker for " + mHost;
+    }
+
+    private void persist() {
+        mPrefs.edit()
+              .putInt(mHost + KEY_FAILURES, mConsecutiveFailures)
+              .putLong(mHost + KEY_OPEN_UNTIL, mOpenUntil)
+              .putInt(mHost + KEY_TRIPS, mTrips)
+              .apply();
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a gzip, deflate or identity encoded response body.
+ * <p/>
+ * Unlike GZIPInputStream, compressed bytes are read into a buffer borrowed from a
+ * {@link ByteArrayPool} and inflated by a pooled {@link Inflater}, so a sync doesn't allocate
+ * new buffers or native zlib state for every response.  Both are given back on {@link #close}.
+ */
+class DecodingInputStream extends InputStream {
+
+    static final int ENCODING_IDENTITY = 0;
+    static final int ENCODING_GZIP = 1;
+    static final int ENCODING_DEFLATE = 2;
+
+    static final int BUFFER_SIZE = 4096;
+
+    // gzip header flags, RFC 1952
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int MAX_POOLED_INFLATERS = 4;
+    // Inflaters for raw deflate data (gzip bodies and headerless "deflate")
+    private static final ArrayDeque<Inflater> sRawInflaters = new ArrayDeque<Inflater>();
+    // Inflaters for zlib wrapped data, which is what "deflate" is supposed to be
+    private static final ArrayDeque<Inflater> sZlibInflaters = new ArrayDeque<Inflater>();
+
+    private final InputStream mWire;
+    private final int mEncoding;
+    private final ByteArrayPool mPool;
+
+    private byte[] mBuf;
+    private int mPos;
+    private int mLimit;
+
+    private Inflater mInflater;
+    private boolean mNoWrap;
+    private CRC32 mCrc;
+    private boolean mStarted;
+    private boolean mFinished;
+    private boolean mClosed;
+
+    private long mDecodedBytes;
+
+    DecodingInputStream(InputStream wire, int encoding, ByteArrayPool pool) {
+        mWire = wire;
+        mEncoding = encoding;
+        mPool = pool;
+    }
+
+    /**
+     * Maps a Content-Encoding header value to one of the ENCODING_* constants.
+     */
+    static int encodingFor(String contentEncoding) {
+        if (contentEncoding == null) {
+            return ENCODING_IDENTITY;
+        }
+        String encoding = contentEncoding.trim();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return ENCODING_GZIP;
+        }
+        if ("deflate".equalsIgnoreCase(encoding)) {
+            return ENCODING_DEFLATE;
+        }
+        return ENCODING_IDENTITY;
+    }
+
+    /**
+     * @return the number of decoded bytes handed out so far.
+     */
+    long getDecodedBytes() {
+        return mDecodedBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (mEncoding == ENCODING_IDENTITY) {
+            int n = mWire.read(b, off, len);
+            if (n > 0) {
+                mDecodedBytes += n;
+            }
+            return n;
+        }
+        if (mFinished) {
+            return -1;
+        }
+        if (!mStarted) {
+            start();
+        }
+        try {
+            while (true) {
+                int n = mInflater.inflate(b, off, len);
+                if (n > 0) {
+                    if (mCrc != null) {
+                        mCrc.update(b, off, n);
+                    }
+                    mDecodedBytes += n;
+                    return n;
+                }
+                if (mInflater.finished()) {
+                    finish();
+                    return -1;
+                }
+                if (mInflater.needsDictionary()) {
+                    throw new IOException("Deflate stream needs a preset dictionary");
+                }
+                if (mInflater.needsInput()) {
+                    fill();
+                    mInflater.setInput(mBuf, 0, mLimit);
+                    mPos = mLimit;
+                }
+            }
+        } catch (DataFormatException e) {
+            IOException ioException = new IOException("Corrupt " +
+                    (mEncoding == ENCODING_GZIP ? "gzip" : "deflate") + " response");
+            ioException.initCause(e);
+            throw ioException;
+        }
+    }
+
+    private void start() throws IOException {
+        mStarted = true;
+        mBuf = mPool.getBuf(BUFFER_SIZE);
+        if (mEncoding == ENCODING_GZIP) {
+            readGzipHeader();
+            mNoWrap = true;
+            mCrc = new CRC32();
+        } else {
+            // "deflate" should be zlib wrapped, but plenty of servers send raw deflate data.
+            // A zlib header is a CM of 8 with a check value that makes the first two bytes a
+            // multiple of 31.
+            fillAtLeast(2);
+            int cmf = mBuf[mPos] & 0xff;
+            int flg = mBuf[mPos + 1] & 0xff;
+            mNoWrap = !((cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0);
+        }
+        mInflater = obtainInflater(mNoWrap);
+        if (mPos < mLimit) {
+            mInflater.setInput(mBuf, mPos, mLimit - mPos);
+            mPos = mLimit;
+        }
+    }
+
+    private void readGzipHeader() throws IOException {
+        if (readWireByte() != 0x1f || readWireByte() != 0x8b) {
+            throw new IOException("Not in GZIP format");
+        }
+        if (readWireByte() != 8) {
+            throw new IOException("Unsupported GZIP compression method");
+        }
+        int flags = readWireByte();
+        // MTIME (4), XFL (1) and OS (1)
+        skipWireBytes(6);
+        if ((flags & FEXTRA) != 0) {
+            int extraLength = readWireByte() | (readWireByte() << 8);
+            skipWireBytes(extraLength);
+        }
+        if ((flags & FNAME) != 0) {
+            while (readWireByte() != 0) {
+                // skip the zero terminated file name
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (readWireByte() != 0) {
+                // skip the zero terminated comment
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            skipWireBytes(2);
+        }
+    }
+
+    private void finish() throws IOException {
+        mFinished = true;
+        // Whatever the inflater didn't consume belongs to the trailer.
+        mPos = mLimit - mInflater.getRemaining();
+        if (mEncoding == ENCODING_GZIP) {
+            long crc = readWireInt();
+            long size = readWireInt();
+            if (crc != mCrc.getValue()) {
+                throw new IOException("GZIP CRC mismatch");
+            }
+            if (size != (mInflater.getBytesWritten() & 0xffffffffL)) {
+                throw new IOException("GZIP size mismatch");
+            }
+        }
+    }
+
+    private long readWireInt() throws IOException {
+        return (readWireByte() | (readWireByte() << 8) | (readWireByte() << 16)
+                | ((long) readWireByte() << 24)) & 0xffffffffL;
+    }
+
+    private int readWireByte() throws IOException {
+        if (mPos == mLimit) {
+            fill();
+        }
+        return mBuf[mPos++] & 0xff;
+    }
+
+    private void skipWireBytes(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readWireByte();
+        }
+    }
+
+    private void fill() throws IOException {
+        mPos = 0;
+        mLimit = mWire.read(mBuf, 0, mBuf.length);
+        if (mLimit <= 0) {
+            mLimit = 0;
+            throw new EOFException("Unexpected end of compressed response");
+        }
+    }
+
+    private void fillAtLeast(int count) throws IOException {
+        // Only used right after the buffer was borrowed, so the data always starts at 0.
+        while (mLimit < count) {
+            int n = mWire.read(mBuf, mLimit, mBuf.length - mLimit);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of compressed response");
+            }
+            mLimit += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mInflater != null) {
+            recycleInflater(mInflater, mNoWrap);
+            mInflater = null;
+        }
+        if (mBuf != null) {
+            mPool.returnBuf(mBuf);
+            mBuf = null;
+        }
+        mWire.close();
+    }
+
+    private static Inflater obtainInflater(boolean noWrap) {
+        ArrayDeque<Inflater> pool = noWrap ? sRawInflaters : sZlibInflaters;
+        synchronized (pool) {
+            Inflater inflater = pool.poll();
+            if (inflater != null) {
+                return inflater;
+            }
+        }
+        return new Inflater(noWrap);
+    }
+
+    private static void recycleInflater(Inflater inflater, boolean noWrap) {
+        ArrayDeque<Inflater> pool = noWrap ? sRawInflaters : sZlibInflaters;
+        inflater.reset();
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED_INFLATERS) {
+                pool.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+}
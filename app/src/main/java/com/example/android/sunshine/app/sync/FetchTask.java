@@ -0,0 +1,298 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.SunLog;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.ForecastRowCollector;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.LocationResult;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.StoredFetchState;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Fetches and decodes one location for a {@link LocationSyncEngine}.  Runs on its worker
+ * pool, so it only touches the network; all provider writes happen back on the sync thread.
+ * <p/>
+ * If another sync is already fetching the same location, the task waits for that fetch
+ * and reports its result instead of making a request of its own.
+ */
+final class FetchTask implements Callable<LocationResult> {
+    private static final String LOG_TAG = FetchTask.class.getSimpleName();
+
+    private final LocationSyncEngine mEngine;
+    private final WeatherSource mSource;
+    private final HttpTransport mTransport;
+    private final ResponseCache mCache;
+    private final SyncCoalescer mCoalescer;
+    private final RetryPolicy mRetryPolicy;
+    private final SyncTrace mTrace;
+    private final String mSetting;
+    private final StoredFetchState mState;
+    private final int mJulianStartDay;
+    // Days of the horizon to ask for; fewer than FORECAST_DAYS for a partial fetch
+    private final int mDays;
+    private final CircuitBreaker mBreaker;
+    private final boolean mCancellable;
+    private String mCacheKey;
+    // The cached response for this location, if there is one
+    private ResponseCache.Entry mCached;
+
+    FetchTask(LocationSyncEngine engine, String setting, StoredFetchState state,
+              int julianStartDay, int days, CircuitBreaker breaker, boolean cancellable) {
+        mEngine = engine;
+        mSource = engine.getSource();
+        mTransport = engine.getTransport();
+        mCache = engine.getCache();
+        mCoalescer = engine.getCoalescer();
+        mRetryPolicy = engine.getRetryPolicy();
+        mTrace = engine.getTrace();
+        mSetting = setting;
+        mState = state;
+        mJulianStartDay = julianStartDay;
+        mDays = days;
+        mBreaker = breaker;
+        mCancellable = cancellable;
+    }
+
+    @Override
+    public LocationResult call() {
+        long start = SystemClock.elapsedRealtime();
+        if (mDays == 0) {
+            // Every stored day is still fresh.  As good as a 304, without the request.
+            LocationResult result = new LocationResult(mSetting);
+            result.status = SyncReport.STATUS_NOT_MODIFIED;
+            if (mState != null) {
+                result.etag = mState.etag;
+                result.lastModified = mState.lastModified;
+            }
+            return result;
+        }
+        SyncCoalescer.Ticket ticket = mCoalescer.board(mSetting, mCancellable);
+        if (!ticket.owner) {
+            LocationResult result;
+            try {
+                result = new LocationResult(ticket.flight.await());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = new LocationResult(mSetting);
+                result.status = SyncReport.STATUS_CANCELLED;
+            }
+            result.fetchMillis = SystemClock.elapsedRealtime() - start;
+            return result;
+        }
+
+        LocationResult result = new LocationResult(mSetting);
+        try {
+            fetchWithRetries(result, ticket.flight);
+        } finally {
+            result.fetchMillis = SystemClock.elapsedRealtime() - start;
+            mCoalescer.land(ticket, result);
+        }
+        return result;
+    }
+
+    private void fetchWithRetries(LocationResult result, SyncCoalescer.Flight flight) {
+        // Only whole horizons are cached, so a partial fetch still looks up the full one.
+        mCacheKey = ResponseCache.keyFor(
+                mSource.buildForecastUri(mSetting, LocationSyncEngine.FORECAST_DAYS).toString());
+        mCached = mCache.get(mCacheKey);
+        if (mCached != null && mCached.isFresh(System.currentTimeMillis())) {
+            // The server said this response may be reused for a while; no need to ask.
+            if (mEngine.readCachedResponse(result, mCached)) {
+                return;
+            }
+            mCached = null;
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            if (flight.isCancelled()) {
+                SunLog.d(LOG_TAG, "fetch_dropped", "setting", mSetting);
+                result.status = SyncReport.STATUS_CANCELLED;
+                result.rows.clear();
+                break;
+            }
+            if (!mBreaker.allowRequest(System.currentTimeMillis())) {
+                SunLog.d(LOG_TAG, "breaker_open", "setting", mSetting,
+                        "open_until", mBreaker.getOpenUntil());
+                result.status = SyncReport.STATUS_CIRCUIT_OPEN;
+                break;
+            }
+            result.attempts = attempt;
+            boolean retryable = fetch(result, flight.abortHandle);
+            if (!retryable) {
+                // The host answered, even if the answer wasn't one we could use.
+                mBreaker.recordSuccess();
+                break;
+            }
+            if (flight.isCancelled()) {
+                // We aborted the request ourselves; that says nothing about the host, but
+                // a half-open breaker must be free to let another trial through.
+                mBreaker.releaseTrial();
+                continue;
+            }
+            mBreaker.recordFailure(System.currentTimeMillis());
+            if (attempt >= mRetryPolicy.maxAttempts) {
+                break;
+            }
+            long delay = mRetryPolicy.delayBeforeRetry(attempt);
+            if (result.retryAfterMillis > 0) {
+                if (result.retryAfterMillis > mRetryPolicy.maxDelayMillis) {
+                    // The server wants more patience than a sync has; leave it to the
+                    // next one.
+                    break;
+                }
+                delay = Math.max(delay, result.retryAfterMillis);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // The sync is being cancelled.
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Makes one attempt at fetching and decoding the forecast.
+     *
+     * @return true if the attempt failed in a way that is worth retrying.
+     */
+    private boolean fetch(LocationResult result, HttpTransport.AbortHandle abortHandle) {
+        result.rows.clear();
+        result.retryAfterMillis = 0;
+        HttpTransport.Exchange exchange = null;
+        ResponseCache.Editor editor = null;
+        // Wall time of decoding, waiting for the body included; -1 if it didn't finish
+        long parseNanos = -1;
+        try {
+            boolean partial = mDays < LocationSyncEngine.FORECAST_DAYS;
+            URL url = new URL(mSource.buildForecastUri(mSetting, mDays).toString());
+
+            // Ask the server to only send the forecast if it changed since the last sync.
+            // With nothing in the database, revalidate the cached response instead.
+            String etag = mState != null ? mState.etag
+                    : mCached != null ? mCached.etag : null;
+            String lastModified = mState != null ? mState.lastModified
+                    : mCached != null ? mCached.lastModified : null;
+            Map<String, String> requestHeaders = new HashMap<String, String>(4);
+            // The validators describe the whole horizon, so a partial request goes
+            // without them.
+            if (etag != null && !partial) {
+                requestHeaders.put(LocationSyncEngine.HEADER_IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null && !partial) {
+                requestHeaders.put(LocationSyncEngine.HEADER_IF_MODIFIED_SINCE, lastModified);
+            }
+
+            exchange = mTransport.get(url, requestHeaders, abortHandle);
+            int responseCode = exchange.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (mCached != null && TextUtils.equals(etag, mCached.etag)
+                        && TextUtils.equals(lastModified, mCached.lastModified)) {
+                    mCache.revalidated(mCached, exchange);
+                    if (mState == null && mEngine.readCachedResponse(result, mCached)) {
+                        // Only the cache had this forecast, and it is still current.
+                        result.fetchedAt = 0;
+                        return false;
+                    }
+                }
+                // What we have stored is still current, so there's nothing to parse.  A
+                // 304 may carry updated validators; otherwise keep the stored ones.
+                result.status = SyncReport.STATUS_NOT_MODIFIED;
+                String newEtag = exchange.getHeader(LocationSyncEngine.HEADER_ETAG);
+                String newLastModified =
+                        exchange.getHeader(LocationSyncEngine.HEADER_LAST_MODIFIED);
+                result.etag = newEtag != null ? newEtag : etag;
+                result.lastModified = newLastModified != null
+                        ? newLastModified : lastModified;
+                return false;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                SunLog.e(LOG_TAG, "fetch_failed", "setting", mSetting,
+                        "code", responseCode);
+                if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED
+                        || responseCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                    // Most likely a bad API key; retrying won't fix that.
+                    result.status = SyncReport.STATUS_AUTH_ERROR;
+                    return false;
+                }
+                result.status = SyncReport.STATUS_IO_ERROR;
+                result.retryAfterMillis = LocationSyncEngine.parseRetryAfter(
+                        exchange.getHeader(LocationSyncEngine.HEADER_RETRY_AFTER));
+                return RetryPolicy.isRetryableStatus(responseCode);
+            }
+
+            // Decode the response straight off the connection, copying it into the
+            // response cache on the way.  JsonReader does its own buffering, so there's
+            // no need for a BufferedReader.
+            InputStream body = exchange.getBody();
+            editor = partial ? null : mCache.edit(mCacheKey, exchange);
+            if (editor != null) {
+                body = editor.tee(body);
+            }
+            Reader reader = new InputStreamReader(body, "UTF-8");
+            ForecastRowCollector collector =
+                    new ForecastRowCollector(new Time(), mJulianStartDay, result.rows);
+            long parseStart = SyncTrace.now();
+            mSource.parseForecast(reader, collector);
+            parseNanos = SyncTrace.now() - parseStart;
+            if (editor != null) {
+                // Only a body that parsed is worth keeping.
+                editor.commit();
+                editor = null;
+            }
+
+            result.cityName = collector.cityName;
+            result.lat = collector.cityLatitude;
+            result.lon = collector.cityLongitude;
+            if (partial) {
+                // Keep the validators of the last full fetch for the next one.
+                result.etag = etag;
+                result.lastModified = lastModified;
+            } else {
+                result.etag = exchange.getHeader(LocationSyncEngine.HEADER_ETAG);
+                result.lastModified = exchange.getHeader(LocationSyncEngine.HEADER_LAST_MODIFIED);
+            }
+            result.status = SyncReport.STATUS_UPDATED;
+            return false;
+        } catch (IOException e) {
+            // Connection failures, resets and truncated bodies all land here.
+            SunLog.e(LOG_TAG, "fetch_error", "setting", mSetting, e);
+            result.status = SyncReport.STATUS_IO_ERROR;
+            result.rows.clear();
+            return true;
+        } catch (JSONException e) {
+            // The same bytes would come back again, so this isn't retried.
+            SunLog.e(LOG_TAG, "parse_error", "setting", mSetting, e);
+            result.status = SyncReport.STATUS_PARSE_ERROR;
+            result.rows.clear();
+            return false;
+        } finally {
+            if (editor != null) {
+                editor.abort();
+            }
+            // Closing the exchange also closes the body and returns its buffers.
+            if (exchange != null) {
+                exchange.close();
+                mTrace.recordExchange(exchange);
+                if (parseNanos >= 0) {
+                    mTrace.recordNanos(SyncTrace.PHASE_PARSE,
+                            Math.max(0, parseNanos - exchange.readNanos));
+                }
+            }
+        }
+    }
+}
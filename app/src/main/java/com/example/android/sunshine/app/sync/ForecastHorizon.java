@@ -0,0 +1,53 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Decides how much of the forecast horizon an incremental sync needs to ask for.
+ * <p/>
+ * Near days change often and are what the user looks at, so they go stale quickly; the far
+ * end of a fourteen day forecast barely moves between fetches.  OWM can only serve a horizon
+ * that starts today, so the request covers everything up to the furthest day that is missing
+ * or stale, and the fresh days beyond it are left alone.
+ */
+final class ForecastHorizon {
+
+    // Today and tomorrow: the base sync interval
+    static final long NEAR_MAX_AGE = SyncScheduler.BASE_INTERVAL;
+    // The rest of the working week
+    static final long MID_MAX_AGE = 2 * SyncScheduler.BASE_INTERVAL;
+    // Everything further out
+    static final long FAR_MAX_AGE = 4 * SyncScheduler.BASE_INTERVAL;
+
+    static final int LAST_NEAR_DAY = 1;
+    static final int LAST_MID_DAY = 4;
+
+    private ForecastHorizon() {
+    }
+
+    /**
+     * @return how old day {@code dayIndex} of the horizon, 0 being today, may get before it
+     * is fetched again.
+     */
+    static long maxAge(int dayIndex) {
+        if (dayIndex <= LAST_NEAR_DAY) {
+            return NEAR_MAX_AGE;
+        }
+        return dayIndex <= LAST_MID_DAY ? MID_MAX_AGE : FAR_MAX_AGE;
+    }
+
+    /**
+     * @param fetchedAt when each day of the horizon was fetched, today first; 0 for a day
+     *                  that isn't stored.
+     * @return how many days to request, starting today, or 0 if every day is still fresh.
+     * A day that would go stale within the scheduler's slack counts as stale already, so a
+     * sync that runs a little early doesn't leave it for a whole interval.
+     */
+    static int daysToFetch(long[] fetchedAt, long now) {
+        for (int i = fetchedAt.length - 1; i >= 0; i--) {
+            if (fetchedAt[i] == 0
+                    || now - fetchedAt[i] + SyncScheduler.DUE_SLACK >= maxAge(i)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,366 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull-based decoder for the OpenWeatherMap daily forecast response.
+ * <p/>
+ * Tokens are read straight off the connection's stream with a {@link JsonReader}, and every
+ * day is handed to a {@link Callback} as soon as it has been decoded.  Nothing is buffered
+ * into a String and no JSONObject tree is built, so a sync only allocates what it keeps.
+ */
+public class ForecastJsonParser {
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    // A group response is an object whose "list" holds one forecast per location, each of
+    // them carrying the query it answers.
+    static final String OWM_QUERY = "query";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    // Bits used to make sure every field we store was present in a day object.
+    private static final int HAS_PRESSURE = 1;
+    private static final int HAS_HUMIDITY = 1 << 1;
+    private static final int HAS_WIND_SPEED = 1 << 2;
+    private static final int HAS_WIND_DIRECTION = 1 << 3;
+    private static final int HAS_MAX = 1 << 4;
+    private static final int HAS_MIN = 1 << 5;
+    private static final int HAS_DESCRIPTION = 1 << 6;
+    private static final int HAS_WEATHER_ID = 1 << 7;
+    private static final int HAS_ALL_DAY_FIELDS = (1 << 8) - 1;
+
+    /**
+     * Receives the decoded pieces of a forecast in stream order.  OWM usually sends the city
+     * before the list, but nothing guarantees it, so implementations must not depend on
+     * {@link #onCity} having been called before the first {@link #onDay}.
+     */
+    public interface Callback {
+        void onCity(String cityName, double lat, double lon);
+
+        /**
+         * @param day the decoded day.  The instance is reused for every day of the forecast,
+         *            so copy out whatever needs to outlive the call.
+         */
+        void onDay(Day day);
+    }
+
+    /**
+     * Receives the forecasts of a group response, one location after the other.
+     */
+    public interface GroupCallback {
+        /**
+         * @param position where the forecast is in the response, starting at 0.
+         * @return the callback that receives this forecast's city and days.
+         */
+        Callback beginForecast(int position);
+
+        /**
+         * @param query the location setting the forecast answers, or null if the response
+         *              didn't say.  It can come after the city and days, so it is only known
+         *              once the forecast has been read.
+         */
+        void endForecast(int position, String query);
+    }
+
+    /**
+     * Mutable holder for a single forecast day.
+     */
+    public static final class Day {
+        public int index;
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+
+        void reset(int newIndex) {
+            index = newIndex;
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            high = 0;
+            low = 0;
+            description = null;
+            weatherId = 0;
+        }
+    }
+
+    private final Day mDay = new Day();
+    private int mFields;
+
+    /**
+     * Decodes a complete forecast response.
+     *
+     * @return the number of days handed to the callback.
+     * @throws JSONException if the document is malformed or a required field is missing.
+     * @throws IOException   if reading from the underlying stream fails.
+     */
+    public int parse(Reader in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return readForecast(reader, callback, null);
+        } catch (MalformedJsonException e) {
+            throw toJsonException(e);
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected token types this way.
+            throw toJsonException(e);
+        } catch (NumberFormatException e) {
+            throw toJsonException(e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Decodes a group response, i.e. {@code {"cnt":2,"list":[forecast, forecast]}} where each
+     * forecast is what {@link #parse} reads plus a {@code "query"} field.
+     *
+     * @return the number of forecasts handed to the callback.
+     * @throws JSONException if the document or any of its forecasts is malformed.
+     * @throws IOException   if reading from the underlying stream fails.
+     */
+    public int parseGroup(Reader in, GroupCallback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            int forecasts = 0;
+            String[] query = new String[1];
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!OWM_LIST.equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    query[0] = null;
+                    readForecast(reader, callback.beginForecast(forecasts), query);
+                    callback.endForecast(forecasts, query[0]);
+                    forecasts++;
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            return forecasts;
+        } catch (MalformedJsonException e) {
+            throw toJsonException(e);
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected token types this way.
+            throw toJsonException(e);
+        } catch (NumberFormatException e) {
+            throw toJsonException(e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads one forecast object.
+     *
+     * @param query if not null, receives the forecast's {@code "query"} field.
+     */
+    private int readForecast(JsonReader reader, Callback callback, String[] query)
+            throws IOException, JSONException {
+        boolean sawCity = false;
+        int days = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY.equals(name)) {
+                readCity(reader, callback);
+                sawCity = true;
+            } else if (OWM_LIST.equals(name)) {
+                days = readList(reader, callback);
+            } else if (query != null && OWM_QUERY.equals(name)) {
+                query[0] = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!sawCity) {
+            throw new JSONException("No value for " + OWM_CITY);
+        }
+        return days;
+    }
+
+    private static JSONException toJsonException(Exception e) {
+        JSONException jsonException = new JSONException(e.getMessage());
+        jsonException.initCause(e);
+        return jsonException;
+    }
+
+    private void readCity(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+        boolean sawCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                int found = 0;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                        found |= 1;
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                        found |= 2;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                sawCoord = found == 3;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null) {
+            throw new JSONException("No value for " + OWM_CITY_NAME);
+        }
+        if (!sawCoord) {
+            throw new JSONException("No value for " + OWM_COORD);
+        }
+        callback.onCity(cityName, lat, lon);
+    }
+
+    private int readList(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        int index = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readDay(reader, index);
+            callback.onDay(mDay);
+            index++;
+        }
+        reader.endArray();
+        return index;
+    }
+
+    private void readDay(JsonReader reader, int index) throws IOException, JSONException {
+        Day day = mDay;
+        day.reset(index);
+        mFields = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+                mFields |= HAS_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                // JSONObject.getInt coerces doubles, so do the same here.
+                day.humidity = (int) reader.nextDouble();
+                mFields |= HAS_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+                mFields |= HAS_WIND_SPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+                mFields |= HAS_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                readTemperature(reader, day);
+            } else if (OWM_WEATHER.equals(name)) {
+                readWeather(reader, day);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (mFields != HAS_ALL_DAY_FIELDS) {
+            throw new JSONException("Incomplete forecast for day " + index);
+        }
+    }
+
+    private void readTemperature(JsonReader reader, Day day) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MAX.equals(name)) {
+                day.high = reader.nextDouble();
+                mFields |= HAS_MAX;
+            } else if (OWM_MIN.equals(name)) {
+                day.low = reader.nextDouble();
+                mFields |= HAS_MIN;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    // Description is in a child array called "weather", which is 1 element long.
+    // That element also contains a weather code.
+    private void readWeather(JsonReader reader, Day day) throws IOException {
+        reader.beginArray();
+        boolean first = true;
+        while (reader.hasNext()) {
+            if (!first || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            first = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    day.description = reader.nextString();
+                    mFields |= HAS_DESCRIPTION;
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    day.weatherId = (int) reader.nextDouble();
+                    mFields |= HAS_WEATHER_ID;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+}
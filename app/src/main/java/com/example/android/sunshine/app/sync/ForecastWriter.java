@@ -0,0 +1,335 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.example.android.sunshine.app.SunLog;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.LocationResult;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.StoredDay;
+import com.example.android.sunshine.app.sync.LocationSyncEngine.StoredLocation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes what a {@link LocationSyncEngine} sync fetched, a batch of locations at a time, on
+ * the sync thread.  One writer serves one sync, since it carries that sync's purge along until
+ * a batch stores something new.
+ */
+final class ForecastWriter {
+    private static final String LOG_TAG = ForecastWriter.class.getSimpleName();
+
+    // What resolveLocationId returns for a location the write batch inserts
+    private static final long NEW_LOCATION = -1;
+
+    private final Context mContext;
+    private final SyncScheduler mScheduler;
+    private final SyncTrace mTrace;
+    private final LocationIdCache mLocationIds = LocationIdCache.getInstance();
+    // Days up to this date are deleted with the next batch that stores something new; 0 once
+    // this sync's purge is done
+    private long mPurgeBefore;
+
+    ForecastWriter(Context context, SyncScheduler scheduler, SyncTrace trace, long purgeBefore) {
+        mContext = context;
+        mScheduler = scheduler;
+        mTrace = trace;
+        mPurgeBefore = purgeBefore;
+    }
+
+    /**
+     * Writes a batch of finished locations, and adds them to {@code report} and
+     * {@code syncResult}.
+     */
+    void write(List<LocationResult> results, Map<String, StoredLocation> stored,
+               Map<Long, Map<Long, StoredDay>> storedDays, SyncScheduler.Conditions conditions,
+               SyncReport report, SyncResult syncResult) {
+        long writeStart = SystemClock.elapsedRealtime();
+        int rowsWritten = writeResults(results, stored, storedDays, conditions, report);
+        report.rowsWritten += rowsWritten;
+        report.writeMillis += SystemClock.elapsedRealtime() - writeStart;
+
+        for (LocationResult result : results) {
+            if (result.fromCache) {
+                report.responsesFromCache++;
+            }
+            report.add(new SyncReport.LocationReport(result.setting, result.status,
+                    result.fetchMillis, result.rows.size(), result.rowsChanged,
+                    result.attempts));
+            switch (result.status) {
+                case SyncReport.STATUS_UPDATED:
+                    syncResult.stats.numEntries += result.rows.size();
+                    break;
+                case SyncReport.STATUS_NOT_MODIFIED:
+                    syncResult.stats.numSkippedEntries++;
+                    break;
+                case SyncReport.STATUS_IO_ERROR:
+                    syncResult.stats.numIoExceptions++;
+                    break;
+                case SyncReport.STATUS_PARSE_ERROR:
+                    syncResult.stats.numParseExceptions++;
+                    break;
+                case SyncReport.STATUS_AUTH_ERROR:
+                    syncResult.stats.numAuthExceptions++;
+                    break;
+                case SyncReport.STATUS_CIRCUIT_OPEN:
+                    // A soft error, so the framework backs off as well.
+                    syncResult.stats.numIoExceptions++;
+                    break;
+                case SyncReport.STATUS_DB_ERROR:
+                    syncResult.databaseError = true;
+                    break;
+                case SyncReport.STATUS_CANCELLED:
+                    // Not an error: the user moved on to another location.
+                    break;
+            }
+        }
+        syncResult.stats.numInserts += rowsWritten;
+    }
+
+    /**
+     * Writes a batch of locations as one applyBatch, so either all of it is stored or none.
+     * <p/>
+     * Incoming days are compared with what is stored, and only the days whose content changed
+     * are written, each through its location/date URI.  The provider notifies once the batch
+     * commits, for the deepest URI covering every changed day, so a loader showing one
+     * location requeries once however many of its days changed, and one showing an unchanged
+     * location doesn't requery at all.  Fetch states, refreshed fetch times and the purge go
+     * through no-notify URIs.
+     * Every location that answered also gets its next due time from the scheduler, based on
+     * how much of its forecast changed.  Unchanged days still get the new fetch time, with one
+     * update per location, so incremental syncs don't ask for them again.
+     *
+     * @return the number of weather rows written.
+     */
+    private int writeResults(List<LocationResult> results, Map<String, StoredLocation> stored,
+                             Map<Long, Map<Long, StoredDay>> storedDays,
+                             SyncScheduler.Conditions conditions, SyncReport report) {
+        long traceStart = SyncTrace.now();
+        // Each location's row and changed days, then everything else
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        // Locations whose details the batch updates, to put back in the cache once it's done
+        Map<String, LocationIdCache.Entry> updatedLocations =
+                new HashMap<String, LocationIdCache.Entry>();
+        int inserted = 0;
+        ArrayList<ContentValues> fetchStates = new ArrayList<ContentValues>();
+        boolean anyUpdated = false;
+        // Location id, fetch time and date range of the locations with unchanged days
+        List<long[]> refreshedDays = new ArrayList<long[]>();
+        long now = System.currentTimeMillis();
+
+        for (LocationResult result : results) {
+            if (result.joined) {
+                // Whoever made the fetch writes it.
+                continue;
+            }
+            if (result.status == SyncReport.STATUS_NOT_MODIFIED) {
+                fetchStates.add(buildFetchState(result, now,
+                        mScheduler.nextSyncAt(conditions, 0)));
+                continue;
+            }
+            if (result.status != SyncReport.STATUS_UPDATED) {
+                continue;
+            }
+            anyUpdated = true;
+            int locationOperation = operations.size();
+            long locationId = resolveLocationId(result, stored.get(result.setting), operations,
+                    updatedLocations);
+            Map<Long, StoredDay> days = storedDays.get(locationId);
+            // A response read from the cache is as old as when it was fetched, and its age
+            // counts against the interval.
+            long fetchedAt = result.fetchedAt != 0 ? result.fetchedAt : now;
+            long firstStale = Long.MAX_VALUE;
+            long lastStale = Long.MIN_VALUE;
+            for (ContentValues row : result.rows) {
+                long date = WeatherContract.normalizeDate(row.getAsLong(WeatherEntry.COLUMN_DATE));
+                StoredDay storedDay = days == null ? null : days.get(date);
+                if (storedDay != null && storedDay.hash == LocationSyncEngine.contentHash(row)) {
+                    report.rowsUnchanged++;
+                    if (storedDay.fetchedAt < fetchedAt) {
+                        firstStale = Math.min(firstStale, date);
+                        lastStale = Math.max(lastStale, date);
+                    }
+                    continue;
+                }
+                row.put(WeatherEntry.COLUMN_FETCHED_AT, fetchedAt);
+                ContentProviderOperation.Builder insert = ContentProviderOperation.newInsert(
+                        WeatherEntry.buildWeatherLocationWithDate(result.setting, date));
+                // The city can arrive after the list, so the foreign key is filled in last.
+                if (locationId == NEW_LOCATION) {
+                    insert.withValues(row).withValueBackReference(WeatherEntry.COLUMN_LOC_KEY,
+                            locationOperation);
+                } else {
+                    row.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+                    insert.withValues(row);
+                }
+                operations.add(insert.build());
+                inserted++;
+                result.rowsChanged++;
+            }
+            if (firstStale <= lastStale) {
+                refreshedDays.add(new long[]{locationId, fetchedAt, firstStale, lastStale});
+            }
+
+            // Only remember the validators once the data they describe is stored.
+            double changeRatio = result.rows.isEmpty()
+                    ? 0 : (double) result.rowsChanged / result.rows.size();
+            fetchStates.add(buildFetchState(result, fetchedAt,
+                    mScheduler.nextSyncAt(conditions, changeRatio) - (now - fetchedAt)));
+        }
+
+        if (fetchStates.isEmpty()) {
+            return 0;
+        }
+
+        // Nothing displayed changed, so nobody is notified.  Changed days in the range
+        // already carry the new fetch time and aren't matched.
+        Uri weatherUri = WeatherContract.buildNoNotifyUri(WeatherEntry.CONTENT_URI);
+        for (long[] refreshed : refreshedDays) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_FETCHED_AT, refreshed[1]);
+            operations.add(ContentProviderOperation.newUpdate(weatherUri).withValues(values)
+                    .withSelection(WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                                    + WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ? AND "
+                                    + WeatherEntry.COLUMN_FETCHED_AT + " < ?",
+                            new String[]{Long.toString(refreshed[0]),
+                                    Long.toString(refreshed[2]), Long.toString(refreshed[3]),
+                                    Long.toString(refreshed[1])})
+                    .build());
+        }
+        Uri fetchStateUri = WeatherContract.buildNoNotifyUri(FetchStateEntry.CONTENT_URI);
+        for (ContentValues state : fetchStates) {
+            operations.add(ContentProviderOperation.newInsert(fetchStateUri).withValues(state)
+                    .build());
+        }
+        // Only purge once something new is stored, so we don't build up an endless history.
+        // Nothing displays days before today, so there is no one to notify about them.
+        boolean purge = anyUpdated && mPurgeBefore != 0;
+        if (purge) {
+            operations.add(ContentProviderOperation.newDelete(weatherUri)
+                    .withSelection(WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[]{Long.toString(mPurgeBefore)})
+                    .build());
+        }
+
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+        } catch (RemoteException e) {
+            return failWrite(results, report, e);
+        } catch (OperationApplicationException e) {
+            return failWrite(results, report, e);
+        } catch (SQLException e) {
+            return failWrite(results, report, e);
+        }
+        if (purge) {
+            mPurgeBefore = 0;
+        }
+        // The updates cleared the cache; put back what we know.
+        long generation = mLocationIds.getGeneration();
+        for (Map.Entry<String, LocationIdCache.Entry> location : updatedLocations.entrySet()) {
+            mLocationIds.put(location.getKey(), location.getValue(), generation);
+        }
+        mTrace.record(SyncTrace.PHASE_DB_WRITE, traceStart);
+        return inserted;
+    }
+
+    /**
+     * Marks the results a batch that wasn't stored would have written, so the sync goes on
+     * with the next batch and the framework hears about it.  None of the batch is stored, fetch
+     * states included, so those locations are due again on the next sync.
+     *
+     * @return the number of weather rows written, none.
+     */
+    private int failWrite(List<LocationResult> results, SyncReport report, Exception e) {
+        SunLog.e(LOG_TAG, "write_failed", "locations", results.size(), e);
+        report.writesFailed++;
+        for (LocationResult result : results) {
+            if (!result.joined && (result.status == SyncReport.STATUS_UPDATED
+                    || result.status == SyncReport.STATUS_NOT_MODIFIED)) {
+                result.status = SyncReport.STATUS_DB_ERROR;
+                result.rowsChanged = 0;
+            }
+        }
+        return 0;
+    }
+
+    private static ContentValues buildFetchState(LocationResult result, long now,
+                                                 long nextSyncAt) {
+        ContentValues state = new ContentValues();
+        state.put(FetchStateEntry.COLUMN_LOCATION_SETTING, result.setting);
+        state.put(FetchStateEntry.COLUMN_ETAG, result.etag);
+        state.put(FetchStateEntry.COLUMN_LAST_MODIFIED, result.lastModified);
+        state.put(FetchStateEntry.COLUMN_FETCHED_AT, now);
+        state.put(FetchStateEntry.COLUMN_NEXT_SYNC_AT, nextSyncAt);
+        return state;
+    }
+
+    /**
+     * Finds the id of {@code result}'s location.  A location the database doesn't have yet
+     * is inserted by the last operation added to {@code operations}, and stored details that
+     * differ from the result's are updated by one.
+     *
+     * @param updatedLocations gets the cache entry of a location whose details are updated.
+     * @return the location's id, or {@link #NEW_LOCATION} if it is being inserted.
+     */
+    private long resolveLocationId(LocationResult result, StoredLocation stored,
+                                   List<ContentProviderOperation> operations,
+                                   Map<String, LocationIdCache.Entry> updatedLocations) {
+        long id;
+        String cityName;
+        double lat;
+        double lon;
+        if (stored != null) {
+            id = stored.id;
+            cityName = stored.cityName;
+            lat = stored.lat;
+            lon = stored.lon;
+        } else {
+            LocationIdCache.Entry cached = mLocationIds.get(result.setting);
+            if (cached == null) {
+                cached = LocationSyncEngine.findLocation(mContext, result.setting);
+            }
+            if (cached == null) {
+                operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                        .withValues(LocationSyncEngine.buildLocation(result.setting,
+                                result.cityName, result.lat, result.lon))
+                        .build());
+                return NEW_LOCATION;
+            }
+            id = cached.id;
+            cityName = cached.cityName;
+            lat = cached.lat;
+            lon = cached.lon;
+        }
+        // Followed locations start out with placeholder details; fill in what OWM told us.
+        if (!result.cityName.equals(cityName) || result.lat != lat || result.lon != lon) {
+            ContentValues values = new ContentValues();
+            values.put(LocationEntry.COLUMN_CITY_NAME, result.cityName);
+            values.put(LocationEntry.COLUMN_COORD_LAT, result.lat);
+            values.put(LocationEntry.COLUMN_COORD_LONG, result.lon);
+            operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withSelection(LocationEntry._ID + " = ?", new String[]{Long.toString(id)})
+                    .build());
+            updatedLocations.put(result.setting,
+                    new LocationIdCache.Entry(id, result.cityName, result.lat, result.lon));
+        }
+        return id;
+    }
+}
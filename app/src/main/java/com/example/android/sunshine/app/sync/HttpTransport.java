@@ -0,0 +1,278 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HTTP layer used by sync.
+ * <p/>
+ * Every request asks for a gzip or deflate encoded body, and the body is decoded by a
+ * {@link DecodingInputStream} working out of a process-wide {@link ByteArrayPool}.  The
+ * transport keeps a running count of bytes that came over the wire and bytes handed to the
+ * parser, which is what matters on metered links.  One instance is used per sync.
+ * <p/>
+ * Each exchange also times its own phases (DNS, connect, first byte and waiting for the body)
+ * for {@link SyncTrace}; timing the lookup is best-effort and never fails a request.
+ */
+public class HttpTransport {
+
+    static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    private static final ByteArrayPool sBufferPool =
+            new ByteArrayPool(16 * DecodingInputStream.BUFFER_SIZE);
+
+    private final AtomicLong mWireBytes = new AtomicLong();
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /**
+     * Issues a GET for {@code url}.  The caller must close the returned exchange.
+     *
+     * @param requestHeaders extra request headers, may be null.
+     */
+    public Exchange get(URL url, Map<String, String> requestHeaders) throws IOException {
+        return get(url, requestHeaders, null);
+    }
+
+    /**
+     * Issues a GET for {@code url} that another thread can cut short through {@code handle}.
+     * An aborted request fails with an IOException in the thread that made it.
+     *
+     * @param handle may be null.
+     */
+    public Exchange get(URL url, Map<String, String> requestHeaders, AbortHandle handle)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+        // Setting this ourselves also stops HttpURLConnection from transparently inflating
+        // the body, which would hide the wire size from us.
+        connection.setRequestProperty(HEADER_ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        if (handle != null && !handle.attach(connection)) {
+            throw new IOException("Request for " + url + " was aborted");
+        }
+        try {
+            long dnsNanos = timeLookup(url);
+            long resolved = System.nanoTime();
+            connection.connect();
+            long connected = System.nanoTime();
+            mRequestCount.incrementAndGet();
+            Exchange exchange = new Exchange(connection, connection.getResponseCode());
+            exchange.dnsNanos = dnsNanos;
+            exchange.connectNanos = connected - resolved;
+            exchange.firstByteNanos = System.nanoTime() - connected;
+            return exchange;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * HttpURLConnection doesn't say how long its lookup took, so time one ahead of it; the
+     * connection's own lookup is then answered from InetAddress's cache.  Only a measurement:
+     * it never fails the request.
+     *
+     * @return nanoseconds spent resolving {@code url}'s host, or 0 if the request goes
+     * through a proxy, which resolves the host itself, or the lookup failed, which is for the
+     * connection to report if it matters.
+     */
+    private static long timeLookup(URL url) {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector != null) {
+            try {
+                for (Proxy proxy : proxySelector.select(url.toURI())) {
+                    if (proxy.type() != Proxy.Type.DIRECT) {
+                        return 0;
+                    }
+                }
+            } catch (URISyntaxException e) {
+                return 0;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            InetAddress.getAllByName(url.getHost());
+        } catch (UnknownHostException e) {
+            return 0;
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return compressed body bytes read from the network so far.
+     */
+    public long getWireBytes() {
+        return mWireBytes.get();
+    }
+
+    /**
+     * @return decoded body bytes handed to callers so far.
+     */
+    public long getDecodedBytes() {
+        return mDecodedBytes.get();
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * One request/response pair.
+     */
+    public class Exchange implements Closeable {
+        private final HttpURLConnection mConnection;
+        private final int mResponseCode;
+        private CountingInputStream mWire;
+        private DecodingInputStream mBody;
+        // Phase timings, for SyncTrace.  The byte counts and read time are final once the
+        // exchange is closed.
+        long dnsNanos;
+        long connectNanos;
+        long firstByteNanos;
+        long readNanos;
+        long wireBytes;
+        long decodedBytes;
+
+        Exchange(HttpURLConnection connection, int responseCode) {
+            mConnection = connection;
+            mResponseCode = responseCode;
+        }
+
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return the decoded response body.  It is closed along with the exchange.
+         */
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mWire = new CountingInputStream(mConnection.getInputStream());
+                mBody = new DecodingInputStream(mWire,
+                        DecodingInputStream.encodingFor(getHeader(HEADER_CONTENT_ENCODING)),
+                        sBufferPool);
+            }
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            if (mBody != null) {
+                wireBytes = mWire.getCount();
+                decodedBytes = mBody.getDecodedBytes();
+                readNanos = mWire.getReadNanos();
+                mWireBytes.addAndGet(wireBytes);
+                mDecodedBytes.addAndGet(decodedBytes);
+                try {
+                    mBody.close();
+                } catch (IOException ignored) {
+                }
+                mBody = null;
+            }
+            mConnection.disconnect();
+        }
+    }
+
+    /**
+     * Aborts whatever request it is attached to, from any thread.
+     * <p/>
+     * Aborting only disconnects the connection.  The thread that made the request sees an
+     * IOException and closes its exchange as usual, so the body's pooled buffers are never
+     * returned by two threads.
+     */
+    public static class AbortHandle {
+        private HttpURLConnection mConnection;
+        private boolean mAborted;
+
+        public synchronized void abort() {
+            mAborted = true;
+            if (mConnection != null) {
+                mConnection.disconnect();
+            }
+        }
+
+        public synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        /**
+         * @return false if the handle was aborted already, in which case the request must
+         * not be made.
+         */
+        synchronized boolean attach(HttpURLConnection connection) {
+            mConnection = connection;
+            return !mAborted;
+        }
+    }
+
+    /**
+     * Counts the bytes read and the time spent blocked reading them.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+        private long mReadNanos;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getReadNanos() {
+            return mReadNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            mReadNanos += System.nanoTime() - start;
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int n = super.read(buffer, offset, count);
+            mReadNanos += System.nanoTime() - start;
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long n = super.skip(byteCount);
+            mCount += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,862 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.format.Time;
+import com.example.android.sunshine.app.SunLog;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.FetchStateEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Syncs the forecast for any number of locations.
+ * <p/>
+ * Fetching and decoding run on a small, bounded worker pool, which hands finished locations
+ * to the sync thread through a bounded {@link SyncPipeline} queue.  The sync thread writes
+ * whatever has arrived as one applyBatch, which the provider runs as one transaction and
+ * notifies once, while the workers carry on with the next locations.  Purging old days rides
+ * along with the first batch that stores anything new.
+ * <p/>
+ * With a {@link BatchWeatherSource}, locations that have nothing to revalidate are fetched
+ * several to a request; see {@link #setBatching(boolean)}.
+ */
+public class LocationSyncEngine {
+    private static final String LOG_TAG = LocationSyncEngine.class.getSimpleName();
+
+    // Upper bound on concurrent forecast requests.  Enough to hide latency without
+    // opening a burst of connections on a phone's radio.
+    static final int MAX_PARALLEL_FETCHES = 4;
+
+    // Fetched locations that may wait to be written before the fetch workers stall
+    static final int PIPELINE_QUEUE_CAPACITY = 2 * MAX_PARALLEL_FETCHES;
+    // Most locations written in one transaction
+    static final int MAX_WRITE_BATCH = 16;
+
+    static final int FORECAST_DAYS = 14;
+
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private static final String[] LOCATION_PROJECTION = new String[]{
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG,
+            LocationEntry.COLUMN_FOLLOWED
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+    private static final int INDEX_CITY_NAME = 2;
+    private static final int INDEX_COORD_LAT = 3;
+    private static final int INDEX_COORD_LONG = 4;
+    private static final int INDEX_FOLLOWED = 5;
+
+    private static final String[] FETCH_STATE_PROJECTION = new String[]{
+            FetchStateEntry.COLUMN_LOCATION_SETTING,
+            FetchStateEntry.COLUMN_ETAG,
+            FetchStateEntry.COLUMN_LAST_MODIFIED,
+            FetchStateEntry.COLUMN_NEXT_SYNC_AT
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_STATE_SETTING = 0;
+    private static final int INDEX_ETAG = 1;
+    private static final int INDEX_LAST_MODIFIED = 2;
+    private static final int INDEX_NEXT_SYNC_AT = 3;
+
+    private static final String[] HASH_PROJECTION = new String[]{
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_FETCHED_AT
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_HASH_LOC_KEY = 0;
+    private static final int INDEX_HASH_DATE = 1;
+    private static final int INDEX_HASH_WEATHER_ID = 2;
+    private static final int INDEX_HASH_SHORT_DESC = 3;
+    private static final int INDEX_HASH_MIN_TEMP = 4;
+    private static final int INDEX_HASH_MAX_TEMP = 5;
+    private static final int INDEX_HASH_HUMIDITY = 6;
+    private static final int INDEX_HASH_PRESSURE = 7;
+    private static final int INDEX_HASH_WIND_SPEED = 8;
+    private static final int INDEX_HASH_DEGREES = 9;
+    private static final int INDEX_HASH_FETCHED_AT = 10;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Context mContext;
+    private final HttpTransport mTransport;
+    private final WeatherSource mSource;
+    private final int mMaxParallelFetches;
+    private final SyncScheduler mScheduler = new SyncScheduler();
+    private final SyncCoalescer mCoalescer = SyncCoalescer.getInstance();
+    private final ResponseCache mCache;
+    private final LocationIdCache mLocationIds = LocationIdCache.getInstance();
+    private SyncScheduler.Conditions mConditions;
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private SyncTrace mTrace = new SyncTrace(false);
+    private boolean mIncremental;
+    private boolean mBatching = true;
+
+    public LocationSyncEngine(Context context, HttpTransport transport, WeatherSource source) {
+        this(context, transport, source, MAX_PARALLEL_FETCHES);
+    }
+
+    /**
+     * Syncs from OpenWeatherMap, or anything that speaks its API, at {@code forecastBaseUrl}.
+     */
+    public LocationSyncEngine(Context context, HttpTransport transport, String forecastBaseUrl) {
+        this(context, transport, new OpenWeatherMapSource(forecastBaseUrl));
+    }
+
+    LocationSyncEngine(Context context, HttpTransport transport, String forecastBaseUrl,
+                       int maxParallelFetches) {
+        this(context, transport, new OpenWeatherMapSource(forecastBaseUrl), maxParallelFetches);
+    }
+
+    LocationSyncEngine(Context context, HttpTransport transport, WeatherSource source,
+                       int maxParallelFetches) {
+        mContext = context;
+        mTransport = transport;
+        mSource = source;
+        mMaxParallelFetches = maxParallelFetches;
+        mCache = ResponseCache.getInstance(context);
+    }
+
+    /**
+     * Replaces the conditions the scheduler would otherwise read from the device.  Only used
+     * by tests.
+     */
+    void setConditions(SyncScheduler.Conditions conditions) {
+        mConditions = conditions;
+    }
+
+    /**
+     * Replaces the default retry policy.  Only used by tests, which don't want to wait.
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Records this engine's phases into {@code trace} instead of one of its own.
+     */
+    void setTrace(SyncTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * In incremental mode a location that already has days stored only asks for as much of
+     * the horizon as {@link ForecastHorizon} finds missing or stale, and the days it gets are
+     * merged into the stored ones.  Off by default: a full fetch also keeps the validators
+     * and the response cache current, which a partial one can't.
+     */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    /**
+     * Whether to group locations into batch requests when the source is a
+     * {@link BatchWeatherSource}.  On by default.
+     * <p/>
+     * A batch has no validators of its own, so only the locations a single request couldn't
+     * revalidate either are batched: those with no validators stored, and partial fetches.
+     * The others keep their conditional requests, which cost next to nothing when the
+     * forecast hasn't changed.  The preferred location also stays on its own, so its fetch
+     * can still be dropped if the user moves on.
+     */
+    public void setBatching(boolean batching) {
+        mBatching = batching;
+    }
+
+    // What the fetch tasks share with the engine that made them
+
+    WeatherSource getSource() {
+        return mSource;
+    }
+
+    HttpTransport getTransport() {
+        return mTransport;
+    }
+
+    ResponseCache getCache() {
+        return mCache;
+    }
+
+    SyncCoalescer getCoalescer() {
+        return mCoalescer;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    SyncTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Syncs {@code preferredLocation} along with every followed location.
+     */
+    public SyncReport syncFollowed(String preferredLocation, SyncResult syncResult) {
+        return syncFollowed(preferredLocation, false, syncResult);
+    }
+
+    /**
+     * Syncs {@code preferredLocation} along with every followed location.
+     * <p/>
+     * An empty database, as after an install or a schema upgrade, is first rebuilt from the
+     * response cache, so only what the cache can't supply goes to the network.
+     *
+     * @param dueOnly skip the locations the scheduler doesn't consider due yet.
+     */
+    public SyncReport syncFollowed(String preferredLocation, boolean dueOnly,
+                                   SyncResult syncResult) {
+        Map<String, StoredLocation> stored = loadLocations();
+        if (stored.isEmpty() && rebuildFromCache(syncResult).getSuccessCount() > 0) {
+            stored = loadLocations();
+        }
+        LinkedHashSet<String> settings = new LinkedHashSet<String>();
+        settings.add(preferredLocation);
+        for (StoredLocation location : stored.values()) {
+            if (location.followed) {
+                settings.add(location.setting);
+            }
+        }
+        return sync(settings, stored, preferredLocation, dueOnly, syncResult);
+    }
+
+    /**
+     * Syncs exactly the given location settings.  Their locations are resolved through the
+     * {@link LocationIdCache}, so there's no need to read the location table first.
+     */
+    public SyncReport sync(Collection<String> locationSettings, SyncResult syncResult) {
+        return sync(locationSettings, Collections.<String, StoredLocation>emptyMap(), null,
+                false, syncResult);
+    }
+
+    /**
+     * @param preferredLocation the location synced only because it is the preferred one, if
+     *                          any.  Its fetch is dropped if the user picks another location
+     *                          while it is in flight, unless the location is also followed.
+     */
+    private SyncReport sync(Collection<String> locationSettings,
+                            Map<String, StoredLocation> stored, String preferredLocation,
+                            boolean dueOnly, SyncResult syncResult) {
+        long syncStart = SystemClock.elapsedRealtime();
+        SyncReport report = new SyncReport();
+        report.trace = mTrace;
+        SyncScheduler.Conditions conditions = mConditions != null
+                ? mConditions : SyncScheduler.captureConditions(mContext);
+        Map<String, StoredFetchState> fetchStates = loadFetchStates();
+
+        if (dueOnly) {
+            List<String> due = new ArrayList<String>(locationSettings.size());
+            for (String setting : locationSettings) {
+                StoredFetchState state = fetchStates.get(setting);
+                if (state == null || mScheduler.isDue(conditions, state.nextSyncAt)) {
+                    due.add(setting);
+                } else {
+                    report.locationsNotDue++;
+                }
+            }
+            locationSettings = due;
+        }
+        if (locationSettings.isEmpty()) {
+            SunLog.d(LOG_TAG, "nothing_due", "not_due", report.locationsNotDue);
+            return report;
+        }
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.  Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice normalized UTC
+        // date for all of our weather.
+        int julianStartDay = julianDayOf(System.currentTimeMillis());
+        final ForecastWriter writer = new ForecastWriter(mContext, mScheduler, mTrace,
+                new Time().setJulianDay(julianStartDay - 1));
+
+        // Every location comes from the same forecast host, so they share one breaker.
+        CircuitBreaker breaker = CircuitBreaker.forHost(mContext, mSource.getHost());
+
+        final Map<Long, Map<Long, StoredDay>> storedDays =
+                loadStoredDays(new Time().setJulianDay(julianStartDay));
+        long[] horizonDates = mIncremental ? horizonDates(julianStartDay) : null;
+        long now = System.currentTimeMillis();
+        BatchWeatherSource batchSource = mBatching && mSource instanceof BatchWeatherSource
+                ? (BatchWeatherSource) mSource : null;
+        // Locations to batch, grouped by how many days they ask for
+        Map<Integer, List<String>> batchable = new HashMap<Integer, List<String>>();
+        List<Callable<List<LocationResult>>> tasks =
+                new ArrayList<Callable<List<LocationResult>>>(locationSettings.size());
+        for (String setting : locationSettings) {
+            StoredLocation location = stored.get(setting);
+            StoredFetchState state = fetchStates.get(setting);
+            boolean cancellable = setting.equals(preferredLocation)
+                    && (location == null || !location.followed);
+            int days = FORECAST_DAYS;
+            if (mIncremental) {
+                long locationId = location != null ? location.id : cachedLocationId(setting);
+                if (locationId != -1) {
+                    days = daysToFetch(storedDays.get(locationId), horizonDates, now);
+                }
+            }
+            if (batchSource != null && !cancellable && days > 0
+                    && (days < FORECAST_DAYS || state == null
+                    || (state.etag == null && state.lastModified == null))) {
+                List<String> group = batchable.get(days);
+                if (group == null) {
+                    group = new ArrayList<String>();
+                    batchable.put(days, group);
+                }
+                group.add(setting);
+            } else {
+                tasks.add(single(new FetchTask(this, setting, state, julianStartDay, days,
+                        breaker, cancellable)));
+            }
+        }
+        for (Map.Entry<Integer, List<String>> group : batchable.entrySet()) {
+            int days = group.getKey();
+            List<String> settings = group.getValue();
+            for (int from = 0; from < settings.size(); from += batchSource.getMaxBatchSize()) {
+                List<String> batch = settings.subList(from,
+                        Math.min(settings.size(), from + batchSource.getMaxBatchSize()));
+                if (batch.size() == 1) {
+                    String setting = batch.get(0);
+                    tasks.add(single(new FetchTask(this, setting, fetchStates.get(setting),
+                            julianStartDay, days, breaker, false)));
+                } else {
+                    tasks.add(new BatchFetchTask(this, batchSource, batch, fetchStates,
+                            julianStartDay, days, breaker));
+                }
+            }
+        }
+
+        // Each batch of finished fetches is written while the workers fetch the next ones.
+        final Map<String, StoredLocation> storedLocations = stored;
+        final SyncScheduler.Conditions writeConditions = conditions;
+        final SyncReport writeReport = report;
+        final SyncResult writeSyncResult = syncResult;
+        SyncPipeline<List<LocationResult>> pipeline = new SyncPipeline<List<LocationResult>>(
+                mMaxParallelFetches, PIPELINE_QUEUE_CAPACITY, MAX_WRITE_BATCH);
+        try {
+            pipeline.run(tasks, new SyncPipeline.Sink<List<LocationResult>>() {
+                @Override
+                public void accept(List<List<LocationResult>> batch) {
+                    List<LocationResult> results = new ArrayList<LocationResult>();
+                    for (List<LocationResult> taskResults : batch) {
+                        results.addAll(taskResults);
+                    }
+                    writer.write(results, storedLocations, storedDays, writeConditions,
+                            writeReport, writeSyncResult);
+                }
+            });
+        } catch (InterruptedException e) {
+            // The sync was cancelled.  Batches already written stay; each one is complete.
+            Thread.currentThread().interrupt();
+            return report;
+        } finally {
+            report.pipelineStats = pipeline.getStats();
+        }
+        if (breaker.isOpen(System.currentTimeMillis())) {
+            // Don't let the framework retry before the breaker would let a request through.
+            syncResult.delayUntil = Math.max(syncResult.delayUntil,
+                    breaker.getOpenUntil() / 1000);
+        }
+
+        report.elapsedMillis = SystemClock.elapsedRealtime() - syncStart;
+        SyncReport.setLastReport(report);
+        SunLog.d(LOG_TAG, "synced", "report", report);
+        return report;
+    }
+
+    /**
+     * Restores every location in the response cache to the database without touching the
+     * network.  Each response is written as if it had just been fetched, validators and next
+     * sync time included, except that its age counts against the schedule.
+     */
+    public SyncReport rebuildFromCache(SyncResult syncResult) {
+        long syncStart = SystemClock.elapsedRealtime();
+        SyncReport report = new SyncReport();
+        report.trace = mTrace;
+        SyncScheduler.Conditions conditions = mConditions != null
+                ? mConditions : SyncScheduler.captureConditions(mContext);
+
+        List<LocationResult> results = new ArrayList<LocationResult>();
+        for (ResponseCache.Entry entry : mCache.getAll()) {
+            String setting = mSource.getLocationSetting(Uri.parse(entry.key));
+            if (setting == null) {
+                // Another source's response
+                continue;
+            }
+            long start = SystemClock.elapsedRealtime();
+            LocationResult result = new LocationResult(setting);
+            if (readCachedResponse(result, entry)) {
+                result.fetchMillis = SystemClock.elapsedRealtime() - start;
+                results.add(result);
+            }
+        }
+        if (!results.isEmpty()) {
+            int julianStartDay = julianDayOf(System.currentTimeMillis());
+            ForecastWriter writer = new ForecastWriter(mContext, mScheduler, mTrace,
+                    new Time().setJulianDay(julianStartDay - 1));
+            writer.write(results, loadLocations(),
+                    loadStoredDays(new Time().setJulianDay(julianStartDay)), conditions,
+                    report, syncResult);
+        }
+
+        report.elapsedMillis = SystemClock.elapsedRealtime() - syncStart;
+        SyncReport.setLastReport(report);
+        SunLog.d(LOG_TAG, "rebuilt_from_cache", "report", report);
+        return report;
+    }
+
+    /**
+     * @return the normalized date of every day of the horizon, today first, as the rows of a
+     * forecast fetched today would store them.
+     */
+    private static long[] horizonDates(int julianStartDay) {
+        Time dayTime = new Time();
+        long[] dates = new long[FORECAST_DAYS];
+        for (int i = 0; i < FORECAST_DAYS; i++) {
+            dates[i] = WeatherContract.normalizeDate(dayTime.setJulianDay(julianStartDay + i));
+        }
+        return dates;
+    }
+
+    /**
+     * @param days the stored days of one location, keyed by date, or null if it has none.
+     * @return how many days of the horizon that location needs to ask for.
+     */
+    private static int daysToFetch(Map<Long, StoredDay> days, long[] horizonDates, long now) {
+        if (days == null) {
+            return FORECAST_DAYS;
+        }
+        long[] fetchedAt = new long[horizonDates.length];
+        for (int i = 0; i < horizonDates.length; i++) {
+            StoredDay day = days.get(horizonDates[i]);
+            fetchedAt[i] = day != null ? day.fetchedAt : 0;
+        }
+        return ForecastHorizon.daysToFetch(fetchedAt, now);
+    }
+
+    /**
+     * @return the Julian day of {@code millis} in the local time zone.
+     */
+    private static int julianDayOf(long millis) {
+        Time time = new Time();
+        time.set(millis);
+        return Time.getJulianDay(millis, time.gmtoff);
+    }
+
+    /**
+     * Decodes a cached response into {@code result}, as of the day it was stored.
+     *
+     * @return false if the body couldn't be read, in which case the entry is dropped.
+     */
+    boolean readCachedResponse(LocationResult result, ResponseCache.Entry entry) {
+        result.rows.clear();
+        InputStream body = null;
+        try {
+            body = mCache.openBody(entry);
+            ForecastRowCollector collector = new ForecastRowCollector(new Time(),
+                    julianDayOf(entry.storedAt), result.rows);
+            long parseStart = SyncTrace.now();
+            mSource.parseForecast(new InputStreamReader(body, "UTF-8"), collector);
+            mTrace.record(SyncTrace.PHASE_PARSE, parseStart);
+            result.cityName = collector.cityName;
+            result.lat = collector.cityLatitude;
+            result.lon = collector.cityLongitude;
+            result.etag = entry.etag;
+            result.lastModified = entry.lastModified;
+            result.fetchedAt = entry.storedAt;
+            result.status = SyncReport.STATUS_UPDATED;
+            result.fromCache = true;
+            return true;
+        } catch (IOException e) {
+            SunLog.w(LOG_TAG, "cached_response_unreadable", "setting", result.setting, e);
+            mCache.remove(entry.key);
+            result.rows.clear();
+            return false;
+        } catch (JSONException e) {
+            SunLog.w(LOG_TAG, "cached_response_unparseable", "setting", result.setting, e);
+            mCache.remove(entry.key);
+            result.rows.clear();
+            return false;
+        } finally {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return content hashes and fetch times of the stored days from {@code startDate} on,
+     * keyed by location id and then by date.
+     */
+    private Map<Long, Map<Long, StoredDay>> loadStoredDays(long startDate) {
+        Map<Long, Map<Long, StoredDay>> days = new HashMap<Long, Map<Long, StoredDay>>();
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                HASH_PROJECTION,
+                WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(startDate)},
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(INDEX_HASH_LOC_KEY);
+                Map<Long, StoredDay> locationDays = days.get(locationId);
+                if (locationDays == null) {
+                    locationDays = new HashMap<Long, StoredDay>(FORECAST_DAYS * 2);
+                    days.put(locationId, locationDays);
+                }
+                StoredDay day = new StoredDay();
+                day.fetchedAt = cursor.getLong(INDEX_HASH_FETCHED_AT);
+                day.hash = contentHash(
+                        cursor.getInt(INDEX_HASH_WEATHER_ID),
+                        cursor.getString(INDEX_HASH_SHORT_DESC),
+                        cursor.getDouble(INDEX_HASH_MIN_TEMP),
+                        cursor.getDouble(INDEX_HASH_MAX_TEMP),
+                        cursor.getDouble(INDEX_HASH_HUMIDITY),
+                        cursor.getDouble(INDEX_HASH_PRESSURE),
+                        cursor.getDouble(INDEX_HASH_WIND_SPEED),
+                        cursor.getDouble(INDEX_HASH_DEGREES));
+                locationDays.put(cursor.getLong(INDEX_HASH_DATE), day);
+            }
+            cursor.close();
+        }
+        return days;
+    }
+
+    static long contentHash(ContentValues row) {
+        return contentHash(
+                row.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                row.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                row.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                row.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                row.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                row.getAsDouble(WeatherEntry.COLUMN_PRESSURE),
+                row.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                row.getAsDouble(WeatherEntry.COLUMN_DEGREES));
+    }
+
+    /**
+     * 64-bit FNV-1a over the displayed content of one day.  Every REAL column is hashed as a
+     * double, which is exactly what SQLite stores, so a round trip through the database
+     * doesn't change the hash.
+     */
+    static long contentHash(int weatherId, String shortDesc, double min, double max,
+                            double humidity, double pressure, double windSpeed, double degrees) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, weatherId);
+        hash = mix(hash, Double.doubleToLongBits(min));
+        hash = mix(hash, Double.doubleToLongBits(max));
+        hash = mix(hash, Double.doubleToLongBits(humidity));
+        hash = mix(hash, Double.doubleToLongBits(pressure));
+        hash = mix(hash, Double.doubleToLongBits(windSpeed));
+        hash = mix(hash, Double.doubleToLongBits(degrees));
+        if (shortDesc != null) {
+            for (int i = 0; i < shortDesc.length(); i++) {
+                hash = (hash ^ shortDesc.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the id of {@code setting}'s location if it is cached, or -1.
+     */
+    private long cachedLocationId(String setting) {
+        LocationIdCache.Entry entry = mLocationIds.get(setting);
+        return entry != null ? entry.id : -1;
+    }
+
+    /**
+     * Helper method to handle insertion of a new location in the weather database.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param cityName        A human-readable city name, e.g "Mountain View"
+     * @param lat             the latitude of the city
+     * @param lon             the longitude of the city
+     * @return the row ID of the added location.
+     */
+    long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        LocationIdCache.Entry cached = mLocationIds.get(locationSetting);
+        if (cached == null) {
+            // First, check if the location with this city name exists in the db
+            cached = findLocation(mContext, locationSetting);
+        }
+        if (cached != null) {
+            return cached.id;
+        }
+        // Finally, insert location data into the database.
+        Uri insertedUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                buildLocation(locationSetting, cityName, lat, lon));
+
+        // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
+        // The provider has cached it already.
+        return ContentUris.parseId(insertedUri);
+    }
+
+    /**
+     * Looks up a location that isn't in the {@link LocationIdCache} and caches it.
+     *
+     * @return the location's entry, or null if the database doesn't have it.
+     */
+    static LocationIdCache.Entry findLocation(Context context, String locationSetting) {
+        LocationIdCache locationIds = LocationIdCache.getInstance();
+        long generation = locationIds.getGeneration();
+        Cursor locationCursor = context.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                LOCATION_PROJECTION,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            if (!locationCursor.moveToFirst()) {
+                return null;
+            }
+            LocationIdCache.Entry entry = new LocationIdCache.Entry(
+                    locationCursor.getLong(INDEX_LOCATION_ID),
+                    locationCursor.getString(INDEX_CITY_NAME),
+                    locationCursor.getDouble(INDEX_COORD_LAT),
+                    locationCursor.getDouble(INDEX_COORD_LONG));
+            locationIds.put(locationSetting, entry, generation);
+            return entry;
+        } finally {
+            locationCursor.close();
+        }
+    }
+
+    static ContentValues buildLocation(String locationSetting, String cityName, double lat,
+                                       double lon) {
+        // Add the data, along with the corresponding name of the data type,
+        // so the content provider knows what kind of value is being inserted.
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, lon);
+        return locationValues;
+    }
+
+    private Map<String, StoredLocation> loadLocations() {
+        Map<String, StoredLocation> locations = new HashMap<String, StoredLocation>();
+        long generation = mLocationIds.getGeneration();
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                LOCATION_PROJECTION, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                StoredLocation location = new StoredLocation();
+                location.id = cursor.getLong(INDEX_LOCATION_ID);
+                location.setting = cursor.getString(INDEX_LOCATION_SETTING);
+                location.cityName = cursor.getString(INDEX_CITY_NAME);
+                location.lat = cursor.getDouble(INDEX_COORD_LAT);
+                location.lon = cursor.getDouble(INDEX_COORD_LONG);
+                location.followed = cursor.getInt(INDEX_FOLLOWED) != 0;
+                locations.put(location.setting, location);
+                // Warms the cache for the syncs that don't read the table.
+                mLocationIds.put(location.setting, new LocationIdCache.Entry(location.id,
+                        location.cityName, location.lat, location.lon), generation);
+            }
+            cursor.close();
+        }
+        return locations;
+    }
+
+    private Map<String, StoredFetchState> loadFetchStates() {
+        Map<String, StoredFetchState> states = new HashMap<String, StoredFetchState>();
+        Cursor cursor = mContext.getContentResolver().query(FetchStateEntry.CONTENT_URI,
+                FETCH_STATE_PROJECTION, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                StoredFetchState state = new StoredFetchState();
+                state.etag = cursor.getString(INDEX_ETAG);
+                state.lastModified = cursor.getString(INDEX_LAST_MODIFIED);
+                state.nextSyncAt = cursor.getLong(INDEX_NEXT_SYNC_AT);
+                states.put(cursor.getString(INDEX_STATE_SETTING), state);
+            }
+            cursor.close();
+        }
+        return states;
+    }
+
+    /**
+     * @return the delay asked for by a Retry-After header in its delta-seconds form, in
+     * milliseconds, or 0 if there is none.
+     */
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            // An HTTP date; not worth parsing for the few servers that send one.
+            return 0;
+        }
+    }
+
+    /**
+     * Turns each streamed forecast day into the ContentValues we hand to the provider.
+     */
+    static class ForecastRowCollector implements ForecastJsonParser.Callback {
+        final List<ContentValues> rows;
+        final Time dayTime;
+        final int julianStartDay;
+
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+
+        ForecastRowCollector(Time dayTime, int julianStartDay, List<ContentValues> rows) {
+            this.dayTime = dayTime;
+            this.julianStartDay = julianStartDay;
+            this.rows = rows;
+        }
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            cityLatitude = lat;
+            cityLongitude = lon;
+        }
+
+        @Override
+        public void onDay(ForecastJsonParser.Day day) {
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = dayTime.setJulianDay(julianStartDay + day.index);
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_DATE, dateTime);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, day.pressure);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, day.windDirection);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, day.high);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, day.low);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, day.description);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+            rows.add(weatherValues);
+        }
+    }
+
+    static class StoredLocation {
+        long id;
+        String setting;
+        String cityName;
+        double lat;
+        double lon;
+        boolean followed;
+    }
+
+    private static Callable<List<LocationResult>> single(final FetchTask task) {
+        return new Callable<List<LocationResult>>() {
+            @Override
+            public List<LocationResult> call() {
+                return Collections.singletonList(task.call());
+            }
+        };
+    }
+
+    static class StoredDay {
+        long hash;
+        long fetchedAt;
+    }
+
+    static class StoredFetchState {
+        String etag;
+        String lastModified;
+        long nextSyncAt;
+    }
+
+    static class LocationResult {
+        final String setting;
+        final ArrayList<ContentValues> rows = new ArrayList<ContentValues>(FORECAST_DAYS);
+        int status;
+        long fetchMillis;
+        int rowsChanged;
+        int attempts;
+        long retryAfterMillis;
+        String cityName;
+        double lat;
+        double lon;
+        String etag;
+        String lastModified;
+        // Another sync made the fetch, and writes its result
+        boolean joined;
+        // Read from the response cache rather than the network
+        boolean fromCache;
+        // When a cached response was fetched; 0 for one fetched just now
+        long fetchedAt;
+
+        LocationResult(String setting) {
+            this.setting = setting;
+        }
+
+        /**
+         * Copies the result of a fetch that somebody else made.  The rows are shared, and
+         * must not be modified through the copy.
+         */
+        LocationResult(LocationResult other) {
+            setting = other.setting;
+            rows.addAll(other.rows);
+            status = other.status;
+            attempts = other.attempts;
+            cityName = other.cityName;
+            lat = other.lat;
+            lon = other.lon;
+            etag = other.etag;
+            lastModified = other.lastModified;
+            fetchedAt = other.fetchedAt;
+            joined = true;
+        }
+    }
+}
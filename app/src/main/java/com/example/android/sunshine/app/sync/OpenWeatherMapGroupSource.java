@@ -0,0 +1,80 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * The OpenWeatherMap daily forecast API, plus a group endpoint that answers for several
+ * locations at once.
+ * <p/>
+ * OWM's own /group endpoint only serves current conditions, by city id, so this is meant for
+ * a forecast proxy, or a stand-in server, that serves daily forecasts the same way: one
+ * {@code q} per location, repeated because a setting may contain a comma itself, and every
+ * forecast in the reply tagged with the setting it answers (see
+ * {@link ForecastJsonParser#parseGroup}).
+ */
+public class OpenWeatherMapGroupSource extends OpenWeatherMapSource
+        implements BatchWeatherSource {
+
+    // The most ids OWM's /group takes in one request
+    static final int MAX_BATCH_SIZE = 20;
+
+    private final String mGroupUrl;
+    private final String mApiKey;
+
+    /**
+     * @param baseUrl  the daily forecast endpoint, for single locations.
+     * @param groupUrl the group endpoint.
+     */
+    public OpenWeatherMapGroupSource(String baseUrl, String groupUrl) {
+        this(baseUrl, groupUrl, BuildConfig.OPEN_WEATHER_MAP_API_KEY);
+    }
+
+    /**
+     * @param apiKey the APPID to send, or null to send none.
+     */
+    public OpenWeatherMapGroupSource(String baseUrl, String groupUrl, String apiKey) {
+        super(baseUrl, apiKey);
+        mGroupUrl = groupUrl;
+        mApiKey = apiKey;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
+    @Override
+    public Uri buildBatchForecastUri(List<String> locationSettings, int days) {
+        Uri.Builder builder = Uri.parse(mGroupUrl).buildUpon();
+        for (String locationSetting : locationSettings) {
+            builder.appendQueryParameter(QUERY_PARAM, locationSetting);
+        }
+        builder.appendQueryParameter(FORMAT_PARAM, "json")
+                .appendQueryParameter(UNITS_PARAM, "metric")
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(days));
+        if (!TextUtils.isEmpty(mApiKey)) {
+            builder.appendQueryParameter(APPID_PARAM, mApiKey);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int parseBatchForecast(Reader reader, ForecastJsonParser.GroupCallback callback)
+            throws IOException, JSONException {
+        return new ForecastJsonParser().parseGroup(reader, callback);
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " with groups at " + Uri.parse(mGroupUrl).getPath();
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The OpenWeatherMap daily forecast API.
+ */
+public class OpenWeatherMapSource implements WeatherSource {
+
+    static final String DEFAULT_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    static final String QUERY_PARAM = "q";
+    static final String FORMAT_PARAM = "mode";
+    static final String UNITS_PARAM = "units";
+    static final String DAYS_PARAM = "cnt";
+    static final String APPID_PARAM = "APPID";
+
+    private final String mBaseUrl;
+    private final String mApiKey;
+
+    public OpenWeatherMapSource() {
+        this(DEFAULT_BASE_URL);
+    }
+
+    /**
+     * @param baseUrl an OWM-compatible endpoint, such as a local stand-in server.
+     */
+    public OpenWeatherMapSource(String baseUrl) {
+        this(baseUrl, BuildConfig.OPEN_WEATHER_MAP_API_KEY);
+    }
+
+    /**
+     * @param apiKey the APPID to send, or null to send none.
+     */
+    public OpenWeatherMapSource(String baseUrl, String apiKey) {
+        mBaseUrl = baseUrl;
+        mApiKey = apiKey;
+    }
+
+    @Override
+    public String getHost() {
+        return Uri.parse(mBaseUrl).getEncodedAuthority();
+    }
+
+    @Override
+    public Uri buildForecastUri(String locationSetting, int days) {
+        Uri.Builder builder = Uri.parse(mBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationSetting)
+                .appendQueryParameter(FORMAT_PARAM, "json")
+                .appendQueryParameter(UNITS_PARAM, "metric")
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(days));
+        if (!TextUtils.isEmpty(mApiKey)) {
+            builder.appendQueryParameter(APPID_PARAM, mApiKey);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String getLocationSetting(Uri forecastUri) {
+        // Compare without the API key, which is also what the response cache does.
+        if (!ResponseCache.keyFor(forecastUri.toString())
+                .startsWith(ResponseCache.keyFor(mBaseUrl))) {
+            return null;
+        }
+        return forecastUri.getQueryParameter(QUERY_PARAM);
+    }
+
+    @Override
+    public int parseForecast(Reader reader, ForecastJsonParser.Callback callback)
+            throws IOException, JSONException {
+        return new ForecastJsonParser().parse(reader, callback);
+    }
+
+    @Override
+    public String toString() {
+        return "OpenWeatherMap at " + getHost();
+    }
+}
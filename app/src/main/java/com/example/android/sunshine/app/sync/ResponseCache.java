@@ -0,0 +1,619 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+
+import com.example.android.sunshine.app.SunLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A size-bounded disk cache of decoded forecast responses, so the database can be rebuilt
+ * after a process restart or a schema upgrade without going back to the network.
+ * <p/>
+ * Entries are keyed by request URL with the API key taken out, and evicted least recently
+ * used once the bodies outgrow {@link #MAX_SIZE}.  How long an entry may be served without
+ * asking the server comes from the response's {@code Cache-Control}; expired entries are kept
+ * for rebuilding and for their validators, until they are too old to hold a current day.
+ * <p/>
+ * Every change is appended to a journal before it becomes visible, in the spirit of
+ * DiskLruCache: a body is written to a temporary file, the entry it replaces is recorded as
+ * deleted, the body is renamed into place, and only then is it recorded with a PUT line.  On
+ * open the journal is replayed; a torn last line, bodies that never got their PUT and PUTs
+ * whose body is missing or the wrong size are all dropped, so a crash at any point leaves a
+ * consistent cache, never a new body under an old entry.  The journal is rewritten once most
+ * of its lines are redundant.
+ * <p/>
+ * Reads aren't journaled: recency is kept in memory and written out, as the order of the
+ * entries, when the journal is rewritten.
+ */
+class ResponseCache {
+    private static final String LOG_TAG = ResponseCache.class.getSimpleName();
+
+    static final long MAX_SIZE = 2 * 1024 * 1024;
+    // Nothing in a forecast this old is still today or later.
+    static final long MAX_AGE = LocationSyncEngine.FORECAST_DAYS * SyncScheduler.DAY_IN_MILLIS;
+
+    static final String DIRECTORY_NAME = "responses";
+    static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String TMP_SUFFIX = ".tmp";
+    static final String MAGIC = "sunshine.ResponseCache";
+    static final String VERSION = "1";
+
+    private static final String PUT = "PUT";
+    private static final String DEL = "DEL";
+
+    // Rewrite the journal once it has this many more lines than live entries
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final String API_KEY_PARAM = "APPID";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    private static ResponseCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    // In access order, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private final AtomicInteger mNextTmpId = new AtomicInteger();
+    private long mSize;
+    private int mRedundantOps;
+    private Writer mJournal;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    static synchronized ResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResponseCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME),
+                    MAX_SIZE);
+        }
+        return sInstance;
+    }
+
+    ResponseCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        open();
+    }
+
+    /**
+     * @return the cache key for {@code url}: the URL without its API key, so that changing
+     * the key doesn't throw the cache away.
+     */
+    static String keyFor(String url) {
+        int query = url.indexOf('?');
+        if (query < 0) {
+            return url;
+        }
+        StringBuilder key = new StringBuilder(url.length()).append(url, 0, query + 1);
+        boolean first = true;
+        for (String param : url.substring(query + 1).split("&")) {
+            int eq = param.indexOf('=');
+            String name = eq < 0 ? param : param.substring(0, eq);
+            if (param.isEmpty() || name.equalsIgnoreCase(API_KEY_PARAM)) {
+                continue;
+            }
+            if (!first) {
+                key.append('&');
+            }
+            key.append(param);
+            first = false;
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return how long a response may be served from the cache according to its
+     * Cache-Control header, in milliseconds; 0 if it must be revalidated every time, and -1
+     * if it must not be stored at all.
+     */
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return 0;
+        }
+        long maxAge = 0;
+        for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-store")) {
+                return -1;
+            }
+            if (directive.equals("no-cache")) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                try {
+                    maxAge = Math.max(0, Long.parseLong(directive.substring(8).trim())) * 1000;
+                } catch (NumberFormatException e) {
+                    maxAge = 0;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    /**
+     * @return the entry stored for {@code key}, fresh or not, or null.
+     */
+    synchronized Entry get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || System.currentTimeMillis() - entry.storedAt > MAX_AGE) {
+            if (entry != null) {
+                remove(key);
+            }
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry;
+    }
+
+    /**
+     * @return every entry, least recently used first.
+     */
+    synchronized List<Entry> getAll() {
+        return new ArrayList<Entry>(mEntries.values());
+    }
+
+    /**
+     * Opens the body of {@code entry}.  The caller must close the stream.
+     */
+    InputStream openBody(Entry entry) throws IOException {
+        return new FileInputStream(bodyFile(entry.key));
+    }
+
+    /**
+     * Starts writing a response for {@code key}.  The body is written through
+     * {@link Editor#tee}, and the entry only replaces the old one on {@link Editor#commit}.
+     *
+     * @return null if the response must not be stored.
+     */
+    Editor edit(String key, HttpTransport.Exchange exchange) {
+        long maxAge = parseMaxAge(exchange.getHeader(HEADER_CACHE_CONTROL));
+        if (maxAge < 0) {
+            return null;
+        }
+        return new Editor(key, maxAge,
+                exchange.getHeader(LocationSyncEngine.HEADER_ETAG),
+                exchange.getHeader(LocationSyncEngine.HEADER_LAST_MODIFIED));
+    }
+
+    /**
+     * Records that the server confirmed {@code entry} with a 304, which restarts its
+     * freshness lifetime.
+     */
+    synchronized void revalidated(Entry entry, HttpTransport.Exchange exchange) {
+        long maxAge = parseMaxAge(exchange.getHeader(HEADER_CACHE_CONTROL));
+        if (maxAge < 0) {
+            remove(entry.key);
+            return;
+        }
+        if (mEntries.get(entry.key) != entry) {
+            return;
+        }
+        String etag = exchange.getHeader(LocationSyncEngine.HEADER_ETAG);
+        String lastModified = exchange.getHeader(LocationSyncEngine.HEADER_LAST_MODIFIED);
+        long now = System.currentTimeMillis();
+        Entry updated = new Entry(entry.key, entry.size, entry.storedAt, now + maxAge,
+                etag != null ? etag : entry.etag,
+                lastModified != null ? lastModified : entry.lastModified);
+        mEntries.put(entry.key, updated);
+        appendJournal(updated.toJournalLine());
+        mRedundantOps++;
+        compactIfNeeded();
+    }
+
+    synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        mSize -= entry.size;
+        deleteIfExists(bodyFile(key));
+        appendJournal(DEL + '\t' + key);
+        mRedundantOps += 2;
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes every entry.
+     */
+    synchronized void clear() {
+        for (String key : new ArrayList<String>(mEntries.keySet())) {
+            remove(key);
+        }
+    }
+
+    synchronized long size() {
+        return mSize;
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResponseCache: " + mEntries.size() + " entries, " + mSize + "/" + mMaxSize
+                + " bytes, " + mHitCount + " hits, " + mMissCount + " misses, "
+                + mEvictionCount + " evictions";
+    }
+
+    private File bodyFile(String key) {
+        return new File(mDirectory, fileNameFor(key));
+    }
+
+    /**
+     * @return a file name for {@code key}: its 64-bit FNV-1a hash in hex.
+     */
+    static String fileNameFor(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return String.format(Locale.US, "%016x", hash);
+    }
+
+    private synchronized void commit(String key, File tmp, long size, long storedAt,
+                                     long expiresAt, String etag, String lastModified) {
+        // The old entry goes first, so a crash before the PUT can't leave its metadata on
+        // the new body.
+        remove(key);
+        File body = bodyFile(key);
+        if (!tmp.renameTo(body)) {
+            SunLog.w(LOG_TAG, "store_failed", "key", key);
+            deleteIfExists(tmp);
+            return;
+        }
+        Entry entry = new Entry(key, size, storedAt, expiresAt, etag, lastModified);
+        mEntries.put(key, entry);
+        mSize += size;
+        appendJournal(entry.toJournalLine());
+        trimToSize();
+        compactIfNeeded();
+    }
+
+    private void trimToSize() {
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while (mSize > mMaxSize && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            mSize -= entry.size;
+            deleteIfExists(bodyFile(entry.key));
+            appendJournal(DEL + '\t' + entry.key);
+            mRedundantOps += 2;
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Replays the journal, then throws away whatever the journal doesn't account for.
+     */
+    private void open() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            SunLog.e(LOG_TAG, "mkdirs_failed", "directory", mDirectory);
+        }
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+            } catch (IOException e) {
+                SunLog.w(LOG_TAG, "journal_unreadable", "journal", journal, e);
+                mEntries.clear();
+            }
+        }
+
+        // Drop entries whose body didn't survive, then files no entry claims: bodies written
+        // just before a crash and temporary files.
+        mSize = 0;
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (bodyFile(entry.key).length() != entry.size) {
+                entries.remove();
+            } else {
+                mSize += entry.size;
+            }
+        }
+        Set<String> known = new HashSet<String>(mEntries.size() + 1);
+        for (String key : mEntries.keySet()) {
+            known.add(fileNameFor(key));
+        }
+        known.add(JOURNAL_FILE);
+        String[] files = mDirectory.list();
+        if (files != null) {
+            for (String file : files) {
+                if (!known.contains(file)) {
+                    deleteIfExists(new File(mDirectory, file));
+                }
+            }
+        }
+        rewriteJournal();
+        trimToSize();
+    }
+
+    private void readJournal(File journal) throws IOException {
+        byte[] bytes = new byte[(int) journal.length()];
+        InputStream in = new FileInputStream(journal);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        // Only lines that got their newline were completely written, so whatever follows
+        // the last one is a torn write and is ignored.
+        String[] lines = new String(bytes, "UTF-8").split("\n", -1);
+        if (lines.length < 3 || !MAGIC.equals(lines[0]) || !VERSION.equals(lines[1])) {
+            throw new IOException("Unexpected journal header");
+        }
+        for (int i = 2; i < lines.length - 1; i++) {
+            if (!replay(lines[i])) {
+                throw new IOException("Corrupt journal line: " + lines[i]);
+            }
+        }
+    }
+
+    private boolean replay(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields[0].equals(PUT)) {
+            Entry entry = Entry.fromJournalLine(fields);
+            if (entry == null) {
+                return false;
+            }
+            mEntries.put(entry.key, entry);
+        } else if (fields[0].equals(DEL) && fields.length == 2) {
+            mEntries.remove(fields[1]);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void compactIfNeeded() {
+        if (mRedundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOps >= mEntries.size()) {
+            rewriteJournal();
+        }
+    }
+
+    /**
+     * Writes a journal holding just the live entries, in access order, and swaps it in.
+     */
+    private void rewriteJournal() {
+        closeJournal();
+        File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                writer.write(MAGIC + '\n' + VERSION + '\n');
+                for (Entry entry : mEntries.values()) {
+                    writer.write(entry.toJournalLine());
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+                throw new IOException("Couldn't replace the journal");
+            }
+            mJournal = new OutputStreamWriter(
+                    new FileOutputStream(new File(mDirectory, JOURNAL_FILE), true), "UTF-8");
+            mRedundantOps = 0;
+        } catch (IOException e) {
+            SunLog.e(LOG_TAG, "journal_rewrite_failed", "directory", mDirectory, e);
+            deleteIfExists(tmp);
+        }
+    }
+
+    private void appendJournal(String line) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.write(line);
+            mJournal.write('\n');
+            mJournal.flush();
+        } catch (IOException e) {
+            SunLog.e(LOG_TAG, "journal_append_failed", "directory", mDirectory, e);
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignored) {
+            }
+            mJournal = null;
+        }
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            SunLog.w(LOG_TAG, "delete_failed", "file", file);
+        }
+    }
+
+    /**
+     * What the cache knows about one stored response.  Immutable; a revalidation replaces it.
+     */
+    static class Entry {
+        final String key;
+        final long size;
+        final long storedAt;
+        final long expiresAt;
+        final String etag;
+        final String lastModified;
+
+        Entry(String key, long size, long storedAt, long expiresAt, String etag,
+              String lastModified) {
+            this.key = key;
+            this.size = size;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return true if the entry may be used without asking the server.
+         */
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        String toJournalLine() {
+            return PUT + '\t' + key + '\t' + size + '\t' + storedAt + '\t' + expiresAt + '\t'
+                    + (etag != null ? etag : "") + '\t'
+                    + (lastModified != null ? lastModified : "");
+        }
+
+        static Entry fromJournalLine(String[] fields) {
+            if (fields.length != 7) {
+                return null;
+            }
+            try {
+                return new Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4]), fields[5].isEmpty() ? null : fields[5],
+                        fields[6].isEmpty() ? null : fields[6]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Writes one response into the cache.  Not thread safe; each fetch uses its own.
+     */
+    class Editor {
+        private final String mKey;
+        private final long mMaxAge;
+        private final String mEtag;
+        private final String mLastModified;
+        private final File mTmp;
+        private OutputStream mOut;
+        private long mSize;
+        private boolean mFailed;
+
+        private Editor(String key, long maxAge, String etag, String lastModified) {
+            mKey = key;
+            mMaxAge = maxAge;
+            mEtag = etag;
+            mLastModified = lastModified;
+            mTmp = new File(mDirectory,
+                    fileNameFor(key) + "." + mNextTmpId.incrementAndGet() + TMP_SUFFIX);
+        }
+
+        /**
+         * @return a stream that copies everything read from {@code body} into the cache.  A
+         * failure to write the copy never fails the read; the entry is just not stored.
+         */
+        InputStream tee(InputStream body) {
+            try {
+                mOut = new FileOutputStream(mTmp);
+            } catch (IOException e) {
+                mFailed = true;
+            }
+            return new FilterInputStream(body) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        copy(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int n = super.read(buffer, offset, count);
+                    if (n > 0) {
+                        copy(buffer, offset, n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        private void copy(byte[] buffer, int offset, int count) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+                mSize += count;
+            } catch (IOException e) {
+                mFailed = true;
+            }
+        }
+
+        /**
+         * Stores the body read so far.  Only call this once the whole body was read and
+         * parsed; anything else is an {@link #abort}.
+         */
+        void commit() {
+            if (!closeOutput() || mFailed) {
+                abort();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            ResponseCache.this.commit(mKey, mTmp, mSize, now, now + mMaxAge, mEtag,
+                    mLastModified);
+        }
+
+        void abort() {
+            closeOutput();
+            deleteIfExists(mTmp);
+        }
+
+        private boolean closeOutput() {
+            if (mOut == null) {
+                return false;
+            }
+            try {
+                mOut.close();
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                mOut = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Random;
+
+/**
+ * How often and how patiently a forecast fetch is retried.
+ * <p/>
+ * Delays grow exponentially with "full jitter": the wait before retry {@code n} is drawn
+ * uniformly from {@code [0, min(maxDelay, baseDelay * 2^(n-1))]}, so workers that failed
+ * together don't all come back at the same moment.
+ */
+class RetryPolicy {
+
+    static final RetryPolicy DEFAULT = new RetryPolicy(3, 1000, 16000);
+
+    // Attempts per fetch, including the first one
+    final int maxAttempts;
+    final long baseDelayMillis;
+    final long maxDelayMillis;
+
+    // Random is thread safe, and the fetch workers share the policy.
+    private final Random mRandom = new Random();
+
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1.
+     * @return how long to wait before the next attempt, in milliseconds.
+     */
+    long delayBeforeRetry(int attempt) {
+        long ceiling = baseDelayMillis << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelayMillis) {
+            ceiling = maxDelayMillis;
+        }
+        return (long) (mRandom.nextDouble() * ceiling);
+    }
+
+    /**
+     * @return true for responses that say "try again later" rather than "this request is
+     * wrong": server errors and rate limiting.
+     */
+    static boolean isRetryableStatus(int responseCode) {
+        return responseCode >= 500 || responseCode == 429;
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps bursts of {@code syncImmediately} calls from turning into bursts of requests.
+ * <p/>
+ * Three things happen here, process-wide:
+ * <ul>
+ * <li>An immediate sync for a location that already has one pending is merged into it.</li>
+ * <li>Once the user picks another location, pending syncs and in-flight fetches for the old
+ * one are dropped.</li>
+ * <li>A fetch for a location that is already being fetched waits for that fetch and shares
+ * its result instead of going to the network again (single flight).</li>
+ * </ul>
+ * The counters show how many requests this saved.
+ */
+public class SyncCoalescer {
+    // A pending request the framework hasn't started within this time is assumed lost.
+    static final long PENDING_TIMEOUT = 2 * SyncScheduler.MINUTE_IN_MILLIS;
+
+    private static final SyncCoalescer sInstance = new SyncCoalescer();
+
+    public static SyncCoalescer getInstance() {
+        return sInstance;
+    }
+
+    // The location the user asked for last
+    private String mWantedLocation;
+    // Requested but not yet started immediate syncs, location -> elapsed realtime of request
+    private final Map<String, Long> mPending = new HashMap<String, Long>();
+    private final Map<String, Flight> mInFlight = new HashMap<String, Flight>();
+
+    private final AtomicInteger mRequestsMerged = new AtomicInteger();
+    private final AtomicInteger mSyncsSuperseded = new AtomicInteger();
+    private final AtomicInteger mFetchesJoined = new AtomicInteger();
+    private final AtomicInteger mFetchesCancelled = new AtomicInteger();
+
+    SyncCoalescer() {
+    }
+
+    /**
+     * Called for every immediate sync request.
+     *
+     * @return true if a sync should be requested from the framework, false if one for this
+     * location is already pending.
+     */
+    public synchronized boolean offer(String location) {
+        if (!location.equals(mWantedLocation)) {
+            mWantedLocation = location;
+            cancelSupersededFlights();
+        }
+        long now = SystemClock.elapsedRealtime();
+        Long requestedAt = mPending.get(location);
+        if (requestedAt != null && now - requestedAt < PENDING_TIMEOUT) {
+            mRequestsMerged.incrementAndGet();
+            return false;
+        }
+        mPending.put(location, now);
+        return true;
+    }
+
+    /**
+     * Called when an immediate sync for {@code location} starts.
+     *
+     * @return false if the user has moved on to another location since it was requested, in
+     * which case the sync should do nothing.
+     */
+    public synchronized boolean onSyncStarted(String location) {
+        mPending.remove(location);
+        if (mWantedLocation != null && !mWantedLocation.equals(location)) {
+            mSyncsSuperseded.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts a fetch for {@code location}, or joins the one already in flight.
+     *
+     * @param cancellable whether the fetch may be dropped when the user picks another
+     *                    location, i.e. {@code location} is only synced because it is the
+     *                    preferred one.
+     * @return a ticket that says whether the caller owns the flight, and so has to make the
+     * fetch and {@link #land} it, or joined it.
+     */
+    synchronized Ticket board(String location, boolean cancellable) {
+        Flight flight = mInFlight.get(location);
+        if (flight != null) {
+            mFetchesJoined.incrementAndGet();
+            // A location somebody else wants too must survive a location change.
+            flight.mCancellable &= cancellable;
+            return new Ticket(flight, false);
+        }
+        flight = new Flight(location, cancellable);
+        mInFlight.put(location, flight);
+        return new Ticket(flight, true);
+    }
+
+    /**
+     * Hands the owner's result to the callers that joined its flight.
+     */
+    synchronized void land(Ticket ticket, LocationSyncEngine.LocationResult result) {
+        if (!ticket.owner) {
+            throw new IllegalArgumentException("Only the owner lands a flight");
+        }
+        Flight flight = ticket.flight;
+        if (mInFlight.get(flight.location) == flight) {
+            mInFlight.remove(flight.location);
+        }
+        flight.mResult = result;
+        flight.mDone.countDown();
+    }
+
+    private void cancelSupersededFlights() {
+        Iterator<Flight> flights = mInFlight.values().iterator();
+        while (flights.hasNext()) {
+            Flight flight = flights.next();
+            if (flight.mCancellable && !flight.location.equals(mWantedLocation)) {
+                flights.remove();
+                flight.cancel();
+                mFetchesCancelled.incrementAndGet();
+            }
+        }
+        Iterator<String> pending = mPending.keySet().iterator();
+        while (pending.hasNext()) {
+            if (!pending.next().equals(mWantedLocation)) {
+                pending.remove();
+            }
+        }
+    }
+
+    /**
+     * @return immediate sync requests merged into one that was already pending.
+     */
+    public int getRequestsMerged() {
+        return mRequestsMerged.get();
+    }
+
+    /**
+     * @return immediate syncs that did nothing because their location was no longer wanted.
+     */
+    public int getSyncsSuperseded() {
+        return mSyncsSuperseded.get();
+    }
+
+    /**
+     * @return fetches that shared the result of one already in flight.
+     */
+    public int getFetchesJoined() {
+        return mFetchesJoined.get();
+    }
+
+    /**
+     * @return in-flight fetches aborted because the user picked another location.
+     */
+    public int getFetchesCancelled() {
+        return mFetchesCancelled.get();
+    }
+
+    /**
+     * @return network requests that never had to be made.
+     */
+    public int getRequestsAvoided() {
+        return getRequestsMerged() + getSyncsSuperseded() + getFetchesJoined();
+    }
+
+    /**
+     * Forgets all pending requests and flights and zeroes the counters.  Only used by tests.
+     */
+    synchronized void reset() {
+        mWantedLocation = null;
+        mPending.clear();
+        mInFlight.clear();
+        mRequestsMerged.set(0);
+        mSyncsSuperseded.set(0);
+        mFetchesJoined.set(0);
+        mFetchesCancelled.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "SyncCoalescer: " + getRequestsMerged() + " merged, " + getSyncsSuperseded()
+                + " superseded, " + getFetchesJoined() + " joined, " + getFetchesCancelled()
+                + " cancelled";
+    }
+
+    /**
+     * A caller's place on a flight, from {@link #board}.
+     */
+    static final class Ticket {
+        final Flight flight;
+        // True for the caller that has to make the fetch, false for callers that joined it
+        final boolean owner;
+
+        private Ticket(Flight flight, boolean owner) {
+            this.flight = flight;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * One network fetch of one location, possibly shared by several callers.
+     */
+    static class Flight {
+        final String location;
+        // Aborts the request on the wire when the flight is cancelled
+        final HttpTransport.AbortHandle abortHandle = new HttpTransport.AbortHandle();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private boolean mCancellable;
+        private LocationSyncEngine.LocationResult mResult;
+
+        Flight(String location, boolean cancellable) {
+            this.location = location;
+            mCancellable = cancellable;
+        }
+
+        boolean isCancelled() {
+            return abortHandle.isAborted();
+        }
+
+        void cancel() {
+            abortHandle.abort();
+        }
+
+        /**
+         * @return the owner's result once it lands.
+         */
+        LocationSyncEngine.LocationResult await() throws InterruptedException {
+            mDone.await();
+            return mResult;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with power-of-two buckets.
+ * <p/>
+ * Recording is a handful of atomic adds and allocates nothing, so it is cheap enough for
+ * every request of every sync.  Percentiles are only as precise as a bucket, i.e. within a
+ * factor of two, which is plenty for telling a 20ms phase from a 2s one.
+ */
+public class SyncHistogram {
+
+    // Bucket 0 holds 0, bucket i holds [2^(i-1), 2^i)
+    static final int BUCKET_COUNT = 64;
+
+    private final String mUnit;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param unit what the values are, for {@link #toString()}, e.g. "us" or "B".
+     */
+    public SyncHistogram(String unit) {
+        mUnit = unit;
+    }
+
+    static int bucketFor(long value) {
+        return value <= 0 ? 0 : BUCKET_COUNT - Long.numberOfLeadingZeros(value);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(Math.min(bucketFor(value), BUCKET_COUNT - 1));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * @param fraction e.g. 0.9 for the 90th percentile.
+     * @return an upper bound for that percentile: the top of the bucket it falls in, but no
+     * more than the largest value recorded.  0 if nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                long top = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(top, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * @return the count of bucket {@code index}, for export.
+     */
+    public long getBucketCount(int index) {
+        return mBuckets.get(index);
+    }
+
+    /**
+     * @return the smallest value bucket {@code index} holds.
+     */
+    public static long getBucketFloor(int index) {
+        return index == 0 ? 0 : 1L << (index - 1);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d mean=%.0f%s p50<=%d%s p90<=%d%s p99<=%d%s max=%d%s",
+                getCount(), getMean(), mUnit, getPercentile(0.5), mUnit, getPercentile(0.9),
+                mUnit, getPercentile(0.99), mUnit, getMax(), mUnit);
+    }
+}
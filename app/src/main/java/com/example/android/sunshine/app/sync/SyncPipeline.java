@@ -0,0 +1,216 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import com.example.android.sunshine.app.SunLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a sync as two stages joined by a bounded queue.
+ * <p/>
+ * The producing stage runs tasks on a fixed pool of workers; the consuming stage runs on the
+ * calling thread and takes finished results off the queue in batches as soon as they are
+ * there.  So writing the results of one batch overlaps with fetching the next, and when the
+ * consumer falls behind, workers block on the full queue instead of piling up results in
+ * memory.
+ * <p/>
+ * A task that throws is logged and counted in {@link Stats#failed}, and the sink never sees
+ * it; the other tasks' results are consumed as usual.
+ *
+ * @param <T> what a task produces.
+ */
+class SyncPipeline<T> {
+    private static final String LOG_TAG = SyncPipeline.class.getSimpleName();
+
+    /**
+     * The consuming stage.
+     */
+    interface Sink<T> {
+        void accept(List<T> batch);
+    }
+
+    private final int mWorkers;
+    private final int mQueueCapacity;
+    private final int mMaxBatch;
+
+    private final Stats mStats = new Stats();
+
+    /**
+     * @param workers       threads running the producing stage.
+     * @param queueCapacity results that may wait for the consumer before workers block.
+     * @param maxBatch      most results handed to the consumer at once.
+     */
+    SyncPipeline(int workers, int queueCapacity, int maxBatch) {
+        mWorkers = workers;
+        mQueueCapacity = queueCapacity;
+        mMaxBatch = maxBatch;
+    }
+
+    /**
+     * Runs every task and feeds every result to {@code sink}.  Returns once the sink has seen
+     * them all, except those of tasks that threw.
+     *
+     * @throws InterruptedException if the calling thread is interrupted.  Workers are
+     *                              interrupted as well, and results not yet consumed are lost.
+     */
+    void run(List<? extends Callable<T>> tasks, Sink<T> sink) throws InterruptedException {
+        final BlockingQueue<Outcome<T>> queue =
+                new ArrayBlockingQueue<Outcome<T>>(mQueueCapacity);
+        long start = SystemClock.elapsedRealtime();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(mWorkers, tasks.size())));
+        try {
+            for (final Callable<T> task : tasks) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        produce(task, queue);
+                    }
+                });
+            }
+            executor.shutdown();
+
+            int consumed = 0;
+            List<Outcome<T>> outcomes = new ArrayList<Outcome<T>>(mMaxBatch);
+            List<T> batch = new ArrayList<T>(mMaxBatch);
+            while (consumed < tasks.size()) {
+                outcomes.add(queue.take());
+                queue.drainTo(outcomes, mMaxBatch - 1);
+                for (Outcome<T> outcome : outcomes) {
+                    if (outcome.error != null) {
+                        // Tasks are expected to handle their own errors, so this is a bug.
+                        // It only costs that task's result, though, not everyone else's.
+                        mStats.failed++;
+                        SunLog.e(LOG_TAG, "task_failed", "failed", mStats.failed,
+                                outcome.error);
+                        continue;
+                    }
+                    batch.add(outcome.value);
+                }
+                consumed += outcomes.size();
+                outcomes.clear();
+                if (batch.isEmpty()) {
+                    continue;
+                }
+
+                long consumeStart = SystemClock.elapsedRealtime();
+                sink.accept(batch);
+                mStats.consumerBusyMillis += SystemClock.elapsedRealtime() - consumeStart;
+                mStats.consumed += batch.size();
+                mStats.batches++;
+                batch.clear();
+            }
+        } finally {
+            executor.shutdownNow();
+            mStats.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private void produce(Callable<T> task, BlockingQueue<Outcome<T>> queue) {
+        long start = SystemClock.elapsedRealtime();
+        Outcome<T> outcome = new Outcome<T>();
+        try {
+            outcome.value = task.call();
+        } catch (Exception e) {
+            outcome.error = e;
+        }
+        mStats.producerBusyMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+        mStats.produced.incrementAndGet();
+
+        long putStart = SystemClock.elapsedRealtime();
+        try {
+            queue.put(outcome);
+        } catch (InterruptedException e) {
+            // The consumer gave up; nobody is waiting for this result.
+            Thread.currentThread().interrupt();
+            return;
+        }
+        mStats.producerBlockedMillis.addAndGet(SystemClock.elapsedRealtime() - putStart);
+        mStats.sampleDepth(queue.size());
+    }
+
+    Stats getStats() {
+        return mStats;
+    }
+
+    private static class Outcome<T> {
+        T value;
+        Exception error;
+    }
+
+    /**
+     * Throughput of each stage and how full the queue between them got.
+     */
+    static class Stats {
+        long elapsedMillis;
+        final AtomicInteger produced = new AtomicInteger();
+        // Summed over workers, so it can exceed elapsedMillis
+        final AtomicLong producerBusyMillis = new AtomicLong();
+        // Time workers spent waiting for room in the queue, i.e. backpressure
+        final AtomicLong producerBlockedMillis = new AtomicLong();
+        int consumed;
+        // Tasks that threw instead of producing a result
+        int failed;
+        int batches;
+        long consumerBusyMillis;
+
+        private int mMaxDepth;
+        private long mDepthSum;
+        private int mDepthSamples;
+
+        private synchronized void sampleDepth(int depth) {
+            mMaxDepth = Math.max(mMaxDepth, depth);
+            mDepthSum += depth;
+            mDepthSamples++;
+        }
+
+        synchronized int getMaxQueueDepth() {
+            return mMaxDepth;
+        }
+
+        /**
+         * @return queue depth averaged over the moments a result was added.
+         */
+        synchronized double getMeanQueueDepth() {
+            return mDepthSamples == 0 ? 0 : (double) mDepthSum / mDepthSamples;
+        }
+
+        /**
+         * @return results produced per second of wall time.
+         */
+        double getProducerThroughput() {
+            return perSecond(produced.get(), elapsedMillis);
+        }
+
+        /**
+         * @return results consumed per second the consumer was busy.
+         */
+        double getConsumerThroughput() {
+            return perSecond(consumed, consumerBusyMillis);
+        }
+
+        private static double perSecond(int items, long millis) {
+            return millis <= 0 ? 0 : items * 1000.0 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "fetch: %d in %dms busy, %.1f/s, %dms blocked; queue: max %d, mean %.1f; "
+                            + "write: %d in %d batches, %dms busy, %.1f/s; %d failed",
+                    produced.get(), producerBusyMillis.get(), getProducerThroughput(),
+                    producerBlockedMillis.get(), getMaxQueueDepth(), getMeanQueueDepth(),
+                    consumed, batches, consumerBusyMillis, getConsumerThroughput(), failed);
+        }
+    }
+}
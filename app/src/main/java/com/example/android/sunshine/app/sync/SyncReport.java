@@ -0,0 +1,217 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What happened during one sync, location by location.
+ * <p/>
+ * The framework's SyncResult only has aggregate counters, so the per-location outcome and
+ * timing are kept here.  The report of the most recent sync is available from
+ * {@link #getLastReport()}.
+ */
+public class SyncReport {
+
+    // Outcome of a single location
+    public static final int STATUS_UPDATED      = 0;
+    public static final int STATUS_NOT_MODIFIED = 1;
+    public static final int STATUS_IO_ERROR     = 2;
+    public static final int STATUS_PARSE_ERROR  = 3;
+    public static final int STATUS_AUTH_ERROR   = 4;
+    // Not fetched because the host's circuit breaker is open
+    public static final int STATUS_CIRCUIT_OPEN = 5;
+    // Dropped because the user picked another location while it was being fetched
+    public static final int STATUS_CANCELLED    = 6;
+    // Fetched, but the batch it was written in failed
+    public static final int STATUS_DB_ERROR     = 7;
+
+    private static volatile SyncReport sLastReport;
+
+    public static class LocationReport {
+        public final String locationSetting;
+        public final int status;
+        // Time spent fetching and decoding this location, in milliseconds
+        public final long fetchMillis;
+        // Number of forecast rows decoded for this location
+        public final int rows;
+        // Number of those rows that differed from what was stored
+        public final int rowsChanged;
+        // Requests made, counting retries
+        public final int attempts;
+
+        LocationReport(String locationSetting, int status, long fetchMillis, int rows,
+                       int rowsChanged, int attempts) {
+            this.locationSetting = locationSetting;
+            this.status = status;
+            this.fetchMillis = fetchMillis;
+            this.rows = rows;
+            this.rowsChanged = rowsChanged;
+            this.attempts = attempts;
+        }
+
+        public boolean isSuccess() {
+            return status == STATUS_UPDATED || status == STATUS_NOT_MODIFIED;
+        }
+
+        @Override
+        public String toString() {
+            return locationSetting + ": " + statusName(status) + " in " + fetchMillis + "ms, "
+                    + rows + " rows, " + rowsChanged + " changed, " + attempts + " attempts";
+        }
+    }
+
+    private final List<LocationReport> mLocations = new ArrayList<LocationReport>();
+    long elapsedMillis;
+    long writeMillis;
+    int rowsWritten;
+    int rowsUnchanged;
+    int locationsNotDue;
+    int responsesFromCache;
+    int writesFailed;
+    SyncPipeline.Stats pipelineStats;
+    SyncTrace trace;
+
+    void add(LocationReport report) {
+        mLocations.add(report);
+    }
+
+    public List<LocationReport> getLocations() {
+        return Collections.unmodifiableList(mLocations);
+    }
+
+    /**
+     * @return the report for {@code locationSetting}, or null if it wasn't part of the sync.
+     */
+    public LocationReport getLocation(String locationSetting) {
+        for (LocationReport report : mLocations) {
+            if (report.locationSetting.equals(locationSetting)) {
+                return report;
+            }
+        }
+        return null;
+    }
+
+    public int getSuccessCount() {
+        int count = 0;
+        for (LocationReport report : mLocations) {
+            if (report.isSuccess()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return wall time of the whole sync, in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return time spent writing to the provider, in milliseconds.
+     */
+    public long getWriteMillis() {
+        return writeMillis;
+    }
+
+    public int getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * @return rows that came back identical to what was stored, and so were not written.
+     */
+    public int getRowsUnchanged() {
+        return rowsUnchanged;
+    }
+
+    /**
+     * @return locations left alone because the scheduler didn't consider them due.
+     */
+    public int getLocationsNotDue() {
+        return locationsNotDue;
+    }
+
+    /**
+     * @return locations whose forecast was read from the response cache instead of the
+     * network.
+     */
+    public int getResponsesFromCache() {
+        return responsesFromCache;
+    }
+
+    /**
+     * @return batches of results the provider failed to store.
+     */
+    public int getWritesFailed() {
+        return writesFailed;
+    }
+
+    /**
+     * @return per-stage throughput and queue depth of the fetch/write pipeline, or null if
+     * the sync didn't fetch anything.
+     */
+    SyncPipeline.Stats getPipelineStats() {
+        return pipelineStats;
+    }
+
+    /**
+     * @return the phase timings this sync recorded into.  The trace may be shared with work
+     * done around the sync, such as the notification.
+     */
+    public SyncTrace getTrace() {
+        return trace;
+    }
+
+    static String statusName(int status) {
+        switch (status) {
+            case STATUS_UPDATED:
+                return "updated";
+            case STATUS_NOT_MODIFIED:
+                return "not modified";
+            case STATUS_IO_ERROR:
+                return "I/O error";
+            case STATUS_PARSE_ERROR:
+                return "parse error";
+            case STATUS_AUTH_ERROR:
+                return "auth error";
+            case STATUS_CIRCUIT_OPEN:
+                return "circuit open";
+            case STATUS_CANCELLED:
+                return "cancelled";
+            case STATUS_DB_ERROR:
+                return "database error";
+            default:
+                return "unknown";
+        }
+    }
+
+    public static SyncReport getLastReport() {
+        return sLastReport;
+    }
+
+    static void setLastReport(SyncReport report) {
+        sLastReport = report;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Synced ").append(getSuccessCount()).append('/').append(mLocations.size())
+          .append(" locations in ").append(elapsedMillis).append("ms (")
+          .append(rowsWritten).append(" rows written in ").append(writeMillis).append("ms, ")
+          .append(rowsUnchanged).append(" unchanged), ")
+          .append(locationsNotDue).append(" not due, ")
+          .append(responsesFromCache).append(" from cache, ")
+          .append(writesFailed).append(" writes failed");
+        if (pipelineStats != null) {
+            sb.append("\n  ").append(pipelineStats);
+        }
+        for (LocationReport report : mLocations) {
+            sb.append("\n  ").append(report);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.Calendar;
+
+/**
+ * Decides when each location should be fetched next.
+ * <p/>
+ * The framework wakes the sync adapter every {@link #TICK_INTERVAL} seconds, and each wake-up
+ * only fetches the locations that are due.  A location's next due time starts from a three
+ * hour base interval and is then stretched or shortened:
+ * <ul>
+ * <li>by how much of its forecast changed in the last fetch,</li>
+ * <li>by how long ago the user last opened the app,</li>
+ * <li>when the active network is metered,</li>
+ * <li>and overnight, when nobody is looking.</li>
+ * </ul>
+ */
+public class SyncScheduler {
+
+    static final long MINUTE_IN_MILLIS = 60 * 1000L;
+    static final long HOUR_IN_MILLIS = 60 * MINUTE_IN_MILLIS;
+    static final long DAY_IN_MILLIS = 24 * HOUR_IN_MILLIS;
+
+    // How often the framework wakes the adapter, in seconds.  Cheap when nothing is due: the
+    // adapter only reads the fetch_state table.
+    public static final int TICK_INTERVAL = 60 * 60;
+    public static final int TICK_FLEXTIME = TICK_INTERVAL / 3;
+
+    // The old fixed schedule, and where every adaptive interval starts from.
+    static final long BASE_INTERVAL = 3 * HOUR_IN_MILLIS;
+    static final long MIN_INTERVAL = HOUR_IN_MILLIS;
+    static final long MAX_INTERVAL = DAY_IN_MILLIS;
+
+    // A location due this soon is fetched on the current tick rather than waiting a whole
+    // tick for it.
+    static final long DUE_SLACK = TICK_FLEXTIME * 1000L;
+
+    // Opened this recently, the user is likely to look again soon.
+    static final long ACTIVE_WINDOW = 6 * HOUR_IN_MILLIS;
+
+    // Local hours [NIGHT_START, NIGHT_END) count as night.
+    static final int NIGHT_START = 0;
+    static final int NIGHT_END = 6;
+
+    /**
+     * What the scheduler knows about the device and the user at the time of a sync.
+     */
+    public static class Conditions {
+        final long now;
+        final long lastAppOpen;
+        final boolean metered;
+        final int hourOfDay;
+
+        public Conditions(long now, long lastAppOpen, boolean metered, int hourOfDay) {
+            this.now = now;
+            this.lastAppOpen = lastAppOpen;
+            this.metered = metered;
+            this.hourOfDay = hourOfDay;
+        }
+    }
+
+    /**
+     * @param changeRatio fraction of the forecast days that changed in the fetch that just
+     *                    finished, 0 for a 304.
+     * @return how long to wait before fetching the location again, in milliseconds.
+     */
+    public long interval(Conditions conditions, double changeRatio) {
+        double interval = BASE_INTERVAL;
+        long sinceOpen = conditions.now - conditions.lastAppOpen;
+
+        // A forecast that keeps moving is worth checking more often.  One that came back
+        // identical probably won't change on the next fetch either, unless the user is
+        // looking at it right now.
+        if (changeRatio >= 0.5) {
+            interval *= 0.5;
+        } else if (changeRatio <= 0 && sinceOpen > ACTIVE_WINDOW) {
+            interval *= 2;
+        }
+
+        // Nobody benefits from freshness if the app isn't being opened.
+        if (sinceOpen > 7 * DAY_IN_MILLIS) {
+            interval *= 4;
+        } else if (sinceOpen > DAY_IN_MILLIS) {
+            interval *= 2;
+        }
+
+        if (conditions.metered) {
+            interval *= 1.5;
+        }
+
+        // Sleep through the night, but don't carry the stretch into the morning.
+        if (conditions.hourOfDay >= NIGHT_START && conditions.hourOfDay < NIGHT_END) {
+            long untilMorning = (NIGHT_END - conditions.hourOfDay) * HOUR_IN_MILLIS;
+            interval = Math.min(interval * 2, Math.max(interval, untilMorning));
+        }
+
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, (long) interval));
+    }
+
+    public long nextSyncAt(Conditions conditions, double changeRatio) {
+        return conditions.now + interval(conditions, changeRatio);
+    }
+
+    /**
+     * @param nextSyncAt the stored due time, or 0 when the location was never fetched.
+     */
+    public boolean isDue(Conditions conditions, long nextSyncAt) {
+        return nextSyncAt - DUE_SLACK <= conditions.now;
+    }
+
+    public static Conditions captureConditions(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return new Conditions(System.currentTimeMillis(),
+                prefs.getLong(context.getString(R.string.pref_last_app_open), 0),
+                ConnectivityManagerCompat.isActiveNetworkMetered(cm),
+                Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
+    }
+
+    /**
+     * Remembers that the user just looked at the forecast.
+     */
+    public static void recordAppOpened(Context context) {
+        String lastAppOpenKey = context.getString(R.string.pref_last_app_open);
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(lastAppOpenKey, System.currentTimeMillis())
+                .apply();
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time of one sync went, phase by phase, and how many bytes it moved.
+ * <p/>
+ * Fetch workers and the sync thread record into the same trace, so every counter is atomic.
+ * Each recorded duration also goes into a process-wide {@link SyncHistogram} for its phase,
+ * so the distribution over many syncs is available without keeping every sample.  Finished
+ * traces are persisted by {@link SyncTraceStore}.
+ */
+public class SyncTrace {
+
+    // Resolving the forecast host; 0 when a proxy resolves it or the lookup fails
+    public static final int PHASE_DNS = 0;
+    // Opening the connection, TLS included; close to nothing when one is reused
+    public static final int PHASE_CONNECT = 1;
+    // From sending the request to the status line
+    public static final int PHASE_FIRST_BYTE = 2;
+    // Waiting on the network for body bytes
+    public static final int PHASE_DOWNLOAD = 3;
+    // Decoding the body, minus the time spent waiting for it
+    public static final int PHASE_PARSE = 4;
+    // Provider writes: locations, weather rows, fetch state and the purge, along with the
+    // content change notifications the provider sends as each batch commits
+    public static final int PHASE_DB_WRITE = 5;
+    // The user notification
+    public static final int PHASE_NOTIFY = 6;
+    // The whole sync
+    public static final int PHASE_SYNC = 7;
+    static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "dns", "connect", "first_byte", "download", "parse", "db_write", "notify", "sync"
+    };
+
+    private static final SyncHistogram[] sPhaseHistograms = new SyncHistogram[PHASE_COUNT];
+    private static final SyncHistogram sWireBytesHistogram = new SyncHistogram("B");
+
+    static {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sPhaseHistograms[i] = new SyncHistogram("us");
+        }
+    }
+
+    final long startedAt;
+    final boolean manual;
+    private final long mStartNanos;
+    private final AtomicLongArray mPhaseNanos = new AtomicLongArray(PHASE_COUNT);
+    private final AtomicLongArray mPhaseCounts = new AtomicLongArray(PHASE_COUNT);
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mWireBytes = new AtomicLong();
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+    int locations;
+    int successes;
+    int rowsWritten;
+
+    /**
+     * @param manual whether the user asked for this sync.
+     */
+    public SyncTrace(boolean manual) {
+        startedAt = System.currentTimeMillis();
+        this.manual = manual;
+        mStartNanos = now();
+    }
+
+    /**
+     * Restores a persisted trace; see {@link SyncTraceStore}.
+     */
+    SyncTrace(long startedAt, boolean manual) {
+        this.startedAt = startedAt;
+        this.manual = manual;
+        mStartNanos = 0;
+    }
+
+    /**
+     * @return a timestamp to pass to {@link #record(int, long)} later.
+     */
+    static long now() {
+        // SystemClock.elapsedRealtimeNanos() needs API 17.
+        return System.nanoTime();
+    }
+
+    public static String phaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Records that {@code phase} ran from {@code startNanos}, as returned by {@link #now()},
+     * until now.
+     */
+    void record(int phase, long startNanos) {
+        recordNanos(phase, now() - startNanos);
+    }
+
+    void recordNanos(int phase, long nanos) {
+        mPhaseNanos.addAndGet(phase, nanos);
+        mPhaseCounts.incrementAndGet(phase);
+        sPhaseHistograms[phase].record(nanos / 1000);
+    }
+
+    /**
+     * Records the network phases and byte counts of a closed exchange.
+     */
+    void recordExchange(HttpTransport.Exchange exchange) {
+        mRequests.incrementAndGet();
+        recordNanos(PHASE_DNS, exchange.dnsNanos);
+        recordNanos(PHASE_CONNECT, exchange.connectNanos);
+        recordNanos(PHASE_FIRST_BYTE, exchange.firstByteNanos);
+        if (exchange.wireBytes > 0) {
+            recordNanos(PHASE_DOWNLOAD, exchange.readNanos);
+            mWireBytes.addAndGet(exchange.wireBytes);
+            mDecodedBytes.addAndGet(exchange.decodedBytes);
+            sWireBytesHistogram.record(exchange.wireBytes);
+        }
+    }
+
+    /**
+     * Ends the sync phase and takes the outcome from {@code report}.
+     */
+    void finish(SyncReport report) {
+        record(PHASE_SYNC, mStartNanos);
+        if (report != null) {
+            locations = report.getLocations().size();
+            successes = report.getSuccessCount();
+            rowsWritten = report.getRowsWritten();
+        }
+    }
+
+    /**
+     * @return total time spent in {@code phase}, summed over every request or batch.  Fetches
+     * run in parallel, so network phases can add up to more than the sync took.
+     */
+    public long getPhaseMillis(int phase) {
+        return mPhaseNanos.get(phase) / 1000000;
+    }
+
+    public long getPhaseCount(int phase) {
+        return mPhaseCounts.get(phase);
+    }
+
+    void setPhase(int phase, long millis, long count) {
+        mPhaseNanos.set(phase, millis * 1000000);
+        mPhaseCounts.set(phase, count);
+    }
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    public long getWireBytes() {
+        return mWireBytes.get();
+    }
+
+    public long getDecodedBytes() {
+        return mDecodedBytes.get();
+    }
+
+    void setCounts(long requests, long wireBytes, long decodedBytes) {
+        mRequests.set(requests);
+        mWireBytes.set(wireBytes);
+        mDecodedBytes.set(decodedBytes);
+    }
+
+    /**
+     * @return the distribution of {@code phase}'s durations, in microseconds, over every sync
+     * since the process started.
+     */
+    public static SyncHistogram getPhaseHistogram(int phase) {
+        return sPhaseHistograms[phase];
+    }
+
+    /**
+     * @return the distribution of response sizes on the wire, in bytes.
+     */
+    public static SyncHistogram getWireBytesHistogram() {
+        return sWireBytesHistogram;
+    }
+
+    /**
+     * Empties the process-wide histograms.  Only used by tests.
+     */
+    static void resetHistograms() {
+        for (SyncHistogram histogram : sPhaseHistograms) {
+            histogram.reset();
+        }
+        sWireBytesHistogram.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%s sync: %d/%d locations, %d requests, "
+                        + "%d bytes on the wire (%d decoded);",
+                manual ? "Manual" : "Periodic", successes, locations, getRequests(),
+                getWireBytes(), getDecodedBytes()));
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sb.append(' ').append(PHASE_NAMES[i]).append(' ').append(getPhaseMillis(i))
+              .append("ms");
+        }
+        return sb.toString();
+    }
+}
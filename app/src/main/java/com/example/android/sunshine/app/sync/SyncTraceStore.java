@@ -0,0 +1,215 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+
+import com.example.android.sunshine.app.SunLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the traces of the last {@link #MAX_RECORDS} syncs on disk, as CSV, so they survive
+ * the process and can be exported from a real device.
+ * <p/>
+ * The file is small enough to be rewritten whole on every append; the new version is written
+ * next to it and renamed over it, so a crash leaves either the old records or the new ones.
+ * A file whose header doesn't match the current columns is from another version and is
+ * dropped.
+ */
+public class SyncTraceStore {
+    private static final String LOG_TAG = SyncTraceStore.class.getSimpleName();
+
+    static final int MAX_RECORDS = 50;
+    static final String FILE_NAME = "sync_traces.csv";
+
+    private static final String HEADER = buildHeader();
+    // Columns before the per-phase ones
+    private static final int FIXED_COLUMNS = 8;
+
+    private static SyncTraceStore sInstance;
+
+    private final File mFile;
+
+    public static synchronized SyncTraceStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncTraceStore(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    SyncTraceStore(File file) {
+        mFile = file;
+    }
+
+    private static String buildHeader() {
+        StringBuilder sb = new StringBuilder("started_at,manual,locations,successes,"
+                + "rows_written,requests,wire_bytes,decoded_bytes");
+        for (int i = 0; i < SyncTrace.PHASE_COUNT; i++) {
+            String name = SyncTrace.phaseName(i);
+            sb.append(',').append(name).append("_ms,").append(name).append("_count");
+        }
+        return sb.toString();
+    }
+
+    private static String toLine(SyncTrace trace) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(trace.startedAt).append(',').append(trace.manual ? 1 : 0).append(',')
+          .append(trace.locations).append(',').append(trace.successes).append(',')
+          .append(trace.rowsWritten).append(',').append(trace.getRequests()).append(',')
+          .append(trace.getWireBytes()).append(',').append(trace.getDecodedBytes());
+        for (int i = 0; i < SyncTrace.PHASE_COUNT; i++) {
+            sb.append(',').append(trace.getPhaseMillis(i))
+              .append(',').append(trace.getPhaseCount(i));
+        }
+        return sb.toString();
+    }
+
+    private static SyncTrace fromLine(String line) {
+        String[] fields = line.split(",");
+        if (fields.length != FIXED_COLUMNS + 2 * SyncTrace.PHASE_COUNT) {
+            throw new IllegalArgumentException("Expected " + HEADER + ", got " + line);
+        }
+        SyncTrace trace = new SyncTrace(Long.parseLong(fields[0]), "1".equals(fields[1]));
+        trace.locations = Integer.parseInt(fields[2]);
+        trace.successes = Integer.parseInt(fields[3]);
+        trace.rowsWritten = Integer.parseInt(fields[4]);
+        trace.setCounts(Long.parseLong(fields[5]), Long.parseLong(fields[6]),
+                Long.parseLong(fields[7]));
+        for (int i = 0; i < SyncTrace.PHASE_COUNT; i++) {
+            trace.setPhase(i, Long.parseLong(fields[FIXED_COLUMNS + 2 * i]),
+                    Long.parseLong(fields[FIXED_COLUMNS + 2 * i + 1]));
+        }
+        return trace;
+    }
+
+    /**
+     * @return the stored lines, oldest first, without the header.
+     */
+    private List<String> readLines() {
+        List<String> lines = new ArrayList<String>();
+        if (!mFile.exists()) {
+            return lines;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return lines;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0) {
+                        lines.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            SunLog.w(LOG_TAG, "read_failed", "file", mFile, e);
+            lines.clear();
+        }
+        return lines;
+    }
+
+    /**
+     * Adds {@code trace} as the newest record, dropping the oldest beyond MAX_RECORDS.
+     */
+    public synchronized void append(SyncTrace trace) {
+        List<String> lines = readLines();
+        lines.add(toLine(trace));
+        if (lines.size() > MAX_RECORDS) {
+            lines = lines.subList(lines.size() - MAX_RECORDS, lines.size());
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                writeCsv(writer, lines);
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Couldn't rename " + tmp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            // Instrumentation must never fail a sync.
+            SunLog.w(LOG_TAG, "store_failed", "file", mFile, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return the stored traces, oldest first.
+     */
+    public synchronized List<SyncTrace> getRecords() {
+        List<SyncTrace> traces = new ArrayList<SyncTrace>();
+        for (String line : readLines()) {
+            try {
+                traces.add(fromLine(line));
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException included; skip the line rather than lose the rest.
+                SunLog.w(LOG_TAG, "malformed_trace", "line", line, e);
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * Writes every stored trace to {@code writer} as CSV with a header line.
+     */
+    public synchronized void exportRecords(Writer writer) throws IOException {
+        writeCsv(writer, readLines());
+        writer.flush();
+    }
+
+    /**
+     * Writes the process-wide phase and response size histograms to {@code writer} as CSV:
+     * one line per non-empty bucket, with the smallest value the bucket holds.
+     */
+    public static void exportHistograms(Writer writer) throws IOException {
+        writer.write("histogram,unit,bucket_floor,count\n");
+        for (int i = 0; i < SyncTrace.PHASE_COUNT; i++) {
+            writeBuckets(writer, SyncTrace.phaseName(i), "us", SyncTrace.getPhaseHistogram(i));
+        }
+        writeBuckets(writer, "wire_bytes", "B", SyncTrace.getWireBytesHistogram());
+        writer.flush();
+    }
+
+    private static void writeBuckets(Writer writer, String name, String unit,
+                                     SyncHistogram histogram) throws IOException {
+        for (int i = 0; i < SyncHistogram.BUCKET_COUNT; i++) {
+            long count = histogram.getBucketCount(i);
+            if (count > 0) {
+                writer.write(name + ',' + unit + ',' + SyncHistogram.getBucketFloor(i) + ','
+                        + count + '\n');
+            }
+        }
+    }
+
+    private static void writeCsv(Writer writer, List<String> lines) throws IOException {
+        writer.write(HEADER);
+        writer.write('\n');
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Deletes every stored trace.  Only used by tests.
+     */
+    synchronized void clear() {
+        mFile.delete();
+    }
+}
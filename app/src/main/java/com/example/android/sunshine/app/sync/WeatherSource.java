@@ -0,0 +1,51 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Where forecasts come from: how to ask for one location's forecast and how to read the
+ * answer.
+ * <p/>
+ * {@link LocationSyncEngine} does everything else (transport, retries, caching, writes), so
+ * pointing a sync at another backend, or at a local stand-in server, only takes another
+ * implementation of this.
+ */
+public interface WeatherSource {
+
+    /**
+     * @return the host every forecast request goes to.  Requests to one host share a
+     * {@link CircuitBreaker}.
+     */
+    String getHost();
+
+    /**
+     * @param days how many days to ask for, starting today.  A source whose API can't start
+     *             a forecast later than today serves a partial horizon this way, and the
+     *             sync merges the days it gets into the ones already stored.
+     * @return the request URI for the forecast of {@code locationSetting}.
+     */
+    Uri buildForecastUri(String locationSetting, int days);
+
+    /**
+     * The inverse of {@link #buildForecastUri(String, int)}, used to tell which location a
+     * cached response belongs to.
+     *
+     * @return the location setting, or null if {@code forecastUri} isn't one of this
+     * source's requests.
+     */
+    String getLocationSetting(Uri forecastUri);
+
+    /**
+     * Decodes a forecast response, handing every piece of it to {@code callback}.
+     *
+     * @return the number of days decoded.
+     * @throws JSONException if the response isn't a forecast.
+     */
+    int parseForecast(Reader reader, ForecastJsonParser.Callback callback)
+            throws IOException, JSONException;
+}